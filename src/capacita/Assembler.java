@@ -1,25 +1,26 @@
 package capacita;
 
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Assembles Successor assembly language mnemonics into executable bytecode.
  * @author Jiangcheng Oliver Chu
  */
 public class Assembler {
-    private static final Pattern TYPE_PATTERN = Pattern.compile("^[ifso]$");
-    private static final Pattern MNEMONIC_PATTERN = Pattern.compile("^[a-z]+$");
-    private static final Pattern REGISTER_PATTERN = Pattern.compile(
-                                                 "^r(\\d|[A-Z])+$");
-    private static final Pattern CONSTANT_PATTERN = Pattern.compile(
-                                                 "^-?(\\d+|0x\\d+)$");
     public static final String SUCCESSOR_NOP = "i shlv rZERO, rZERO, 0\n";
     public static final String SUCCESSOR_EXIT = "i syscall r0, rZERO, 0";
-    private String[] sourceCodeLines;
+    private String sourceCode;
+    private int[] flatByteCode;
     private int[][] programByteCode;
+    /** Sources shorter than this are not worth splitting into chunks. */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int CHUNKS_PER_THREAD = 4;
     
     public Assembler(String code) {
-        sourceCodeLines = code.split("\\n");
+        sourceCode = code;
+        flatByteCode = null;
         programByteCode = null;
     }
     
@@ -27,296 +28,216 @@ public class Assembler {
         if (programByteCode != null) {
             return programByteCode;
         } else {
-            programByteCode = new int[sourceCodeLines.length][2];
-            for (int i = 0; i < sourceCodeLines.length; i++) {
-                String line = sourceCodeLines[i];
-                programByteCode[i] = assembleParts(getParts(line));
+            int[] flattenedProgram = compileFlat();
+            programByteCode = new int[flattenedProgram.length / 2][];
+            for (int i = 0, j = 0; i < programByteCode.length; i++, j += 2) {
+                programByteCode[i] = new int[]{flattenedProgram[j],
+                                               flattenedProgram[j + 1]};
             }
             return programByteCode;
         }
     }
     
-    public static int[][] compileDirectly(String code)
-           throws InternalException {
-        return new Assembler(code).compile();
+    /**
+     * Assembles the source in a single pass, writing two words per line
+     * directly into one flat array.
+     * @return the flattened program
+     * @throws InternalException if any line cannot be assembled
+     */
+    public int[] compileFlat() throws InternalException {
+        if (flatByteCode != null) {
+            return flatByteCode;
+        }
+        int end = sourceEnd();
+        int[] program = new int[2 * countLines(sourceCode, 0, end)];
+        if (end > 0) {
+            new AssemblyScanner().encodeLines(sourceCode, 0, end, 0, program);
+        }
+        flatByteCode = program;
+        return flatByteCode;
     }
     
-    public static int[] flatCompileDirectly(String code)
-           throws InternalException {
-        int[][] compiledProgram = compileDirectly(code);
-        int[] flattenedProgram = new int[2 * compiledProgram.length];
-        for (int i = 0, j = 0; i < compiledProgram.length; i++, j += 2) {
-            flattenedProgram[j] = compiledProgram[i][0];
-            flattenedProgram[j + 1] = compiledProgram[i][1];
+    /**
+     * Assembles the source on pool, splitting it into chunks at line
+     * boundaries. Produces the same program as compileFlat(), and if any
+     * lines are illegal, reports the first of them.
+     * @param pool the pool on which chunks are assembled
+     * @return the flattened program
+     * @throws InternalException if any line cannot be assembled
+     */
+    public int[] compileFlat(ForkJoinPool pool) throws InternalException {
+        if (flatByteCode != null) {
+            return flatByteCode;
+        }
+        int end = sourceEnd();
+        if (end < PARALLEL_THRESHOLD) {
+            return compileFlat();
+        }
+        String code = sourceCode;
+        int numChunks = pool.getParallelism() * CHUNKS_PER_THREAD;
+        int chunkLength = end / numChunks + 1;
+        ArrayList<AssemblyChunk> chunks = new ArrayList<AssemblyChunk>();
+        int chunkStart = 0;
+        while (chunkStart < end) {
+            int chunkStop = code.indexOf('\n', chunkStart + chunkLength);
+            if (chunkStop < 0 || chunkStop >= end) {
+                chunkStop = end;
+            }
+            chunks.add(new AssemblyChunk(code, chunkStart, chunkStop));
+            chunkStart = chunkStop + 1;
+        }
+        for (AssemblyChunk chunk : chunks) {
+            pool.execute(chunk);
+        }
+        int numLines = 0;
+        for (AssemblyChunk chunk : chunks) {
+            chunk.join();
+            chunk.setFirstLine(numLines);
+            numLines += chunk.getLineCount();
+        }
+        int[] program = new int[2 * numLines];
+        for (AssemblyChunk chunk : chunks) {
+            chunk.reinitialize();
+            chunk.setProgram(program);
+            pool.execute(chunk);
+        }
+        AssemblyChunk firstFailure = null;
+        for (AssemblyChunk chunk : chunks) {
+            chunk.join();
+            if (chunk.getFailure() != null && firstFailure == null) {
+                firstFailure = chunk;
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure.getFailure();
         }
-        return flattenedProgram;
+        flatByteCode = program;
+        return flatByteCode;
     }
     
-    public static int getOpcode(String mnemonic) throws InternalException {
-        /* Warning: String switches require JDK 1.7 */
-        switch (mnemonic) {
-            case "shlv":
-                return 0x0;
-            case "shrv":
-                return 0x1;
-            case "sharv":
-                return 0x2;
-            case "mov":
-                return 0x3;
-            case "add":
-                return 0x4;
-            case "sub":
-                return 0x5;
-            case "mul":
-                return 0x6;
-            case "div":
-                return 0x7;
-            case "mod":
-                return 0x8;
-            case "and":
-                return 0x9;
-            case "or":
-                return 0xa;
-            case "xor":
-                return 0xb;
-            case "j":
-                return 0xc;
-            case "jmp":
-                return 0xd;
-            case "jeq":
-                return 0xe;
-            case "jne":
-                return 0xf;
-            case "jge":
-                return 0x10;
-            case "jg":
-                return 0x11;
-            case "jle":
-                return 0x12;
-            case "jl":
-                return 0x13;
-            case "call":
-                return 0x14;
-            case "syscall":
-                return 0x15;
-            case "ret":
-                return 0x16;
-            case "load":
-                return 0x17;
-            case "save":
-                return 0x18;
-            case "push":
-                return 0x19;
-            case "pop":
-                return 0x1a;
-            default:
-                throw new InternalException("Unknown mnemonic " + mnemonic);
-        }
+    /**
+     * Returns the length of the source, not counting trailing newlines.
+     * Like String.split, trailing empty lines are ignored.
+     * @return end index of the last line
+     */
+    private int sourceEnd() {
+        int end = sourceCode.length();
+        while (end > 0 && sourceCode.charAt(end - 1) == '\n') {
+            end--;
+        }
+        return end;
     }
     
-    public static int getTypeCode(char type) throws InternalException {
-        switch (type) {
-            case 'i':
-            case InstructionParts.NO_TYPE:
-                return 0x0;
-            case 'f':
-                return 0x1;
-            case 's':
-                return 0x2;
-            case 'o':
-                return 0x3;
-            default:
-                throw new InternalException("Unknown static type: " + type +
-                                            " (" + (int) type + ")");
+    private static int countLines(String code, int start, int stop) {
+        if (stop <= start) {
+            return 0;
+        }
+        int numLines = 1;
+        for (int i = start; i < stop; i++) {
+            if (code.charAt(i) == '\n') {
+                numLines++;
+            }
         }
+        return numLines;
     }
     
-    public static int compileRegister(String register)
-        throws InternalException {
-        if (register.length() == 0 || register.charAt(0) != 'r') {
-            throw new InternalException(
-                "Register name does not start with 'r': " + register);
-        }
-        register = register.substring(1);
-        /* Warning: String switches require JDK 1.7 */
-        switch (register) {
-            case "ZERO":
-                return 0;
-            case "AT":
-                return 60;
-            case "GP":
-                return 61;
-            case "SP":
-                return 62;
-            case "BP":
-                return 63;
-            default:
-                int regNumber = -1;
-                try {
-                    regNumber = Integer.parseInt(register);
-                } catch (NumberFormatException ex) {
-                    throw illegalRegister(register);
-                }
-                if (regNumber < 0 || regNumber > 63) {
-                    throw illegalRegister(register);
-                }
-                return regNumber;
-        }
+    public static int[][] compileDirectly(String code)
+           throws InternalException {
+        return new Assembler(code).compile();
     }
     
-    private static InternalException illegalRegister(String register) {
-        return new InternalException(
-                       "Numbered registers are only r0 through r63, saw r" +
-                        register);
+    public static int[] flatCompileDirectly(String code)
+           throws InternalException {
+        return new Assembler(code).compileFlat();
     }
     
-    private InstructionParts getParts(String instruction) {
-        String[] pieces = instruction.replace(",", " ").split(" ");
-        InstructionParts result = new InstructionParts(instruction);
-        for (String piece : pieces) {
-            if (piece.length() == 1 && TYPE_PATTERN.matcher(piece).find()
-                && result.getType() == InstructionParts.NO_TYPE) {
-                result.setType(piece.charAt(0));
-            } else if (MNEMONIC_PATTERN.matcher(piece).find() &&
-                       result.getMnemonic() == null) {
-                result.setMnemonic(piece);
-            } else if (CONSTANT_PATTERN.matcher(piece).find() &&
-                       result.getConstant() == null) {
-                result.setConstant(piece);
-            } else if (REGISTER_PATTERN.matcher(piece).find()) {
-                if (result.getRegA() == null) {
-                    result.setRegA(piece);
-                } else if (result.getRegB() == null) {
-                    result.setRegB(piece);
-                } else if (result.getRegC() == null) {
-                    result.setRegC(piece);
-                }
-            }
-        }
-        return result;
+    public static int[] parallelFlatCompileDirectly(String code)
+           throws InternalException {
+        return new Assembler(code).compileFlat(ForkJoinPool.commonPool());
     }
+    
+    /**
+     * A run of whole lines that is first counted, then assembled into its
+     * slice of the shared program array.
+     */
+    private static class AssemblyChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-    private class InstructionParts {
-        private char type;
-        private String mnemonic;
-        private String rA;
-        private String rB;
-        private String rC;
-        private String constant;
-        private String originalInstruction;
-        public static final char NO_TYPE = (char) -1;
-
-        public InstructionParts(String instruction) {
-            type = NO_TYPE;
-            mnemonic = null;
-            rA = null;
-            rB = null;
-            rC = null;
-            constant = null;
-            originalInstruction = instruction;
-        }
-        
-        /**
-         * Getter for original instruction. Only useful for debugging.
-         * @return the string instruction from which this object is derived
-         */
-        public String getOriginalInstruction() {
-            return originalInstruction;
-        }
-        
-        public void setType(char t) {
-            type = t;
-        }
-        
-        public void setMnemonic(String m) {
-            mnemonic = m;
-        }
-        
-        public void setRegA(String regA) {
-            rA = regA;
-        }
-        
-        public void setRegB(String regB) {
-            rB = regB;
-        }
+        private final String code;
+        private final int start;
+        private final int stop;
+        private int firstLine;
+        private int lineCount;
+        private int[] program;
+        private InternalException failure;
         
-        public void setRegC(String regC) {
-            rC = regC;
+        AssemblyChunk(String code, int start, int stop) {
+            this.code = code;
+            this.start = start;
+            this.stop = stop;
+            program = null;
+            failure = null;
         }
         
-        public void setConstant(String c) {
-            constant = c;
+        void setFirstLine(int line) {
+            firstLine = line;
         }
         
-        public char getType() {
-            return type;
+        int getLineCount() {
+            return lineCount;
         }
         
-        public String getMnemonic() {
-            return mnemonic;
+        void setProgram(int[] flatProgram) {
+            program = flatProgram;
         }
         
-        public String getRegA() {
-            return rA;
-        }
-        
-        public String getRegB() {
-            return rB;
-        }
-        
-        public String getRegC() {
-            return rC;
-        }
-        
-        public String getConstant() {
-            return constant;
+        InternalException getFailure() {
+            return failure;
         }
         
         @Override
-        public String toString() {
-            return "Instruction<" + type + " " + mnemonic + " " + rA + ", " +
-                   rB + ", " + rC + ", " + constant + ">";
+        protected void compute() {
+            if (program == null) {
+                lineCount = countLines(code, start, stop);
+            } else {
+                try {
+                    new AssemblyScanner().encodeLines(code, start, stop,
+                                                      firstLine, program);
+                } catch (InternalException ex) {
+                    failure = ex;
+                }
+            }
         }
     }
     
-    private int[] assembleParts(InstructionParts parts)
-            throws InternalException {
-        int firstFields = 0;
-        if (parts.getMnemonic().equals("j")) {
-            firstFields = 0x600000;
-        } else if (parts.getMnemonic().equals("call")) {
-            firstFields = 0xa00000;
-        } else if (parts.getMnemonic().equals("ret")) {
-            firstFields = 0xb00000;
-        } else {
-            char type = parts.getType();
-            String mnemonic = parts.getMnemonic();
-            String regA = parts.getRegA();
-            String regB = parts.getRegB();
-            if (type == -1 || mnemonic == null || regA == null ||
-                regB == null) {
-                throw new InternalException(
-                    "Successor syntax error on instruction: " +
-                    parts.getOriginalInstruction() + " -> " + parts);
-            } else {
-                firstFields = (getTypeCode(type) << 30) |
-                              (getOpcode(mnemonic) << 19) |
-                              (compileRegister(regA) << 6) |
-                              (compileRegister(regB));
-            }
+    public static int getOpcode(String mnemonic) throws InternalException {
+        int opcode = AssemblyScanner.lookupOpcode(mnemonic, 0,
+                                                  mnemonic.length());
+        if (opcode < 0) {
+            throw new InternalException("Unknown mnemonic " + mnemonic);
         }
-        int lastFields;
-        String constant = parts.getConstant();
-        if (constant == null) {
-            lastFields = 0;
-        } else {
-            try {
-                lastFields = Integer.parseInt(constant);
-            } catch (NumberFormatException ex) {
-                throw new InternalException("Illegal successor constant " +
-                                            constant);
-            }
+        return opcode;
+    }
+    
+    public static int getTypeCode(char type) throws InternalException {
+        switch (type) {
+            case 'i':
+            case AssemblyScanner.NO_TYPE:
+                return 0x0;
+            case 'f':
+                return 0x1;
+            case 's':
+                return 0x2;
+            case 'o':
+                return 0x3;
+            default:
+                throw new InternalException("Unknown static type: " + type +
+                                            " (" + (int) type + ")");
         }
-        return new int[]{firstFields, lastFields};
+    }
+    
+    public static int compileRegister(String register)
+        throws InternalException {
+        return AssemblyScanner.compileRegister(register, 0, register.length());
     }
 }
@@ -0,0 +1,444 @@
+package capacita;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass scanner that encodes lines of Successor assembly straight into
+ * bytecode words. Tokens are tracked as index ranges into the source, so no
+ * per-token objects are created while scanning.
+ * <p>
+ * CompilationCache keeps encoded programs on disk across runs. Any change to
+ * the words produced here must bump CompilationCache.COMPILER_VERSION, or
+ * stale programs will be loaded from existing caches.
+ * @author Jiangcheng Oliver Chu
+ */
+class AssemblyScanner {
+    /** Mnemonic names, indexed by their opcode. */
+    private static final String[] MNEMONICS = {
+        "shlv", "shrv", "sharv", "mov", "add", "sub", "mul", "div", "mod",
+        "and", "or", "xor", "j", "jmp", "jeq", "jne", "jge", "jg", "jle", "jl",
+        "call", "syscall", "ret", "load", "save", "push", "pop", "loadlex",
+        "savelex", "loadname", "savename"
+    };
+    /** Slots of the first table tried; doubled until a hash is found. */
+    private static final int INITIAL_TABLE_SIZE = 128;
+    private static final int MAX_TABLE_SIZE = 1 << 12;
+    /** Multipliers tried at each table size. */
+    private static final int MAX_TRIES = 1 << 12;
+    private static final int NONE = -1;
+    static final char NO_TYPE = (char) -1;
+    /** Perfect hash table from hashed mnemonic to opcode (or NONE). */
+    private static final int[] MNEMONIC_TABLE;
+    private static final int TABLE_MASK;
+    private static final int HASH_MULTIPLIER;
+
+    static {
+        int[] table = null;
+        int multiplier = NONE;
+        String clash = null;
+        for (int size = INITIAL_TABLE_SIZE;
+             size <= MAX_TABLE_SIZE && multiplier == NONE; size *= 2) {
+            table = new int[size];
+            for (int tries = 0; tries < MAX_TRIES; tries++) {
+                clash = fillTable(table, 3 + 2 * tries);
+                if (clash == null) {
+                    multiplier = 3 + 2 * tries;
+                    break;
+                }
+            }
+        }
+        if (multiplier == NONE) {
+            throw new ExceptionInInitializerError(
+                "No perfect hash of the mnemonics fits in " +
+                MAX_TABLE_SIZE + " slots; the last clash was " + clash);
+        }
+        MNEMONIC_TABLE = table;
+        TABLE_MASK = table.length - 1;
+        HASH_MULTIPLIER = multiplier;
+    }
+
+    private char type;
+    private int mnemonicStart;
+    private int mnemonicEnd;
+    private int regAStart;
+    private int regAEnd;
+    private int regBStart;
+    private int regBEnd;
+    private int regCStart;
+    private int constantStart;
+    private int constantEnd;
+
+    /**
+     * Fills table with the opcode of every mnemonic at its hashed slot.
+     * @return null if every mnemonic has its own slot, or else the first
+     *         two mnemonics found sharing a slot
+     */
+    private static String fillTable(int[] table, int multiplier) {
+        Arrays.fill(table, NONE);
+        for (int opcode = 0; opcode < MNEMONICS.length; opcode++) {
+            String name = MNEMONICS[opcode];
+            int slot = hash(name, 0, name.length(), multiplier,
+                            table.length - 1);
+            if (table[slot] != NONE) {
+                return MNEMONICS[table[slot]] + " and " + name;
+            }
+            table[slot] = opcode;
+        }
+        return null;
+    }
+
+    private static int hash(CharSequence s, int start, int end,
+                            int multiplier, int mask) {
+        int h = end - start;
+        for (int i = start; i < end; i++) {
+            h = h * multiplier + s.charAt(i);
+        }
+        return (h ^ (h >>> 6)) & mask;
+    }
+
+    /**
+     * Looks up the opcode of the mnemonic s[start:end].
+     * @return the opcode, or -1 if there is no such mnemonic
+     */
+    static int lookupOpcode(CharSequence s, int start, int end) {
+        int opcode = MNEMONIC_TABLE[hash(s, start, end, HASH_MULTIPLIER,
+                                          TABLE_MASK)];
+        if (opcode == NONE) {
+            return NONE;
+        }
+        String name = MNEMONICS[opcode];
+        int length = end - start;
+        if (name.length() != length) {
+            return NONE;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != s.charAt(start + i)) {
+                return NONE;
+            }
+        }
+        return opcode;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == ',' || c == '\t' || c == '\r';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else {
+            return NONE;
+        }
+    }
+
+    private static boolean isMnemonicToken(CharSequence s, int start,
+                                           int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 'a' || c > 'z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Accepts decimal constants and hex constants of the form 0x1F,
+     * either of which may be negated.
+     */
+    private static boolean isConstantToken(CharSequence s, int start,
+                                           int end) {
+        if (s.charAt(start) == '-') {
+            start++;
+        }
+        if (start >= end) {
+            return false;
+        }
+        if (end - start > 2 && s.charAt(start) == '0' &&
+            s.charAt(start + 1) == 'x') {
+            for (int i = start + 2; i < end; i++) {
+                if (hexValue(s.charAt(i)) == NONE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int i = start; i < end; i++) {
+            if (!isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRegisterToken(CharSequence s, int start,
+                                           int end) {
+        if (end - start < 2 || s.charAt(start) != 'r') {
+            return false;
+        }
+        for (int i = start + 1; i < end; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c) && (c < 'A' || c > 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end,
+                                        String other) {
+        if (end - start != other.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != other.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the register named by s[start:end], such as r5 or rSP.
+     * @return the register number, from 0 to 63
+     * @throws InternalException if the register name is illegal
+     */
+    static int compileRegister(CharSequence s, int start, int end)
+           throws InternalException {
+        if (start >= end || s.charAt(start) != 'r') {
+            throw new InternalException(
+                "Register name does not start with 'r': " +
+                s.subSequence(start, end));
+        }
+        int nameStart = start + 1;
+        if (regionEquals(s, nameStart, end, "ZERO")) {
+            return 0;
+        } else if (regionEquals(s, nameStart, end, "AT")) {
+            return 60;
+        } else if (regionEquals(s, nameStart, end, "GP")) {
+            return 61;
+        } else if (regionEquals(s, nameStart, end, "SP")) {
+            return 62;
+        } else if (regionEquals(s, nameStart, end, "BP")) {
+            return 63;
+        }
+        int regNumber = 0;
+        for (int i = nameStart; i < end; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                throw illegalRegister(s, nameStart, end);
+            }
+            regNumber = regNumber * 10 + (c - '0');
+            if (regNumber > 63) {
+                throw illegalRegister(s, nameStart, end);
+            }
+        }
+        if (nameStart == end) {
+            throw illegalRegister(s, nameStart, end);
+        }
+        return regNumber;
+    }
+
+    private static InternalException illegalRegister(CharSequence s,
+                                                     int start, int end) {
+        return new InternalException(
+                       "Numbered registers are only r0 through r63, saw r" +
+                       s.subSequence(start, end));
+    }
+
+    /**
+     * Parses the constant s[start:end]. Decimal constants must fit in an int;
+     * hex constants may use all 32 bits.
+     * @throws InternalException if the constant does not fit
+     */
+    static int parseConstant(CharSequence s, int start, int end)
+           throws InternalException {
+        boolean isNegative = s.charAt(start) == '-';
+        int i = isNegative ? start + 1 : start;
+        if (end - i > 2 && s.charAt(i) == '0' && s.charAt(i + 1) == 'x') {
+            if (end - i - 2 > 8) {
+                throw illegalConstant(s, start, end);
+            }
+            int value = 0;
+            for (i += 2; i < end; i++) {
+                value = (value << 4) | hexValue(s.charAt(i));
+            }
+            return isNegative ? -value : value;
+        }
+        /* Accumulate negatively, as Integer.parseInt does, so that
+         * Integer.MIN_VALUE can be represented. */
+        long limit = isNegative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            value = value * 10 - (s.charAt(i) - '0');
+            if (value < limit) {
+                throw illegalConstant(s, start, end);
+            }
+        }
+        return (int) (isNegative ? value : -value);
+    }
+
+    private static InternalException illegalConstant(CharSequence s,
+                                                      int start, int end) {
+        return new InternalException("Illegal successor constant " +
+                                     s.subSequence(start, end));
+    }
+
+    private void clear() {
+        type = NO_TYPE;
+        mnemonicStart = NONE;
+        mnemonicEnd = NONE;
+        regAStart = NONE;
+        regAEnd = NONE;
+        regBStart = NONE;
+        regBEnd = NONE;
+        regCStart = NONE;
+        constantStart = NONE;
+        constantEnd = NONE;
+    }
+
+    /**
+     * Classifies one token, with the same priorities the assembler has
+     * always used: type prefix, then mnemonic, then constant, then register.
+     * Tokens that fit none of these, or whose slot is already taken,
+     * are ignored.
+     */
+    private void acceptToken(CharSequence s, int start, int end) {
+        char first = s.charAt(start);
+        if (end - start == 1 && type == NO_TYPE &&
+            (first == 'i' || first == 'f' || first == 's' || first == 'o')) {
+            type = first;
+        } else if (mnemonicStart == NONE && isMnemonicToken(s, start, end)) {
+            mnemonicStart = start;
+            mnemonicEnd = end;
+        } else if (constantStart == NONE && isConstantToken(s, start, end)) {
+            constantStart = start;
+            constantEnd = end;
+        } else if (isRegisterToken(s, start, end)) {
+            if (regAStart == NONE) {
+                regAStart = start;
+                regAEnd = end;
+            } else if (regBStart == NONE) {
+                regBStart = start;
+                regBEnd = end;
+            } else if (regCStart == NONE) {
+                regCStart = start;
+            }
+        }
+    }
+
+    /**
+     * Encodes the instruction s[start:end] into out[offset] and
+     * out[offset + 1].
+     * @param s source code containing the instruction
+     * @param start index of the first character of the instruction
+     * @param end index just past the last character of the instruction
+     * @param out array receiving the two bytecode words
+     * @param offset index in out of the first word
+     * @throws InternalException if the instruction cannot be assembled
+     */
+    void encodeLine(CharSequence s, int start, int end, int[] out,
+                    int offset) throws InternalException {
+        clear();
+        int i = start;
+        while (i < end) {
+            while (i < end && isSeparator(s.charAt(i))) {
+                i++;
+            }
+            int tokenStart = i;
+            while (i < end && !isSeparator(s.charAt(i))) {
+                i++;
+            }
+            if (i > tokenStart) {
+                acceptToken(s, tokenStart, i);
+            }
+        }
+        if (mnemonicStart == NONE) {
+            throw syntaxError(s, start, end);
+        }
+        int opcode = lookupOpcode(s, mnemonicStart, mnemonicEnd);
+        if (opcode == NONE) {
+            throw new InternalException("Unknown mnemonic " +
+                          s.subSequence(mnemonicStart, mnemonicEnd));
+        }
+        int firstFields;
+        if (opcode == Mnemonics.J || opcode == Mnemonics.CALL ||
+            opcode == Mnemonics.RET) {
+            firstFields = opcode << 19;
+        } else if (regAStart == NONE || regBStart == NONE) {
+            throw syntaxError(s, start, end);
+        } else {
+            firstFields = (Assembler.getTypeCode(type) << 30) |
+                          (opcode << 19) |
+                          (compileRegister(s, regAStart, regAEnd) << 6) |
+                          compileRegister(s, regBStart, regBEnd);
+        }
+        out[offset] = firstFields;
+        out[offset + 1] = constantStart == NONE ? 0 :
+                          parseConstant(s, constantStart, constantEnd);
+    }
+
+    /**
+     * Encodes every line of s[start:stop] into out, two words per line.
+     * Errors name the line on which they occur, counting from 1.
+     * @param s source code containing the lines
+     * @param start index of the first character of the first line
+     * @param stop index just past the last character of the last line
+     * @param firstLine zero-based line number of the first line
+     * @param out array receiving the bytecode words
+     * @throws InternalException if any line cannot be assembled
+     */
+    void encodeLines(String s, int start, int stop, int firstLine,
+                     int[] out) throws InternalException {
+        int lineStart = start;
+        for (int line = firstLine;; line++) {
+            int lineEnd = s.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > stop) {
+                lineEnd = stop;
+            }
+            try {
+                encodeLine(s, lineStart, lineEnd, out, 2 * line);
+            } catch (InternalException ex) {
+                throw atLine(line, ex);
+            }
+            if (lineEnd == stop) {
+                return;
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Annotates an assembly error with the line it occurred on.
+     * @param line zero-based line number
+     * @param ex the original error
+     * @return an error naming the line, counting from 1
+     */
+    static InternalException atLine(int line, InternalException ex) {
+        return new InternalException("Line " + (line + 1) + ": " +
+                                     ex.getMessage());
+    }
+
+    /**
+     * @param line zero-based number of an empty line between instructions
+     * @return the error encodeLine gives for an empty line, naming the line
+     */
+    static InternalException emptyLineError(int line) {
+        return atLine(line, syntaxError("", 0, 0));
+    }
+
+    private static InternalException syntaxError(CharSequence s, int start,
+                                                 int end) {
+        return new InternalException(
+            "Successor syntax error on instruction: " +
+            s.subSequence(start, end));
+    }
+}
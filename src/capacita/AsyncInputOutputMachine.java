@@ -0,0 +1,363 @@
+package capacita;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import capacita.collections.BoundedQueue;
+
+/**
+ * An InputOutputMachine whose writes return as soon as they are queued.
+ * A writer thread drains the queue, encoding as many writes as fit into one
+ * buffer before each channel write, so that printing is not slowed down by
+ * the speed of the terminal or pipe. Writes appear in the order they were
+ * queued. When the queue is full, writers either wait or have their text
+ * dropped, and both are counted.
+ * The writer thread is started by the first write queued and stops once
+ * the queue stays empty, so an idle machine holds no thread. One shutdown
+ * hook flushes every machine not yet closed or collected.
+ * @author Jiangcheng Oliver Chu
+ */
+public class AsyncInputOutputMachine implements InputOutputMachine {
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    /** How long the writer thread waits for more writes before stopping. */
+    private static final long IDLE_PARK_NANOS =
+                              TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long WAIT_PARK_NANOS =
+                              TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * What writers do when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait until the writer thread makes room. */
+        BLOCK,
+        /** Discard the text being written. */
+        DROP
+    }
+
+    /** Machines to flush at shutdown, held weakly so they can be collected. */
+    private static final Set<AsyncInputOutputMachine> unclosed =
+        Collections.newSetFromMap(
+            new WeakHashMap<AsyncInputOutputMachine, Boolean>());
+    private static boolean isShutdownHookAdded = false;
+
+    private final BoundedQueue<String> queue;
+    private final WritableByteChannel channel;
+    private final BufferedReader keyboard;
+    private final OverflowPolicy overflowPolicy;
+    /** Reused by each writer thread in turn; only one runs at a time. */
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer;
+    /** Set while a writer thread is running, by whoever starts it. */
+    private final AtomicBoolean isWriterRunning = new AtomicBoolean();
+    private volatile Thread writerThread;
+    private volatile boolean isWriterIdle;
+    private volatile IOException writeFailure;
+    /** Number of queued writes the channel has fully received. */
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong channelWrites = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Writes to standard output and reads from standard input, blocking
+     * writers when the queue is full.
+     */
+    public AsyncInputOutputMachine() {
+        this(new FileOutputStream(FileDescriptor.out).getChannel(), System.in,
+             DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param out channel receiving UTF-8 output; not closed by this
+     * @param in source of input lines
+     * @param capacity most writes queued at once
+     * @param policy what writers do when the queue is full
+     */
+    public AsyncInputOutputMachine(WritableByteChannel out, InputStream in,
+                                   int capacity, OverflowPolicy policy) {
+        queue = new BoundedQueue<String>(capacity);
+        channel = out;
+        keyboard = new BufferedReader(new InputStreamReader(in));
+        overflowPolicy = policy;
+        encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        synchronized (unclosed) {
+            unclosed.add(this);
+            if (!isShutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            flushUnclosed();
+                        }
+                    }, "capacita-output-flush"));
+                isShutdownHookAdded = true;
+            }
+        }
+    }
+
+    private static void flushUnclosed() {
+        ArrayList<AsyncInputOutputMachine> machines;
+        synchronized (unclosed) {
+            machines = new ArrayList<AsyncInputOutputMachine>(unclosed);
+        }
+        for (AsyncInputOutputMachine machine : machines) {
+            machine.flush();
+        }
+    }
+
+    private void enqueue(String text) {
+        if (!queue.offer(text)) {
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            long start = System.nanoTime();
+            do {
+                startOrWakeWriter();
+                LockSupport.parkNanos(WAIT_PARK_NANOS);
+            } while (!queue.offer(text));
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        startOrWakeWriter();
+    }
+
+    /**
+     * Starts a writer thread if none is running, or wakes the running one
+     * if it is waiting for writes.
+     */
+    private void startOrWakeWriter() {
+        if (isWriterRunning.compareAndSet(false, true)) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "capacita-output-writer");
+            writer.setDaemon(true);
+            writerThread = writer;
+            writer.start();
+        } else if (isWriterIdle) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Body of the writer thread: encodes queued writes into one buffer,
+     * writing it to the channel when it fills or the queue runs dry. Stops
+     * once the queue has stayed empty for IDLE_PARK_NANOS.
+     */
+    private void drain() {
+        /* Writes wholly encoded into buffer since it was last written. */
+        long encodedCount = 0;
+        boolean isStopped = false;
+        try {
+            for (;;) {
+                String text = queue.poll();
+                if (text == null) {
+                    writeBuffer(buffer);
+                    writtenCount.addAndGet(encodedCount);
+                    encodedCount = 0;
+                    isWriterIdle = true;
+                    if (queue.isEmpty()) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    isWriterIdle = false;
+                    if (queue.isEmpty() && !keepWriting()) {
+                        isStopped = true;
+                        return;
+                    }
+                    continue;
+                }
+                CharBuffer chars = CharBuffer.wrap(text);
+                encoder.reset();
+                for (;;) {
+                    CoderResult result = encoder.encode(chars, buffer, true);
+                    if (result.isOverflow()) {
+                        writeBuffer(buffer);
+                        writtenCount.addAndGet(encodedCount);
+                        encodedCount = 0;
+                    } else {
+                        break;
+                    }
+                }
+                while (encoder.flush(buffer).isOverflow()) {
+                    writeBuffer(buffer);
+                }
+                encodedCount++;
+            }
+        } finally {
+            /* A writer started since keepWriting must not be released. */
+            if (!isStopped) {
+                isWriterRunning.set(false);
+            }
+        }
+    }
+
+    /**
+     * Lets the writer thread stop, unless a write was queued after it last
+     * found the queue empty and no other thread has started a writer.
+     * @return true iff this writer must go on draining the queue
+     */
+    private boolean keepWriting() {
+        isWriterRunning.set(false);
+        return !queue.isEmpty() && isWriterRunning.compareAndSet(false, true);
+    }
+
+    private void writeBuffer(ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            if (buffer.hasRemaining()) {
+                bytesWritten.addAndGet(buffer.remaining());
+                channelWrites.incrementAndGet();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException ex) {
+            /* Reported by the next flush; output is lost meanwhile. */
+            writeFailure = ex;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Waits until every write queued before this call has been written to
+     * the channel.
+     * @return false iff writing to the channel has failed
+     */
+    @Override
+    public boolean flush() {
+        long target = queue.getOfferedCount();
+        while (writtenCount.get() < target) {
+            startOrWakeWriter();
+            LockSupport.parkNanos(WAIT_PARK_NANOS);
+        }
+        return writeFailure == null;
+    }
+
+    /**
+     * Flushes all queued writes and waits for the writer thread to stop.
+     * The channel is left open.
+     * @return false iff writing to the channel has failed
+     */
+    public boolean close() {
+        boolean isFlushed = flush();
+        synchronized (unclosed) {
+            unclosed.remove(this);
+        }
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return isFlushed && writeFailure == null;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return number of writes discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return total nanoseconds writers have waited for a full queue
+     */
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return number of writes made to the channel, each of which may hold
+     *         many queued writes
+     */
+    public long getChannelWrites() {
+        return channelWrites.get();
+    }
+
+    @Override
+    public void println(Object o) {
+        enqueue(o + LINE_SEPARATOR);
+    }
+
+    @Override
+    public void print(Object o) {
+        enqueue(String.valueOf(o));
+    }
+
+    @Override
+    public void printerr(Object o) {
+        System.err.println(o);
+    }
+
+    /**
+     * Reads a line of input, after flushing output so that any prompt is
+     * visible.
+     * @return user input
+     * @throws IOException
+     */
+    @Override
+    public String getln() throws IOException {
+        flush();
+        return keyboard.readLine();
+    }
+
+    @Override
+    public void debug(Object o) {
+        enqueue("DEBUG: " + o);
+    }
+
+    @Override
+    public void debugln(Object o) {
+        enqueue("DEBUG: " + o + LINE_SEPARATOR);
+    }
+
+    @Override
+    public void debugerr(Object o) {
+        System.err.println("DEBUG: " + o);
+    }
+}
@@ -0,0 +1,155 @@
+package capacita;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An InputOutputMachine owned by a single thread, such as the thread running
+ * one virtual machine. Output is gathered in a private buffer and encoded
+ * as UTF-8 to the underlying stream only when the buffer fills, when input
+ * is read or when flushed, so printing takes no locks. Instances must not be
+ * shared between threads without outside synchronization.
+ * @author Jiangcheng Oliver Chu
+ */
+public class BufferedInputOutputMachine implements InputOutputMachine {
+    private static final int BUFFER_SIZE = 1 << 13;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private final OutputStream output;
+    private final InputStream input;
+    private BufferedReader keyboard;
+    private final char[] buffer;
+    /** Large enough for the UTF-8 encoding of a full buffer. */
+    private final byte[] encoded;
+    private final CharsetEncoder encoder;
+    private int count;
+    private IOException writeFailure;
+
+    /**
+     * @param out stream receiving UTF-8 output; flushed but never closed
+     * @param in source of input lines
+     */
+    public BufferedInputOutputMachine(OutputStream out, InputStream in) {
+        output = out;
+        input = in;
+        buffer = new char[BUFFER_SIZE];
+        encoded = new byte[3 * BUFFER_SIZE];
+        encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        count = 0;
+    }
+
+    /**
+     * Writes to standard output and reads from standard input.
+     */
+    public BufferedInputOutputMachine() {
+        this(System.out, System.in);
+    }
+
+    private void append(String s) {
+        int length = s.length();
+        int copied = 0;
+        while (copied < length) {
+            if (count == buffer.length) {
+                drain();
+            }
+            int n = Math.min(length - copied, buffer.length - count);
+            s.getChars(copied, copied + n, buffer, count);
+            copied += n;
+            count += n;
+        }
+    }
+
+    /**
+     * Encodes the buffer to the output stream. A high surrogate at the very
+     * end is kept back until the rest of its pair is printed.
+     */
+    private void drain() {
+        CharBuffer chars = CharBuffer.wrap(buffer, 0, count);
+        ByteBuffer bytes = ByteBuffer.wrap(encoded);
+        encoder.encode(chars, bytes, false);
+        int remaining = chars.remaining();
+        System.arraycopy(buffer, chars.position(), buffer, 0, remaining);
+        count = remaining;
+        if (writeFailure != null) {
+            return;
+        }
+        try {
+            output.write(encoded, 0, bytes.position());
+        } catch (IOException ex) {
+            writeFailure = ex;
+        }
+    }
+
+    /**
+     * Writes all buffered output to the underlying stream and flushes it.
+     * @return false iff writing to the stream has failed
+     */
+    @Override
+    public boolean flush() {
+        drain();
+        if (writeFailure == null) {
+            try {
+                output.flush();
+            } catch (IOException ex) {
+                writeFailure = ex;
+            }
+        }
+        return writeFailure == null;
+    }
+
+    @Override
+    public void println(Object o) {
+        append(String.valueOf(o));
+        append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void print(Object o) {
+        append(String.valueOf(o));
+    }
+
+    @Override
+    public void printerr(Object o) {
+        System.err.println(o);
+    }
+
+    /**
+     * Reads a line of input, after flushing output so that any prompt is
+     * visible.
+     * @return user input
+     * @throws IOException
+     */
+    @Override
+    public String getln() throws IOException {
+        flush();
+        if (keyboard == null) {
+            keyboard = new BufferedReader(new InputStreamReader(input));
+        }
+        return keyboard.readLine();
+    }
+
+    @Override
+    public void debug(Object o) {
+        append("DEBUG: " + o);
+    }
+
+    @Override
+    public void debugln(Object o) {
+        append("DEBUG: " + o);
+        append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void debugerr(Object o) {
+        System.err.println("DEBUG: " + o);
+    }
+}
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import test.*;
+import tools.ArgParser;
 import tools.SyntaxHighlight;
 
 /**
@@ -45,10 +46,15 @@ public class Capacita implements InputOutputMachine {
     }
 
     /**
+     * Runs the command given by args, or all tests if there is none.
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        runTests();
+        if (args.length == 0) {
+            runTests();
+        } else if (!(new ArgParser(args)).parse()) {
+            System.exit(1);
+        }
     }
     
     public void reportMaxHeapSizes() {
@@ -60,15 +66,31 @@ public class Capacita implements InputOutputMachine {
                 SuccessorVirtualMachine.EXPONENTIAL_GROWTH, 2047));
     }
     
-    private static void runTests() {
-        TestGroup[] allTests = {
+    private static TestGroup[] allTests() {
+        return new TestGroup[]{
             new AssemblerTests(),
             new SuccessorTests(),
             new DataTests(),
             new CompilerTests(),
-            new SyntaxHighlightTests()
+            new CollectionsTests(),
+            new IOTests(),
+            new SyntaxHighlightTests(),
+            new BenchmarkSuite()
         };
-        (new TestRunner(allTests)).runTests();
+    }
+    
+    private static void runTests() {
+        (new TestRunner(allTests())).runTests();
+    }
+    
+    /**
+     * Runs every test repeatedly and prints a table of its run times.
+     * @param warmupRuns runs of each test before measuring
+     * @param runs runs of each test measured
+     * @return whether every run of every test passed
+     */
+    public static boolean runBenchmarks(int warmupRuns, int runs) {
+        return (new TestRunner(allTests())).runBenchmarks(warmupRuns, runs);
     }
     
     /** Prints object to console; can be redirected to a file or other output.
@@ -84,6 +106,12 @@ public class Capacita implements InputOutputMachine {
         output.print(o);
     }
     
+    @Override
+    public boolean flush() {
+        output.flush();
+        return !output.checkError();
+    }
+    
     @Override
     public void printerr(Object o) {
         System.err.println(o);
@@ -1,42 +1,97 @@
 package capacita;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
- * Capacita object representing both user objects and environment frames.
+ * Capacita object representing user objects; environments are Frames.
+ * Property values live in a slot array laid out by the object's shape.
  * @author Jiangcheng Oliver Chu
  */
 class CapacitaObject {
-    private HashMap<String, CapacitaValue> bindings;
+    private static final long[] NO_SLOTS = new long[0];
+    private Shape shape;
+    /** Tagged values of properties, laid out by shape. */
+    private long[] slots;
     
     public CapacitaObject() {
-        bindings = new HashMap<String, CapacitaValue>();
+        shape = Shape.EMPTY;
+        slots = NO_SLOTS;
     }
     
-    public void assign(String variable, CapacitaValue value) {
-        bindings.put(variable, value);
+    Shape getShape() {
+        return shape;
     }
     
-    public CapacitaValue get(String variable) throws CapacitaException {
-        if (bindings.containsKey(variable)) {
-            return bindings.get(variable);
+    long getSlot(int slot) {
+        return slots[slot];
+    }
+    
+    void setSlot(int slot, long value) {
+        slots[slot] = value;
+    }
+    
+    /**
+     * Adds a property through a known transition. The new property must be
+     * the last slot of newShape.
+     * @param newShape the shape this object transitions to
+     * @param value value of the new property
+     */
+    void addProperty(Shape newShape, long value) {
+        int slot = newShape.propertyCount() - 1;
+        if (slot >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, 2 * slots.length));
+        }
+        slots[slot] = value;
+        shape = newShape;
+    }
+    
+    public void assign(String variable, long value) {
+        assign(SymbolTable.intern(variable), value);
+    }
+    
+    void assign(int variable, long value) {
+        int slot = shape.slotOf(variable);
+        if (slot < 0) {
+            addProperty(shape.withProperty(variable), value);
         } else {
+            slots[slot] = value;
+        }
+    }
+    
+    public long get(String variable) throws CapacitaException {
+        int slot = shape.slotOf(SymbolTable.lookup(variable));
+        if (slot < 0) {
             throw new CapacitaException("Variable " + variable +
                                     " used before assignment.");
         }
+        return slots[slot];
     }
     
     /**
-     * Deletes the key variable and the value associated with it.
+     * Deletes the key variable and the value associated with it. Objects
+     * that lose a property are given the shape of their remaining
+     * properties.
      * @param variable the string name of the variable
      * @return false iff variable was not defined before deletion.
      */
     public boolean delete(String variable) {
-        CapacitaValue removed = bindings.remove(variable);
-        return removed == null;
+        int removedSlot = shape.slotOf(SymbolTable.lookup(variable));
+        if (removedSlot < 0) {
+            return false;
+        }
+        Shape oldShape = shape;
+        long[] oldSlots = slots;
+        deleteAll();
+        for (int i = 0; i < oldShape.propertyCount(); i++) {
+            if (i != removedSlot) {
+                assign(oldShape.propertySymbol(i), oldSlots[i]);
+            }
+        }
+        return true;
     }
     
     public void deleteAll() {
-        bindings.clear();
+        shape = Shape.EMPTY;
+        slots = NO_SLOTS;
     }
 }
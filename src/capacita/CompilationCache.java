@@ -0,0 +1,241 @@
+package capacita;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * An on-disk cache of compiled bytecode, keyed by a hash of the source text
+ * and the compiler version. Entries are written atomically, so several
+ * processes may share one cache directory, and the least recently used
+ * entries are evicted once the directory grows past its size limit.
+ * @author Jiangcheng Oliver Chu
+ */
+public class CompilationCache {
+    /**
+     * Must change whenever the bytecode produced for a source changes, that
+     * is, with any change to the encoding in AssemblyScanner.
+     */
+    public static final String COMPILER_VERSION = "1.1";
+    private static final int MAGIC = 0x53554343;
+    private static final int HEADER_WORDS = 2;
+    private static final String SUFFIX = ".succ";
+    private static final String TEMPORARY_PREFIX = "entry";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    /** Age after which a temporary file is taken to be left by a crash. */
+    private static final long STALE_TEMPORARY_MILLIS = 10 * 60 * 1000;
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * @param cacheDirectory directory holding cache entries; created if
+     *                       it does not exist
+     * @param maxCacheBytes total size of entries above which the least
+     *                      recently used entries are evicted
+     * @throws IOException if the directory cannot be created
+     */
+    public CompilationCache(Path cacheDirectory, long maxCacheBytes)
+           throws IOException {
+        directory = cacheDirectory;
+        maxBytes = maxCacheBytes;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the cached bytecode of an assembly source, assembling and
+     * caching it on a miss.
+     * @param code Successor assembly
+     * @return the flattened program
+     * @throws InternalException if code cannot be assembled
+     * @throws IOException if the cache directory cannot be used
+     */
+    public int[] assemble(String code)
+           throws InternalException, IOException {
+        int[] program = get(code);
+        if (program == null) {
+            program = Assembler.flatCompileDirectly(code);
+            put(code, program);
+        }
+        return program;
+    }
+
+    /**
+     * Loads the cached bytecode of code by mapping its entry, and marks
+     * the entry as recently used.
+     * @param code source text
+     * @return the cached program, or null on a miss
+     * @throws IOException if the entry exists but cannot be read
+     */
+    public int[] get(String code) throws IOException {
+        Path entry = entryFor(code);
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(entry,
+                                       StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        IntBuffer words = mapped.asIntBuffer();
+        if (words.remaining() < HEADER_WORDS || words.get(0) != MAGIC ||
+            words.get(1) != words.remaining() - HEADER_WORDS) {
+            /* Damaged entry, such as one left by an older format. */
+            Files.deleteIfExists(entry);
+            return null;
+        }
+        int[] program = new int[words.get(1)];
+        words.position(HEADER_WORDS);
+        words.get(program);
+        try {
+            Files.setLastModifiedTime(entry,
+                FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            /* Evicted by another process after being mapped. */
+        }
+        return program;
+    }
+
+    /**
+     * Stores program as the bytecode of code. The entry is written to a
+     * temporary file and then moved into place, so readers never see a
+     * partially written entry.
+     * @param code source text
+     * @param program its flattened bytecode
+     * @throws IOException if the entry cannot be written
+     */
+    public void put(String code, int[] program) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(
+                           4 * (HEADER_WORDS + program.length));
+        bytes.asIntBuffer().put(MAGIC).put(program.length).put(program);
+        Path temporary = Files.createTempFile(directory,
+                             TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temporary,
+                                           StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            Files.move(temporary, entryFor(code),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size of the
+     * cache is within its limit. Temporary files left by writers that
+     * crashed are deleted first; those still being written count towards
+     * the size.
+     * @throws IOException if the directory cannot be listed
+     */
+    public void evict() throws IOException {
+        ArrayList<CacheEntry> entries = new ArrayList<CacheEntry>();
+        long totalBytes = deleteStaleTemporaries();
+        try (DirectoryStream<Path> stream =
+                 Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                try {
+                    CacheEntry entry = new CacheEntry(path);
+                    entries.add(entry);
+                    totalBytes += entry.size;
+                } catch (NoSuchFileException ex) {
+                    /* Deleted by another process while listing. */
+                }
+            }
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        Collections.sort(entries, new Comparator<CacheEntry>() {
+            @Override
+            public int compare(CacheEntry a, CacheEntry b) {
+                return Long.compare(a.lastUsed, b.lastUsed);
+            }
+        });
+        for (CacheEntry entry : entries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.path);
+            totalBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Deletes temporary files older than STALE_TEMPORARY_MILLIS.
+     * @return total size of the temporary files that are left
+     */
+    private long deleteStaleTemporaries() throws IOException {
+        long staleBefore = System.currentTimeMillis() - STALE_TEMPORARY_MILLIS;
+        long totalBytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                 directory, TEMPORARY_PREFIX + "*" + TEMPORARY_SUFFIX)) {
+            for (Path path : stream) {
+                try {
+                    CacheEntry temporary = new CacheEntry(path);
+                    if (temporary.lastUsed < staleBefore) {
+                        Files.deleteIfExists(path);
+                    } else {
+                        totalBytes += temporary.size;
+                    }
+                } catch (NoSuchFileException ex) {
+                    /* Moved into place or deleted while listing. */
+                }
+            }
+        }
+        return totalBytes;
+    }
+
+    private Path entryFor(String code) {
+        return directory.resolve(hash(code) + SUFFIX);
+    }
+
+    private static String hash(String code) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            /* Every Java platform is required to support SHA-256. */
+            throw new IllegalStateException(ex);
+        }
+        digest.update(COMPILER_VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] hashed = digest.digest(code.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(2 * hashed.length);
+        for (byte b : hashed) {
+            hex.append(Character.forDigit((b >>> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class CacheEntry {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        CacheEntry(Path entryPath) throws IOException {
+            path = entryPath;
+            size = Files.size(path);
+            lastUsed = Files.getLastModifiedTime(path).toMillis();
+        }
+    }
+}
@@ -1,233 +1,377 @@
 package capacita;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 
 /**
- * A linked-list of chars that avoids taking up large amounts of memory.
+ * A deque of chars that avoids taking up large amounts of memory. Chars are
+ * stored in fixed-size blocks, found through a directory of blocks, between
+ * a head index and a tail index. Any char, including '\0', can be stored.
  * Intended as a stack and a queue.
  * @author Jiangcheng Oliver Chu
  */
 public class DenseLinkedList {
-    private CharNodeBundle eldest = null;
-    private CharNodeBundle youngest = null;
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    private static final int INITIAL_BLOCKS = 4;
+    /** Most lists kept for reuse by each thread. */
+    private static final int POOL_LIMIT = 16;
+    private static final ThreadLocal<ArrayDeque<DenseLinkedList>> POOL =
+        new ThreadLocal<ArrayDeque<DenseLinkedList>>() {
+            @Override
+            protected ArrayDeque<DenseLinkedList> initialValue() {
+                return new ArrayDeque<DenseLinkedList>();
+            }
+        };
+    /** Retained for compatibility; '\0' is now an ordinary element. */
     public static final char NIL = 0;
-    private int writePosition = 0;
-    private int readPosition = 0;
-    
+    private char[][] blocks = new char[INITIAL_BLOCKS][];
+    /** Index of the oldest char, counted from the start of blocks[0]. */
+    private int head = 0;
+    /** Index just past the youngest char. */
+    private int tail = 0;
+    /** Whether this list was recycled and not obtained again since. */
+    private boolean isRecycled = false;
+
     public DenseLinkedList() {}
-    
+
+    /**
+     * Returns an empty list from this thread's pool, keeping up to
+     * INITIAL_BLOCKS of the blocks it had allocated, or a new list if the
+     * pool is empty.
+     * @return an empty list
+     */
+    public static DenseLinkedList obtain() {
+        DenseLinkedList pooled = POOL.get().poll();
+        if (pooled == null) {
+            return new DenseLinkedList();
+        }
+        pooled.isRecycled = false;
+        return pooled;
+    }
+
+    /**
+     * Clears this list and returns it to this thread's pool. Blocks beyond
+     * the first INITIAL_BLOCKS are dropped, so that the pool does not hold
+     * on to the longest list it has seen. This list must not be used again
+     * by the caller afterwards.
+     * @throws IllegalStateException if this list was already recycled
+     */
+    public void recycle() {
+        if (isRecycled) {
+            throw new IllegalStateException("List recycled twice.");
+        }
+        isRecycled = true;
+        clear();
+        if (blocks.length > INITIAL_BLOCKS) {
+            blocks = Arrays.copyOf(blocks, INITIAL_BLOCKS);
+        }
+        ArrayDeque<DenseLinkedList> pool = POOL.get();
+        if (pool.size() < POOL_LIMIT) {
+            pool.push(this);
+        }
+    }
+
+    /**
+     * Removes every char, keeping allocated blocks for reuse.
+     */
+    public void clear() {
+        head = 0;
+        tail = 0;
+    }
+
+    public int size() {
+        return tail - head;
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Returns the char at index, counting from the oldest char.
+     * @param index from 0 to size() - 1
+     * @return the char at index
+     */
+    public char get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(
+                "Index " + index + " in char queue of size " + size());
+        }
+        int position = head + index;
+        return blocks[position >>> BLOCK_SHIFT][position & BLOCK_MASK];
+    }
+
     public void push(char c) {
-        if (eldest == null || youngest == null) {
-            eldest = new CharNodeBundle();
-            youngest = eldest;
-            writeToCurrent(c);
-        } else {
-            if (youngest.isFull()) {
-                CharNodeBundle newChild = new CharNodeBundle();
-                connect(youngest, newChild);
-                youngest = newChild;
-                writeToCurrent(c);
+        if ((tail & BLOCK_MASK) == 0) {
+            ensureBlock();
+        }
+        blocks[tail >>> BLOCK_SHIFT][tail & BLOCK_MASK] = c;
+        tail++;
+    }
+
+    /**
+     * Pushes every char of s, copying a block at a time.
+     * @param s chars to push, oldest first
+     */
+    public void pushAll(CharSequence s) {
+        int length = s.length();
+        int copied = 0;
+        while (copied < length) {
+            if ((tail & BLOCK_MASK) == 0) {
+                ensureBlock();
+            }
+            char[] block = blocks[tail >>> BLOCK_SHIFT];
+            int offset = tail & BLOCK_MASK;
+            int count = Math.min(length - copied, BLOCK_SIZE - offset);
+            if (s instanceof String) {
+                ((String) s).getChars(copied, copied + count, block, offset);
             } else {
-                writeToCurrent(c);
+                for (int i = 0; i < count; i++) {
+                    block[offset + i] = s.charAt(copied + i);
+                }
             }
+            copied += count;
+            tail += count;
         }
     }
-    
-    private void connect(CharNodeBundle parent, CharNodeBundle child) {
-        parent.setChild(child);
-        child.setParent(parent);
+
+    /**
+     * Makes sure a block exists at the tail, which must be at the start of
+     * a block. Blocks already consumed at the head are recycled before the
+     * directory is grown.
+     */
+    private void ensureBlock() {
+        int blockIndex = tail >>> BLOCK_SHIFT;
+        if (blockIndex == blocks.length) {
+            int freeBlocks = head >>> BLOCK_SHIFT;
+            if (freeBlocks > 0) {
+                char[][] moved = new char[blocks.length][];
+                int liveBlocks = blocks.length - freeBlocks;
+                System.arraycopy(blocks, freeBlocks, moved, 0, liveBlocks);
+                System.arraycopy(blocks, 0, moved, liveBlocks, freeBlocks);
+                blocks = moved;
+                head -= freeBlocks << BLOCK_SHIFT;
+                tail -= freeBlocks << BLOCK_SHIFT;
+                blockIndex -= freeBlocks;
+            } else {
+                char[][] grown = new char[2 * blocks.length][];
+                System.arraycopy(blocks, 0, grown, 0, blocks.length);
+                blocks = grown;
+            }
+        }
+        if (blocks[blockIndex] == null) {
+            blocks[blockIndex] = new char[BLOCK_SIZE];
+        }
     }
-    
+
     public char poll() throws NoSuchElementException {
-        char result = NIL;
-        if (eldest == null) {
+        if (head == tail) {
             throw new NoSuchElementException(
-                "No elements ever added to this char queue.");
-        }
-        while (result == NIL) {
-            if (readPosition > writePosition) {
-                throw new NoSuchElementException(
-                          "Char queue has no more elements.");
-            }
-            result = eldest.read(readPosition & 0x3);
-            checkDepletion();
+                      "Char queue has no more elements.");
         }
+        char result = blocks[head >>> BLOCK_SHIFT][head & BLOCK_MASK];
+        head++;
+        checkDepletion();
         return result;
     }
-    
+
     public char pop() throws NoSuchElementException {
-        char result = NIL;
-        if (eldest == null) {
-            throw new NoSuchElementException(
-                "No elements ever added to this char stack.");
-        }
-        if (youngest == null) {
+        if (head == tail) {
             throw new NoSuchElementException(
-                "No elements left in the stack.");
-        }
-        while (result == NIL) {
-            writePosition--;
-            if (writePosition < 0) {
-                throw new NoSuchElementException(
-                          "Char stack has no more elements.");
-            }
-            result = youngest.skim(writePosition & 0x3);
-            checkEmptyStack();
+                      "Char stack has no more elements.");
         }
+        tail--;
+        char result = blocks[tail >>> BLOCK_SHIFT][tail & BLOCK_MASK];
+        checkDepletion();
         return result;
     }
-    
-    private void checkEmptyStack() {
-        if (youngest.isComplementary()) {
-            youngest = youngest.getParent();
+
+    /**
+     * Once empty, starts again from the first block, so that allocated
+     * blocks are reused instead of the directory growing.
+     */
+    private void checkDepletion() {
+        if (head == tail) {
+            head = 0;
+            tail = 0;
         }
     }
-    
-    private void checkDepletion() {
-        if (eldest.isDepleted()) {
-            eldest = eldest.getChild();
+
+    /**
+     * Removes the oldest chars into destination, copying a block at a time.
+     * @param destination array receiving chars, oldest first
+     * @return the number of chars removed, which is the smaller of size()
+     *         and destination.length
+     */
+    public int drainTo(char[] destination) {
+        int total = Math.min(size(), destination.length);
+        int copied = 0;
+        while (copied < total) {
+            int offset = head & BLOCK_MASK;
+            int count = Math.min(total - copied, BLOCK_SIZE - offset);
+            System.arraycopy(blocks[head >>> BLOCK_SHIFT], offset,
+                             destination, copied, count);
+            copied += count;
+            head += count;
         }
-        readPosition++;
+        checkDepletion();
+        return total;
     }
-    
-    private void writeToCurrent(char c) {
-        youngest.write(c, writePosition & 0x3);
-        writePosition++;
+
+    /**
+     * Iterates over the chars from oldest to youngest without removing
+     * them. The list must not be modified during iteration.
+     * @return an iterator over the chars of this
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new CharIterator(false);
     }
-    
+
     /**
-     * Destroys this queue and returns a string representation of it,
-     * ignoring NIL characters.
-     * @return this, as a string
+     * Iterates over the chars from youngest to oldest without removing
+     * them. The list must not be modified during iteration.
+     * @return an iterator over the chars of this, in stack order
      */
-    public String convertToString() {
-        String result = "";
-        for (;;) {
-            try {
-                result += poll();
-            } catch (NoSuchElementException ex) {
-                break;
+    public PrimitiveIterator.OfInt reversedIterator() {
+        return new CharIterator(true);
+    }
+
+    /**
+     * Returns a read-only view of the chars of this, from oldest to
+     * youngest. Nothing is copied, and the view reflects later changes.
+     * @return this, as a CharSequence
+     */
+    public CharSequence asCharSequence() {
+        return new CharView(false, 0, -1);
+    }
+
+    /**
+     * Returns a read-only view of the chars of this, from youngest to
+     * oldest. Nothing is copied, and the view reflects later changes.
+     * @return this reversed, as a CharSequence
+     */
+    public CharSequence asReversedCharSequence() {
+        return new CharView(true, 0, -1);
+    }
+
+    private char charAtPosition(int position) {
+        return blocks[position >>> BLOCK_SHIFT][position & BLOCK_MASK];
+    }
+
+    private class CharIterator implements PrimitiveIterator.OfInt {
+        private final boolean isReversed;
+        private int remaining;
+
+        CharIterator(boolean reversed) {
+            isReversed = reversed;
+            remaining = size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException(
+                          "Char queue has no more elements.");
             }
+            remaining--;
+            return charAtPosition(isReversed ? head + remaining :
+                                               tail - 1 - remaining);
         }
-        return "CharLinkedList[\"" + result + "\"]";
     }
-    
+
     /**
-     * Returns a string representation of this, without mutating this.
-     * @return 
+     * A view of the chars from index start onwards, in either direction.
+     * A view of fixed length comes from subSequence; otherwise the length
+     * follows the list.
      */
-    @Override
-    public String toString() {
-        String result = "";
-        CharNodeBundle originalFollower = eldest;
-        while (eldest != null) {
-            result += eldest.toString();
-            eldest = eldest.getChild();
+    private class CharView implements CharSequence {
+        private final boolean isReversed;
+        private final int start;
+        private final int fixedLength;
+
+        CharView(boolean reversed, int startIndex, int viewLength) {
+            isReversed = reversed;
+            start = startIndex;
+            fixedLength = viewLength;
         }
-        eldest = originalFollower;
-        return "CharLinkedList[\"" + result + "\"]";
-    }
-    
-    public String convertToReversedString() {
-        String result = "";
-        for (;;) {
-            try {
-                result += pop();
-            } catch (NoSuchElementException ex) {
-                break;
+
+        @Override
+        public int length() {
+            return fixedLength < 0 ? size() - start : fixedLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException(
+                    "Index " + index + " in char view of length " +
+                    length());
             }
+            int offset = start + index;
+            return charAtPosition(isReversed ? tail - 1 - offset :
+                                               head + offset);
         }
-        return "CharLinkedList[\"" + result + "\"]";
-    }
-    
-    private class CharNodeBundle {
-        private long contents = 0;
-        private byte writtenTo = 0;
-        private byte readFrom = 0;
-        private static final long MASK = 0xffff;
-        private CharNodeBundle child;
-        private CharNodeBundle parent;
-        
-        CharNodeBundle(CharNodeBundle rest) {
-            child = rest;
-            parent = null;
-        }
-        
-        CharNodeBundle() {
-            this(null);
-        }
-        
-        CharNodeBundle getChild() {
-            return child;
-        }
-        
-        void setChild(CharNodeBundle rest) {
-            child = rest;
-        }
-        
-        void setParent(CharNodeBundle ancestor) {
-            parent = ancestor;
-        }
-        
-        CharNodeBundle getParent() {
-            return parent;
-        }
-        
-        boolean isFull() {
-            return writtenTo == (byte) 0xf;
-        }
-        
-        boolean isDepleted() {
-            return readFrom == (byte) 0xf;
-        }
-        
-        /**
-         * Returns true iff the bits read are exactly those that
-         * have been written.
-         * @return true iff all reads complement all writes
-         */
-        boolean isComplementary() {
-            return (readFrom ^ writtenTo) == (byte) 0;
-        }
-        
-        void write(char c, int position) {
-            int index = position << 4;
-            contents &= ~(MASK << index);
-            contents |= ((long) c) << index;
-            writtenTo |= 1 << position;
-        }
-        
-        char read(int position) {
-            int index = position << 4;
-            readFrom |= 1 << position;
-            return (char) ((contents & (MASK << index)) >>> index);
-        }
-
-        char skim(int position) {
-            int index = position << 4;
-            char result = (char) ((contents & (MASK << index)) >>> index);
-            if (result == NIL) {
-                return NIL;
-            } else {
-                readFrom |= 1 << position;
-                return result;
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException(
+                    "Range " + from + " to " + to + " in char view of " +
+                    "length " + length());
             }
+            return new CharView(isReversed, start + from, to - from);
         }
 
         @Override
         public String toString() {
-            String result = "";
-            for (int i = 0; i < 4; i++) {
-                long position = i << 4;
-                char appendable =
-                     (char) ((contents & (MASK << position)) >>> position);
-                if (appendable == NIL) {
-                    result += "\\0";
-                } else {
-                    result += appendable;
-                }
+            int length = length();
+            StringBuilder result = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                result.append(charAt(i));
             }
-            return result;
+            return result.toString();
+        }
+    }
+
+    /**
+     * Destroys this queue and returns a string representation of it.
+     * @return this, as a string
+     */
+    public String convertToString() {
+        char[] contents = new char[size()];
+        drainTo(contents);
+        return "CharLinkedList[\"" + new String(contents) + "\"]";
+    }
+
+    /**
+     * Returns a string representation of this, without mutating this.
+     * @return this, as a string
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(size() + 18);
+        result.append("CharLinkedList[\"");
+        for (int i = head; i < tail; i++) {
+            result.append(charAtPosition(i));
+        }
+        return result.append("\"]").toString();
+    }
+
+    public String convertToReversedString() {
+        StringBuilder result = new StringBuilder(size() + 18);
+        result.append("CharLinkedList[\"");
+        while (!isEmpty()) {
+            result.append(pop());
         }
+        return result.append("\"]").toString();
     }
 }
@@ -0,0 +1,191 @@
+package capacita;
+
+import java.util.Arrays;
+
+/**
+ * An environment frame. Variables resolved at compile time live in an array
+ * of locals, addressed by a (depth, slot) pair. Other variables, such as
+ * dynamic globals, are mapped from their symbol IDs to their values with
+ * open addressing and linear probing. Neither lookups nor misses hash
+ * strings, box keys or throw.
+ * @author Jiangcheng Oliver Chu
+ */
+public class Frame {
+    private static final int NO_SYMBOL = -1;
+    private static final int DEFAULT_CAPACITY = 8;
+    /** Shared by frames with no symbol-keyed variables; never written. */
+    private static final int[] NO_SYMBOLS = {NO_SYMBOL, NO_SYMBOL};
+    private static final long[] NO_VALUES = {Values.UNDEFINED,
+                                             Values.UNDEFINED};
+    private final Frame parent;
+    /** This frame and its enclosing frames, outermost first. */
+    private final Frame[] display;
+    private final long[] locals;
+    private int[] symbols;
+    private long[] values;
+    /** Leaves as many high bits of a hash as index the table. */
+    private int hashShift;
+    private int size;
+
+    /**
+     * @param enclosing frame searched by lookup after this one, or null
+     */
+    public Frame(Frame enclosing) {
+        this(enclosing, 0);
+    }
+
+    /**
+     * @param enclosing lexically enclosing frame, or null
+     * @param localCount number of slots resolved by ScopeResolver
+     */
+    public Frame(Frame enclosing, int localCount) {
+        parent = enclosing;
+        if (enclosing == null) {
+            display = new Frame[]{this};
+        } else {
+            /* Copying the display here makes access at any depth a single
+             * array index. */
+            display = Arrays.copyOf(enclosing.display,
+                                    enclosing.display.length + 1);
+            display[enclosing.display.length] = this;
+        }
+        locals = new long[localCount];
+        Arrays.fill(locals, Values.UNDEFINED);
+        symbols = NO_SYMBOLS;
+        values = NO_VALUES;
+        hashShift = Integer.numberOfLeadingZeros(NO_SYMBOLS.length) + 1;
+        size = 0;
+    }
+
+    public Frame getParent() {
+        return parent;
+    }
+
+    /**
+     * @param depth number of frames outwards from this one
+     * @param slot index among the locals of that frame
+     * @return the value in the slot, or Values.UNDEFINED if it is unset
+     */
+    public long getLocal(int depth, int slot) {
+        return display[display.length - 1 - depth].locals[slot];
+    }
+
+    public void setLocal(int depth, int slot, long value) {
+        display[display.length - 1 - depth].locals[slot] = value;
+    }
+
+    private void allocate(int tableSize) {
+        symbols = new int[tableSize];
+        Arrays.fill(symbols, NO_SYMBOL);
+        values = new long[tableSize];
+        Arrays.fill(values, Values.UNDEFINED);
+        hashShift = Integer.numberOfLeadingZeros(tableSize) + 1;
+        size = 0;
+    }
+
+    private int homeSlot(int symbol) {
+        return (symbol * 0x9e3779b9) >>> hashShift;
+    }
+
+    private int slotOf(int symbol) {
+        int mask = symbols.length - 1;
+        int slot = homeSlot(symbol);
+        while (symbols[slot] != NO_SYMBOL && symbols[slot] != symbol) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param symbol a symbol ID from SymbolTable
+     * @return the value of symbol in this frame alone, or
+     *         Values.UNDEFINED if this frame does not define it
+     */
+    public long get(int symbol) {
+        return values[slotOf(symbol)];
+    }
+
+    /**
+     * @param symbol a symbol ID from SymbolTable
+     * @return the value of symbol in the nearest frame defining it, or
+     *         Values.UNDEFINED if no enclosing frame defines it
+     */
+    public long lookup(int symbol) {
+        for (Frame frame = this; frame != null; frame = frame.parent) {
+            long value = frame.values[frame.slotOf(symbol)];
+            if (value != Values.UNDEFINED) {
+                return value;
+            }
+        }
+        return Values.UNDEFINED;
+    }
+
+    /**
+     * @param symbol a symbol ID from SymbolTable
+     * @param value new value of symbol in this frame; must be defined
+     */
+    public void assign(int symbol, long value) {
+        if (symbols == NO_SYMBOLS) {
+            allocate(2 * DEFAULT_CAPACITY);
+        }
+        int slot = slotOf(symbol);
+        if (symbols[slot] == NO_SYMBOL) {
+            if (2 * (size + 1) > symbols.length) {
+                rehash(2 * symbols.length);
+                slot = slotOf(symbol);
+            }
+            symbols[slot] = symbol;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Removes symbol from this frame, shifting later entries of its probe
+     * run back so that no tombstones are needed.
+     * @return false iff symbol was not defined in this frame
+     */
+    public boolean delete(int symbol) {
+        int mask = symbols.length - 1;
+        int slot = slotOf(symbol);
+        if (symbols[slot] == NO_SYMBOL) {
+            return false;
+        }
+        int next = (slot + 1) & mask;
+        while (symbols[next] != NO_SYMBOL) {
+            int home = homeSlot(symbols[next]);
+            /* Move the entry back unless its home lies cyclically in
+             * (slot, next]. */
+            boolean stays = slot <= next ? (slot < home && home <= next) :
+                                           (slot < home || home <= next);
+            if (!stays) {
+                symbols[slot] = symbols[next];
+                values[slot] = values[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        symbols[slot] = NO_SYMBOL;
+        values[slot] = Values.UNDEFINED;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the number of symbol-keyed variables in this frame
+     */
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int tableSize) {
+        int[] oldSymbols = symbols;
+        long[] oldValues = values;
+        allocate(tableSize);
+        for (int i = 0; i < oldSymbols.length; i++) {
+            if (oldSymbols[i] != NO_SYMBOL) {
+                assign(oldSymbols[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package capacita;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reassembles edited Successor source by re-encoding only the lines that
+ * changed. Encoded words are remembered per line of source text. The
+ * current lines and their words are kept in a gap buffer, so an edit only
+ * moves the lines between it and the previous edit, and the flat program is
+ * built again only when it is read. Only the most recently used lines are
+ * remembered, so a long editing session does not keep every line it has
+ * ever seen.
+ * @author Jiangcheng Oliver Chu
+ */
+public class IncrementalAssembler {
+    public static final int MAX_CACHED_LINES = 1 << 12;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final AssemblyScanner scanner;
+    private final LineCache encodedLines;
+    /** Lines of the source, with gapEnd - gapStart unused slots. */
+    private String[] lines;
+    /** Two encoded words for each slot of lines. */
+    private int[] words;
+    private int gapStart;
+    private int gapEnd;
+    /** The flattened program, or null until it is next read. */
+    private int[] program;
+
+    public IncrementalAssembler() {
+        scanner = new AssemblyScanner();
+        encodedLines = new LineCache();
+        lines = new String[INITIAL_CAPACITY];
+        words = new int[2 * INITIAL_CAPACITY];
+        gapStart = 0;
+        gapEnd = INITIAL_CAPACITY;
+        program = new int[0];
+    }
+
+    /**
+     * @return the flattened program, built from the gap buffer if it was
+     *         edited since it was last read
+     */
+    public int[] getProgram() {
+        if (program == null) {
+            int tail = lines.length - gapEnd;
+            program = new int[2 * (gapStart + tail)];
+            System.arraycopy(words, 0, program, 0, 2 * gapStart);
+            System.arraycopy(words, 2 * gapEnd, program, 2 * gapStart,
+                             2 * tail);
+        }
+        return program;
+    }
+
+    public int getLineCount() {
+        return lines.length - (gapEnd - gapStart);
+    }
+
+    /**
+     * @return number of distinct lines whose encoding is remembered, at
+     *         most MAX_CACHED_LINES
+     */
+    public int getCachedLineCount() {
+        return encodedLines.size();
+    }
+
+    /**
+     * Reassembles a new version of the whole source. Lines shared with the
+     * start and end of the previous version are kept as they are, and only
+     * lines in between are looked up or encoded.
+     * @param code new version of the source
+     * @return the flattened program
+     * @throws InternalException if any changed line cannot be assembled
+     */
+    public int[] update(String code) throws InternalException {
+        ArrayList<String> newLines = splitLines(code);
+        int oldSize = getLineCount();
+        int newSize = newLines.size();
+        int prefix = 0;
+        while (prefix < oldSize && prefix < newSize &&
+               line(prefix).equals(newLines.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldSize - prefix && suffix < newSize - prefix &&
+               line(oldSize - 1 - suffix).equals(
+                   newLines.get(newSize - 1 - suffix))) {
+            suffix++;
+        }
+        List<String> inserted = newLines.subList(prefix, newSize - suffix);
+        splice(prefix, oldSize - prefix - suffix, inserted);
+        return getProgram();
+    }
+
+    /**
+     * Replaces some lines of the current source with new text. Only the
+     * inserted lines are encoded, and only the lines between this edit and
+     * the previous one are moved, so edits near each other do not depend on
+     * the size of the source. Read the result with getProgram().
+     * @param firstLine zero-based index of the first replaced line
+     * @param removedCount number of lines removed
+     * @param insertedText lines to insert, separated by newlines
+     * @throws InternalException if any inserted line cannot be assembled
+     */
+    public void edit(int firstLine, int removedCount, String insertedText)
+           throws InternalException {
+        if (firstLine < 0 || removedCount < 0 ||
+            firstLine + removedCount > getLineCount()) {
+            throw new InternalException("Edit of lines " + firstLine +
+                          " to " + (firstLine + removedCount) +
+                          " is outside of " + getLineCount() + " lines.");
+        }
+        List<String> inserted = insertedText.isEmpty() ?
+                                new ArrayList<String>() :
+                                splitLines(insertedText);
+        splice(firstLine, removedCount, inserted);
+    }
+
+    private String line(int index) {
+        return lines[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    /**
+     * Replaces removedCount lines at firstLine with the inserted lines and
+     * their encoded words. The current source is left untouched if any line
+     * fails.
+     */
+    private void splice(int firstLine, int removedCount,
+                        List<String> inserted) throws InternalException {
+        int[] middle = new int[2 * inserted.size()];
+        for (int i = 0; i < inserted.size(); i++) {
+            encode(inserted.get(i), firstLine + i, middle, 2 * i);
+        }
+        moveGap(firstLine);
+        Arrays.fill(lines, gapEnd, gapEnd + removedCount, null);
+        gapEnd += removedCount;
+        ensureGap(inserted.size());
+        for (int i = 0; i < inserted.size(); i++) {
+            lines[gapStart + i] = inserted.get(i);
+        }
+        System.arraycopy(middle, 0, words, 2 * gapStart, middle.length);
+        gapStart += inserted.size();
+        program = null;
+    }
+
+    /**
+     * Moves the gap so that it starts before the line at index.
+     */
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(lines, index, lines, gapEnd - count, count);
+            System.arraycopy(words, 2 * index, words, 2 * (gapEnd - count),
+                             2 * count);
+            Arrays.fill(lines, index, Math.min(gapStart, gapEnd - count),
+                        null);
+            gapStart -= count;
+            gapEnd -= count;
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(lines, gapEnd, lines, gapStart, count);
+            System.arraycopy(words, 2 * gapEnd, words, 2 * gapStart,
+                             2 * count);
+            Arrays.fill(lines, Math.max(gapEnd, index), gapEnd + count,
+                        null);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    /**
+     * Grows the buffer, if needed, so the gap holds at least count lines.
+     */
+    private void ensureGap(int count) {
+        if (gapEnd - gapStart >= count) {
+            return;
+        }
+        int tail = lines.length - gapEnd;
+        int capacity = Math.max(2 * lines.length,
+                                gapStart + count + tail);
+        String[] grownLines = new String[capacity];
+        int[] grownWords = new int[2 * capacity];
+        System.arraycopy(lines, 0, grownLines, 0, gapStart);
+        System.arraycopy(words, 0, grownWords, 0, 2 * gapStart);
+        System.arraycopy(lines, gapEnd, grownLines, capacity - tail, tail);
+        System.arraycopy(words, 2 * gapEnd, grownWords,
+                         2 * (capacity - tail), 2 * tail);
+        lines = grownLines;
+        words = grownWords;
+        gapEnd = capacity - tail;
+    }
+
+    private void encode(String line, int lineNumber, int[] out, int offset)
+            throws InternalException {
+        Long words = encodedLines.get(line);
+        if (words == null) {
+            try {
+                scanner.encodeLine(line, 0, line.length(), out, offset);
+            } catch (InternalException ex) {
+                throw AssemblyScanner.atLine(lineNumber, ex);
+            }
+            encodedLines.put(line, ((long) out[offset] << 32) |
+                                   (out[offset + 1] & 0xffffffffL));
+        } else {
+            out[offset] = (int) (words >>> 32);
+            out[offset + 1] = (int) (long) words;
+        }
+    }
+
+    /**
+     * Splits code into lines. Like String.split, trailing empty lines are
+     * ignored.
+     */
+    private static ArrayList<String> splitLines(String code) {
+        ArrayList<String> result = new ArrayList<String>();
+        int end = code.length();
+        while (end > 0 && code.charAt(end - 1) == '\n') {
+            end--;
+        }
+        int lineStart = 0;
+        while (lineStart < end) {
+            int lineEnd = code.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            result.add(code.substring(lineStart, lineEnd));
+            lineStart = lineEnd + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Encoded words of each line of source text, in order of last use.
+     */
+    private static class LineCache extends LinkedHashMap<String, Long> {
+        private static final long serialVersionUID = 1L;
+
+        LineCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_CACHED_LINES;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package capacita;
+
+/**
+ * Counts of how the inline caches of one kind of site in a VM have fared,
+ * for profiling.
+ * @author Jiangcheng Oliver Chu
+ */
+public class InlineCacheStatistics {
+    private int monomorphicSites = 0;
+    private int polymorphicSites = 0;
+    private int megamorphicSites = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long megamorphicHits = 0;
+    private long megamorphicMisses = 0;
+
+    InlineCacheStatistics(PropertyCache[] caches, MegamorphicCache shared) {
+        for (PropertyCache cache : caches) {
+            if (cache == null) {
+                continue;
+            }
+            if (cache.isMegamorphic()) {
+                megamorphicSites++;
+            } else if (cache.getShapeCount() > 1) {
+                polymorphicSites++;
+            } else {
+                monomorphicSites++;
+            }
+            hits += cache.getHits();
+            misses += cache.getMisses();
+        }
+        megamorphicHits = shared.getHits();
+        megamorphicMisses = shared.getMisses();
+    }
+
+    /**
+     * @return number of executed sites that have seen at most one shape
+     */
+    public int getMonomorphicSites() {
+        return monomorphicSites;
+    }
+
+    public int getPolymorphicSites() {
+        return polymorphicSites;
+    }
+
+    public int getMegamorphicSites() {
+        return megamorphicSites;
+    }
+
+    /**
+     * @return number of accesses whose shape was in the site's own cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of misses of megamorphic sites found in the shared
+     *         megamorphic cache; these are shared by every kind of site
+     */
+    public long getMegamorphicHits() {
+        return megamorphicHits;
+    }
+
+    public long getMegamorphicMisses() {
+        return megamorphicMisses;
+    }
+
+    /**
+     * @return fraction of accesses that hit the site's own cache, or 0 if
+     *         there were no accesses
+     */
+    public double getHitRate() {
+        long accesses = hits + misses;
+        return accesses == 0 ? 0.0 : (double) hits / accesses;
+    }
+
+    @Override
+    public String toString() {
+        return "Sites: " + monomorphicSites + " monomorphic, " +
+               polymorphicSites + " polymorphic, " + megamorphicSites +
+               " megamorphic. Hits: " + hits + ", misses: " + misses +
+               ", megamorphic cache hits: " + megamorphicHits +
+               ", megamorphic cache misses: " + megamorphicMisses + ".";
+    }
+}
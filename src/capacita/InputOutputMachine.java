@@ -6,7 +6,7 @@ import java.io.IOException;
  * Interface requiring reading input, and writing to normal/debug output.
  * @author Jiangcheng Oliver Chu
  */
-interface InputOutputMachine {
+public interface InputOutputMachine {
     void println(Object o);
     void print(Object o);
     void printerr(Object o);
@@ -14,4 +14,10 @@ interface InputOutputMachine {
     void debugln(Object o);
     void debugerr(Object o);
     String getln() throws IOException;
+
+    /**
+     * Writes out any output held back by this machine.
+     * @return false iff writing output has failed
+     */
+    boolean flush();
 }
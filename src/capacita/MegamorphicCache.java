@@ -0,0 +1,45 @@
+package capacita;
+
+/**
+ * A direct-mapped cache from (shape, property) pairs to slots, shared by
+ * every megamorphic access site of one VM. Sites that see too many shapes
+ * to cache their own still avoid most lookups in shapes this way.
+ * @author Jiangcheng Oliver Chu
+ */
+class MegamorphicCache {
+    private static final int INDEX_BITS = 10;
+    private static final int SIZE = 1 << INDEX_BITS;
+    private final Shape[] shapes = new Shape[SIZE];
+    private final int[] properties = new int[SIZE];
+    private final int[] slots = new int[SIZE];
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param shape shape of the receiver
+     * @param property a symbol ID from SymbolTable
+     * @return the slot of property in shape, or -1 if shape lacks it
+     */
+    int slotOf(Shape shape, int property) {
+        int index = ((shape.id * 31 + property) * 0x9e3779b9) >>>
+                    (32 - INDEX_BITS);
+        if (shapes[index] == shape && properties[index] == property) {
+            hits++;
+            return slots[index];
+        }
+        misses++;
+        int slot = shape.slotOf(property);
+        shapes[index] = shape;
+        properties[index] = property;
+        slots[index] = slot;
+        return slot;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+}
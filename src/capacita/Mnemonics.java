@@ -32,6 +32,10 @@ public class Mnemonics {
     public static final int SAVE = 0x18;
     public static final int PUSH = 0x19;
     public static final int POP = 0x1a;
+    public static final int LOADLEX = 0x1b;
+    public static final int SAVELEX = 0x1c;
+    public static final int LOADNAME = 0x1d;
+    public static final int SAVENAME = 0x1e;
     
     public static final int INT = 0x0;
     public static final int DBL = 0x1;
@@ -0,0 +1,115 @@
+package capacita;
+
+/**
+ * An inline cache for one property-access or method-call site in the
+ * bytecode. It remembers the slot of its property for the receiver shapes
+ * it has seen, so that repeated access on objects of those shapes is an
+ * array index. A site starts out monomorphic and becomes polymorphic as it
+ * sees more shapes. A site that sees more shapes than the cache holds is
+ * megamorphic, and falls back to the VM's shared MegamorphicCache.
+ * @author Jiangcheng Oliver Chu
+ */
+class PropertyCache {
+    static final int POLYMORPHIC_LIMIT = 4;
+    /** Symbol ID of the property accessed. */
+    private final int property;
+    private final MegamorphicCache megamorphicCache;
+    private final Shape[] shapes = new Shape[POLYMORPHIC_LIMIT];
+    /** Shape after a write; differs from shapes[i] when a write adds. */
+    private final Shape[] targetShapes = new Shape[POLYMORPHIC_LIMIT];
+    private final int[] slots = new int[POLYMORPHIC_LIMIT];
+    private int size = 0;
+    private boolean isMegamorphic = false;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param propertySymbol symbol ID of the property accessed
+     * @param sharedCache cache used once this site is megamorphic
+     */
+    PropertyCache(int propertySymbol, MegamorphicCache sharedCache) {
+        property = propertySymbol;
+        megamorphicCache = sharedCache;
+    }
+
+    boolean isMegamorphic() {
+        return isMegamorphic;
+    }
+
+    /**
+     * @return the number of receiver shapes cached by this site
+     */
+    int getShapeCount() {
+        return size;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the value of the property of receiver, or Values.UNDEFINED if
+     *         it lacks it
+     */
+    long read(CapacitaObject receiver) {
+        Shape shape = receiver.getShape();
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                hits++;
+                return receiver.getSlot(slots[i]);
+            }
+        }
+        misses++;
+        int slot = slotOf(shape);
+        if (slot < 0) {
+            return Values.UNDEFINED;
+        }
+        remember(shape, shape, slot);
+        return receiver.getSlot(slot);
+    }
+
+    void write(CapacitaObject receiver, long value) {
+        Shape shape = receiver.getShape();
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                hits++;
+                if (targetShapes[i] == shape) {
+                    receiver.setSlot(slots[i], value);
+                } else {
+                    receiver.addProperty(targetShapes[i], value);
+                }
+                return;
+            }
+        }
+        misses++;
+        int slot = slotOf(shape);
+        if (slot < 0) {
+            Shape target = shape.withProperty(property);
+            receiver.addProperty(target, value);
+            remember(shape, target, target.propertyCount() - 1);
+        } else {
+            receiver.setSlot(slot, value);
+            remember(shape, shape, slot);
+        }
+    }
+
+    private int slotOf(Shape shape) {
+        return isMegamorphic ? megamorphicCache.slotOf(shape, property) :
+                               shape.slotOf(property);
+    }
+
+    private void remember(Shape shape, Shape target, int slot) {
+        if (size < POLYMORPHIC_LIMIT) {
+            shapes[size] = shape;
+            targetShapes[size] = target;
+            slots[size] = slot;
+            size++;
+        } else {
+            isMegamorphic = true;
+        }
+    }
+}
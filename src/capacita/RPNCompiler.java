@@ -1,83 +1,106 @@
 package capacita;
 
-import java.util.LinkedList;
+import capacita.collections.IntStack;
 
 /**
  * Compiles reverse polish notation into Successor instructions.
  * @author Jiangcheng Oliver Chu
  */
 public class RPNCompiler {
-    private DenseLinkedList stack = new DenseLinkedList();
-    private String code;
+    private IntStack stack = new IntStack();
+    private CharSequence code;
     private int currentTempVar = 0;
-    private LinkedList<String> successorOutput = new LinkedList<String>();
+    private StringBuilder successorOutput = new StringBuilder();
+    private int numInstructions = 0;
     
-    public RPNCompiler(String rpnProgram) {
+    /**
+     * @param rpnProgram RPN to compile, such as a view of the queue
+     *                   returned by ShuntingYard.infixToRPN
+     */
+    public RPNCompiler(CharSequence rpnProgram) {
         code = rpnProgram;
     }
     
+    /**
+     * Prepares this compiler to compile another program, keeping the
+     * arrays it has already allocated.
+     * @param rpnProgram the next program to compile
+     */
+    public void reset(CharSequence rpnProgram) {
+        code = rpnProgram;
+        currentTempVar = 0;
+        stack.clear();
+        successorOutput.setLength(0);
+        numInstructions = 0;
+    }
+    
     private String readOutput() {
-        String output = "";
-        while (!successorOutput.isEmpty()) {
-            output += successorOutput.pollLast();
-        }
-        return output;
+        return successorOutput.toString();
+    }
+    
+    private void emit(String instruction) {
+        successorOutput.append(instruction);
+        numInstructions++;
     }
     
     private int currentAddress(int offset) {
-        return successorOutput.size() + offset;
+        return numInstructions + offset;
     }
     
     private int currentAddress() {
         return currentAddress(0);
     }
     
-    private String getNewTempVar() {
+    /**
+     * Returns a new temporary variable, encoded as a negative operand so
+     * that it cannot be confused with a single-char variable.
+     * @return the encoded temporary variable
+     */
+    private int getNewTempVar() {
         currentTempVar++;
-        return "t" + (currentTempVar - 1);
-    }
-    
-    private char collapse(String name) {
-        short bits = (short) (((byte) name.charAt(0)) << 8);
-        bits |= ((byte) name.charAt(1));
-        return (char) bits;
+        return ~(currentTempVar - 1);
     }
     
-    private String expand(char collapsed) {
-        char highBits = (char) (collapsed >>> 8);
-        if (highBits == 't') {
-            return highBits + "" + (char) (collapsed & 0xff);
+    private String expand(int operand) {
+        if (operand < 0) {
+            return "t" + ~operand;
         } else {
-            return "" + collapsed;
+            return "" + (char) operand;
         }
     }
     
     private void binaryOperationToOutput(String mnemonic) {
-        char first = stack.pop();
-        char second = stack.pop();
-        String tempVar = getNewTempVar();
-        successorOutput.push(
-            "i mov " + tempVar + "," + expand(first) + ",0\n");
-        successorOutput.push(
-            "i " + mnemonic + " " + tempVar + "," + expand(second) + ",0\n");
-        stack.push(collapse(tempVar));
+        int first = stack.pop();
+        int second = stack.pop();
+        int tempVar = getNewTempVar();
+        String tempName = expand(tempVar);
+        emit("i mov " + tempName + "," + expand(first) + ",0\n");
+        emit("i " + mnemonic + " " + tempName + "," + expand(second) +
+             ",0\n");
+        stack.push(tempVar);
     }
     
     private void compareOperationToOutput(String mnemonic) {
-        char first = stack.pop();
-        char second = stack.pop();
-        String tempVar = getNewTempVar();
-        successorOutput.push("i mov " + tempVar + ",r0,0\n");
-        successorOutput.push(
-            "i " + mnemonic + " " + expand(first) + "," +
-            expand(second) + "," + currentAddress(2) + "\n"
-        );
-        successorOutput.push("i mov " + tempVar + ",r0,1\n");
-        stack.push(collapse(tempVar));
+        int first = stack.pop();
+        int second = stack.pop();
+        int tempVar = getNewTempVar();
+        String tempName = expand(tempVar);
+        emit("i mov " + tempName + ",r0,0\n");
+        emit("i " + mnemonic + " " + expand(first) + "," +
+             expand(second) + "," + currentAddress(2) + "\n");
+        emit("i mov " + tempName + ",r0,1\n");
+        stack.push(tempVar);
     }
     
+    /**
+     * Compiles the current program. Each call starts afresh, so calling it
+     * again returns the same instructions rather than appending to them.
+     * @return Successor instructions, one per line
+     */
     public String compile() {
-        for (char instruction : code.toCharArray()) {
+        reset(code);
+        for (int i = 0; i < code.length(); i++) {
+            char instruction = code.charAt(i);
             if ((instruction >= '0' && instruction <= '9') ||
                 (instruction >= 'a' && instruction <= 'z') ||
                 (instruction >= 'A' && instruction <= 'Z')) {
@@ -0,0 +1,195 @@
+package capacita;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiler pass that resolves variable references to lexical addresses.
+ * Each scope that gets a Frame at run time is entered and exited in order
+ * as the compiler walks the program, and every variable declared in a scope
+ * is given a slot among the locals of its frame. A reference then resolves
+ * to the number of frames outwards it was declared in and its slot, which
+ * the VM reads and writes by array index. Names that no enclosing scope
+ * declares, such as dynamic globals, fall back to lookup by symbol ID.
+ * The instruction creating a frame is emitted when its scope is entered,
+ * before its locals are declared, so its local count is left as a
+ * placeholder that is patched when the scope is exited.
+ * @author Jiangcheng Oliver Chu
+ */
+public class ScopeResolver {
+    /** Returned by resolve for names no enclosing scope declares. */
+    public static final int DYNAMIC = -1;
+    private static final int SLOT_BITS = 16;
+    private static final int MAX_SLOTS = 1 << SLOT_BITS;
+    /** Hex digits of a local count, enough for MAX_SLOTS. */
+    private static final int COUNT_DIGITS = 5;
+    /** Innermost scope last. */
+    private final ArrayList<Scope> scopes;
+    /** Names looked up dynamically, indexed by the constants that use them. */
+    private final ArrayList<String> names;
+    private final HashMap<String, Integer> nameIndices;
+
+    public ScopeResolver() {
+        scopes = new ArrayList<Scope>();
+        names = new ArrayList<String>();
+        nameIndices = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Enters a scope whose frame is created by code the caller emits once
+     * the local count is returned by exitScope.
+     */
+    public void enterScope() {
+        scopes.add(new Scope(null, 0));
+    }
+
+    /**
+     * Enters a scope, appending to program the instruction that creates its
+     * frame. Its local count is a placeholder until the scope is exited,
+     * so program must only be appended to until then.
+     * @param program assembly being compiled
+     */
+    public void enterScope(StringBuilder program) {
+        program.append("i syscall r")
+               .append(SuccessorVirtualMachine.VM_ENTER_FRAME)
+               .append(", rZERO, 0x");
+        scopes.add(new Scope(program, program.length()));
+        for (int i = 0; i < COUNT_DIGITS; i++) {
+            program.append('0');
+        }
+        program.append('\n');
+    }
+
+    /**
+     * Leaves the innermost scope, patching the local count into the
+     * instruction that creates its frame, if it was emitted by enterScope.
+     * @return the number of locals its frame needs
+     * @throws InternalException if no scope has been entered
+     */
+    public int exitScope() throws InternalException {
+        if (scopes.isEmpty()) {
+            throw new InternalException("Exited more scopes than entered.");
+        }
+        Scope scope = scopes.remove(scopes.size() - 1);
+        int count = scope.slots.size();
+        if (scope.program != null) {
+            String hex = Integer.toHexString(count);
+            int end = scope.countStart + COUNT_DIGITS;
+            scope.program.replace(end - hex.length(), end, hex);
+        }
+        return count;
+    }
+
+    /**
+     * Declares a variable in the innermost scope. Declaring a variable twice
+     * in one scope gives the same slot.
+     * @param name the variable
+     * @return its slot among the locals of the innermost frame
+     * @throws InternalException if no scope has been entered, or the scope
+     *                           is full
+     */
+    public int declare(String name) throws InternalException {
+        if (scopes.isEmpty()) {
+            throw new InternalException("Declared " + name +
+                                        " outside of any scope.");
+        }
+        HashMap<String, Integer> scope = scopes.get(scopes.size() - 1).slots;
+        Integer slot = scope.get(name);
+        if (slot == null) {
+            if (scope.size() == MAX_SLOTS) {
+                throw new InternalException("More than " + MAX_SLOTS +
+                                            " variables in one scope.");
+            }
+            slot = scope.size();
+            scope.put(name, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @param name a variable referenced in the innermost scope
+     * @return its lexical address, from which depthOf and slotOf extract its
+     *         frame and slot, or DYNAMIC if no enclosing scope declares it
+     */
+    public int resolve(String name) {
+        for (int depth = 0; depth < scopes.size(); depth++) {
+            Integer slot =
+                scopes.get(scopes.size() - 1 - depth).slots.get(name);
+            if (slot != null) {
+                return (depth << SLOT_BITS) | slot;
+            }
+        }
+        return DYNAMIC;
+    }
+
+    public static int depthOf(int address) {
+        return address >>> SLOT_BITS;
+    }
+
+    public static int slotOf(int address) {
+        return address & (MAX_SLOTS - 1);
+    }
+
+    /**
+     * Compiles a read of a variable into an int register.
+     * @param register destination register, such as "r1"
+     * @param name the variable
+     * @return one line of Successor assembly
+     */
+    public String load(String register, String name) {
+        return access("load", register, name);
+    }
+
+    /**
+     * Compiles a write of an int register to a variable. Writes to names
+     * that no enclosing scope declares define dynamic globals.
+     * @param register source register, such as "r1"
+     * @param name the variable
+     * @return one line of Successor assembly
+     */
+    public String save(String register, String name) {
+        return access("save", register, name);
+    }
+
+    private String access(String operation, String register, String name) {
+        int address = resolve(name);
+        if (address == DYNAMIC) {
+            return "i " + operation + "name " + register + ", rZERO, " +
+                   nameIndex(name) + "\n";
+        }
+        return "i " + operation + "lex " + register + ", rZERO, 0x" +
+               Integer.toHexString(address) + "\n";
+    }
+
+    private int nameIndex(String name) {
+        Integer index = nameIndices.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndices.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return names used by dynamic lookups, to be given to the VM
+     */
+    public String[] getNames() {
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static class Scope {
+        /** Slots of declared names. */
+        private final HashMap<String, Integer> slots;
+        /** Code holding the frame's placeholder, or null if not emitted. */
+        private final StringBuilder program;
+        /** Position of the placeholder local count in program. */
+        private final int countStart;
+
+        Scope(StringBuilder code, int start) {
+            slots = new HashMap<String, Integer>();
+            program = code;
+            countStart = start;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package capacita;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import capacita.collections.IntIntMap;
+
+/**
+ * The hidden class of a CapacitaObject: which properties it has, and the
+ * slot each property is stored in. Shapes form a tree of transitions from
+ * the empty shape, so objects given the same properties in the same order
+ * share one shape, and a shape can stand in for its whole layout.
+ * @author Jiangcheng Oliver Chu
+ */
+final class Shape {
+    private static final AtomicInteger nextId = new AtomicInteger();
+    static final Shape EMPTY = new Shape(null, -1);
+    /** Distinct for every shape, for hashing shapes cheaply. */
+    final int id;
+    /** Slots by the symbol IDs of properties. */
+    private final IntIntMap slots;
+    /** Indices into children by the symbol IDs of added properties. */
+    private final IntIntMap transitions;
+    private final ArrayList<Shape> children;
+    private final int[] propertySymbols;
+
+    private Shape(Shape parent, int property) {
+        id = nextId.getAndIncrement();
+        transitions = new IntIntMap();
+        children = new ArrayList<Shape>();
+        if (parent == null) {
+            slots = new IntIntMap();
+            propertySymbols = new int[0];
+        } else {
+            int count = parent.propertyCount();
+            slots = new IntIntMap(count + 1);
+            propertySymbols = Arrays.copyOf(parent.propertySymbols,
+                                            count + 1);
+            propertySymbols[count] = property;
+            for (int i = 0; i <= count; i++) {
+                slots.put(propertySymbols[i], i);
+            }
+        }
+    }
+
+    int propertyCount() {
+        return propertySymbols.length;
+    }
+
+    int propertySymbol(int slot) {
+        return propertySymbols[slot];
+    }
+
+    /**
+     * @param property a symbol ID from SymbolTable
+     * @return the slot of property, or -1 if this shape lacks it
+     */
+    int slotOf(int property) {
+        return slots.get(property, -1);
+    }
+
+    /**
+     * Returns the shape of an object of this shape once property is added,
+     * creating the transition the first time it is taken. Shapes are shared
+     * by every VM, so transitions are synchronized.
+     * @param property symbol ID of a property this shape lacks
+     * @return the shape with property in the next slot
+     */
+    synchronized Shape withProperty(int property) {
+        int child = transitions.get(property, -1);
+        if (child >= 0) {
+            return children.get(child);
+        }
+        Shape next = new Shape(this, property);
+        transitions.put(property, children.size());
+        children.add(next);
+        return next;
+    }
+}
@@ -1,16 +1,13 @@
 package capacita;
 
-import java.util.HashMap;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import capacita.collections.CharIntMap;
 
 /**
  * Implements Dijkstra's Shunting-Yard algorithm.
  * @author Jiangcheng Oliver Chu
  */
 public class ShuntingYard {
-    public static HashMap<Character, Integer> precedences = null;
-    public static Set<Character> operators;
+    public static CharIntMap precedences = null;
     
     private static boolean isInitialized = false;
     
@@ -93,12 +90,38 @@ public class ShuntingYard {
      */
     public static DenseLinkedList infixToRPN(String infixExpression)
            throws CapacitaException {
+        DenseLinkedList queue = new DenseLinkedList();
+        infixToRPN(infixExpression, queue);
+        return queue;
+    }
+    
+    /**
+     * Converts infix notation to reverse polish notation, writing into
+     * queue after clearing it. Reusing one queue across many expressions
+     * avoids allocating new lists for each of them.
+     * @param infixExpression
+     * @param queue receives the RPN output
+     */
+    public static void infixToRPN(String infixExpression,
+                                  DenseLinkedList queue)
+           throws CapacitaException {
         if (!isInitialized) {
             initialize();
         }
-        DenseLinkedList stack = new DenseLinkedList();
-        DenseLinkedList queue = new DenseLinkedList();
-        for (char token : infixExpression.toCharArray()) {
+        queue.clear();
+        DenseLinkedList stack = DenseLinkedList.obtain();
+        try {
+            shunt(infixExpression, stack, queue);
+        } finally {
+            stack.recycle();
+        }
+    }
+    
+    private static void shunt(String infixExpression, DenseLinkedList stack,
+                              DenseLinkedList queue)
+            throws CapacitaException {
+        for (int i = 0; i < infixExpression.length(); i++) {
+            char token = infixExpression.charAt(i);
             if ((token >= '0' && token <= '9') ||
                 (token >= 'a' && token <= 'z') ||
                 (token >= 'A' && token <= 'Z')) {
@@ -106,37 +129,19 @@ public class ShuntingYard {
             } else if (token == '(') {
                 stack.push('(');
             } else if (token == ')') {
-                boolean isSuccessful = false;
-                for (;;) {
-                    char possibleLeftParen;
-                    try {
-                        possibleLeftParen = stack.pop();
-                    } catch (NoSuchElementException ex) {
-                        isSuccessful = true;
-                        break;
-                    }
+                while (!stack.isEmpty()) {
+                    char possibleLeftParen = stack.pop();
                     if (possibleLeftParen == '(') {
-                        isSuccessful = true;
                         break;
                     } else {
                         queue.push(possibleLeftParen);
                     }
                 }
-                if (!isSuccessful) {
-                    throw new CapacitaException(
-                          "Mismatched parentheses in expression " +
-                          "(left parenthesis possibly missing).");
-                }
-            } else if (operators.contains(token)) {
-                for (;;) {
-                    Associativity tokenAssoc = associativityOf(token);
-                    char popToken;
-                    try {
-                        popToken = stack.pop();
-                    } catch (NoSuchElementException ex) {
-                        break;
-                    }
-                    int precedence = precedenceOf(token);
+            } else if (isOperator(token)) {
+                Associativity tokenAssoc = associativityOf(token);
+                int precedence = precedenceOf(token);
+                while (!stack.isEmpty()) {
+                    char popToken = stack.pop();
                     int popPrecedence = precedenceOf(popToken);
                     boolean isParenthesis = popToken == '(' || popToken == ')';
                     boolean shouldOutputLeft = tokenAssoc ==
@@ -159,13 +164,8 @@ public class ShuntingYard {
                 throw new CapacitaException("Unrecognized token: " + token);
             }
         }
-        for (;;) {
-            char movedValue;
-            try {
-                movedValue = stack.pop();
-            } catch (NoSuchElementException ex) {
-                break;
-            }
+        while (!stack.isEmpty()) {
+            char movedValue = stack.pop();
             if (movedValue == '(' || movedValue == ')') {
                 throw new CapacitaException(
                       "Mismatched parentheses in expression " +
@@ -173,11 +173,10 @@ public class ShuntingYard {
             }
             queue.push(movedValue);
         }
-        return queue;
     }
     
     public static void initialize() {
-        precedences = new HashMap<Character, Integer>();
+        precedences = new CharIntMap(32);
         /* Highest precedence operators. */
         precedences.put(INCREMENT, 1);
         precedences.put(DECREMENT, 1);
@@ -216,7 +215,6 @@ public class ShuntingYard {
         precedences.put(AND, 13);
         precedences.put(XOR, 14);
         precedences.put(OR, 15);
-        operators = precedences.keySet();
         isInitialized = true;
     }
 
@@ -230,11 +228,14 @@ public class ShuntingYard {
         if (!isInitialized) {
             initialize();
         }
-        if (precedences.containsKey(operator)) {
-            return precedences.get(operator);
-        } else {
-            return -1;
+        return precedences.get(operator, -1);
+    }
+    
+    public static boolean isOperator(char token) {
+        if (!isInitialized) {
+            initialize();
         }
+        return precedences.containsKey(token);
     }
     
     public static Associativity associativityOf(char operator) {
@@ -0,0 +1,246 @@
+package capacita;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import capacita.collections.IntArrayList;
+
+/**
+ * Assembles Successor source line by line from a Reader or a file, so that
+ * the source text never has to be held in memory all at once. Bytecode is
+ * written either to a growable flat array or straight to a binary stream
+ * of big-endian words.
+ * @author Jiangcheng Oliver Chu
+ */
+public class StreamingAssembler {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private final AssemblyScanner scanner;
+    private final DataOutputStream output;
+    private final IntArrayList program;
+    /** Receives the two words of each instruction before they are kept. */
+    private final int[] words;
+    private int lineNumber;
+    private int pendingEmptyLines;
+
+    private StreamingAssembler(OutputStream out) {
+        scanner = new AssemblyScanner();
+        if (out == null) {
+            output = null;
+            program = new IntArrayList(INITIAL_CAPACITY);
+        } else {
+            output = new DataOutputStream(new BufferedOutputStream(out));
+            program = null;
+        }
+        words = new int[2];
+        lineNumber = 0;
+        pendingEmptyLines = 0;
+    }
+
+    /**
+     * Assembles everything readable from reader into a flat program.
+     * @param reader source of Successor assembly
+     * @return the flattened program
+     * @throws InternalException if any line cannot be assembled
+     * @throws IOException if reader fails
+     */
+    public static int[] compile(Reader reader)
+           throws InternalException, IOException {
+        StreamingAssembler assembler = new StreamingAssembler(null);
+        assembler.readAll(reader);
+        return assembler.toFlatProgram();
+    }
+
+    /**
+     * Assembles a file of ASCII Successor assembly into a flat program.
+     * The file is memory-mapped rather than read onto the heap.
+     * @param path file of Successor assembly
+     * @return the flattened program
+     * @throws InternalException if any line cannot be assembled
+     * @throws IOException if the file cannot be mapped
+     */
+    public static int[] compile(Path path)
+           throws InternalException, IOException {
+        StreamingAssembler assembler = new StreamingAssembler(null);
+        assembler.mapAll(path);
+        return assembler.toFlatProgram();
+    }
+
+    /**
+     * Assembles everything readable from reader, writing each instruction
+     * to out as two big-endian ints.
+     * @param reader source of Successor assembly
+     * @param out stream receiving bytecode; flushed but not closed
+     * @return the number of instructions written
+     * @throws InternalException if any line cannot be assembled
+     * @throws IOException if reader or out fails
+     */
+    public static int compile(Reader reader, OutputStream out)
+           throws InternalException, IOException {
+        StreamingAssembler assembler = new StreamingAssembler(out);
+        assembler.readAll(reader);
+        assembler.output.flush();
+        return assembler.lineNumber - assembler.pendingEmptyLines;
+    }
+
+    /**
+     * Assembles a file of ASCII Successor assembly, writing each instruction
+     * to out as two big-endian ints.
+     * @param path file of Successor assembly
+     * @param out stream receiving bytecode; flushed but not closed
+     * @return the number of instructions written
+     * @throws InternalException if any line cannot be assembled
+     * @throws IOException if the file cannot be mapped or out fails
+     */
+    public static int compile(Path path, OutputStream out)
+           throws InternalException, IOException {
+        StreamingAssembler assembler = new StreamingAssembler(out);
+        assembler.mapAll(path);
+        assembler.output.flush();
+        return assembler.lineNumber - assembler.pendingEmptyLines;
+    }
+
+    private void readAll(Reader reader)
+            throws InternalException, IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        CharBuffer view = CharBuffer.wrap(buffer);
+        int filled = 0;
+        for (;;) {
+            int read = reader.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            int lineStart = 0;
+            for (int i = filled; i < filled + read; i++) {
+                if (buffer[i] == '\n') {
+                    acceptLine(view, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            filled += read;
+            if (lineStart > 0) {
+                /* Move the unfinished line to the front of the buffer. */
+                System.arraycopy(buffer, lineStart, buffer, 0,
+                                 filled - lineStart);
+                filled -= lineStart;
+            } else if (filled == buffer.length) {
+                /* A single line is longer than the whole buffer. */
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                view = CharBuffer.wrap(buffer);
+            }
+        }
+        if (filled > 0) {
+            acceptLine(view, 0, filled);
+        }
+    }
+
+    private void mapAll(Path path) throws InternalException, IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path,
+                                       StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Cannot map assembly files over 2 GB: " +
+                                      path);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+        }
+        AsciiSequence view = new AsciiSequence(mapped);
+        int length = mapped.limit();
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (mapped.get(i) == '\n') {
+                acceptLine(view, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < length) {
+            acceptLine(view, lineStart, length);
+        }
+    }
+
+    /**
+     * Assembles one line. Empty lines are held back, since trailing empty
+     * lines are ignored while empty lines between instructions are errors.
+     */
+    private void acceptLine(CharSequence s, int start, int end)
+            throws InternalException, IOException {
+        if (start == end) {
+            pendingEmptyLines++;
+            lineNumber++;
+            return;
+        }
+        if (pendingEmptyLines > 0) {
+            throw AssemblyScanner.emptyLineError(
+                      lineNumber - pendingEmptyLines);
+        }
+        try {
+            scanner.encodeLine(s, start, end, words, 0);
+        } catch (InternalException ex) {
+            throw AssemblyScanner.atLine(lineNumber, ex);
+        }
+        if (output == null) {
+            program.addAll(words, 0, 2);
+        } else {
+            output.writeInt(words[0]);
+            output.writeInt(words[1]);
+        }
+        lineNumber++;
+    }
+
+    private int[] toFlatProgram() {
+        return program.toArray();
+    }
+
+    /**
+     * A read-only view of single-byte characters in a ByteBuffer.
+     */
+    private static class AsciiSequence implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int length;
+
+        AsciiSequence(ByteBuffer buffer) {
+            this(buffer, 0, buffer.limit());
+        }
+
+        private AsciiSequence(ByteBuffer buffer, int start, int end) {
+            bytes = buffer;
+            offset = start;
+            length = end - start;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes.get(offset + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new AsciiSequence(bytes, offset + start, offset + end);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -1,19 +1,86 @@
 package capacita;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
 /**
- * A PrintStream that writes to a String.
+ * A PrintStream that writes to a String. Printed text is kept as UTF-8 in a
+ * queue of fixed-size byte chunks, so each print takes time proportional to
+ * its own length however much has been printed before. Raw bytes written
+ * with write() go into the same chunks. A bounded stream keeps only the
+ * most recent bytes, dropping whole chunks from the front as it goes.
  * @author Jiangcheng Oliver Chu
  */
 public class StringPrintStream extends PrintStream {
-    private String contents;
+    private static final int CHUNK_SIZE = 1 << 13;
+    /** Longest UTF-8 sequence, which may be split across two chunks. */
+    private static final int MAX_SEQUENCE = 4;
+    private final ArrayDeque<byte[]> chunks;
+    /** Most bytes kept; older bytes are dropped. */
+    private final long limit;
+    /** Bytes already dropped from the front of the first chunk. */
+    private int headOffset;
+    /** Bytes used in the last chunk. */
+    private int tailLength;
+    private long length;
+    private long totalPrinted;
+    /** A dropped chunk, kept so a bounded stream stops allocating. */
+    private byte[] spareChunk;
+    /** Holds ASCII text on its way into the chunks. */
+    private final byte[] asciiBuffer;
     
     public StringPrintStream() throws UnsupportedEncodingException {
-        super(new ByteArrayOutputStream());
-        contents = "";
+        this(Long.MAX_VALUE);
+    }
+    
+    /**
+     * @param keptBytes number of most recently printed bytes to keep
+     */
+    public StringPrintStream(long keptBytes) {
+        super(new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new IllegalStateException(
+                    "StringPrintStream overrides every write.");
+            }
+        });
+        if (keptBytes <= 0) {
+            throw new IllegalArgumentException("Must keep at least one byte.");
+        }
+        chunks = new ArrayDeque<byte[]>();
+        asciiBuffer = new byte[CHUNK_SIZE];
+        limit = keptBytes;
+        clear();
+    }
+    
+    @Override
+    public void write(int b) {
+        append(new byte[] {(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] buf) {
+        append(buf, 0, buf.length);
+    }
+    
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        if (off < 0 || len < 0 || off + len > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        append(buf, off, len);
     }
     
     @Override
@@ -26,6 +93,46 @@ public class StringPrintStream extends PrintStream {
         genericPrint(x);
     }
     
+    @Override
+    public void print(char[] x) {
+        append(new String(x));
+    }
+    
+    @Override
+    public void print(char x) {
+        append(String.valueOf(x));
+    }
+    
+    @Override
+    public void print(int x) {
+        append(String.valueOf(x));
+    }
+    
+    @Override
+    public void print(long x) {
+        append(String.valueOf(x));
+    }
+    
+    @Override
+    public void print(double x) {
+        append(String.valueOf(x));
+    }
+    
+    @Override
+    public void print(boolean x) {
+        append(String.valueOf(x));
+    }
+    
+    @Override
+    public void print(float x) {
+        append(String.valueOf(x));
+    }
+    
+    @Override
+    public void println() {
+        append("\n");
+    }
+    
     @Override
     public void println(Object x) {
         genericPrintln(x);
@@ -36,16 +143,241 @@ public class StringPrintStream extends PrintStream {
         genericPrintln(x);
     }
     
+    @Override
+    public void println(int x) {
+        genericPrintln(x);
+    }
+    
+    @Override
+    public void println(long x) {
+        genericPrintln(x);
+    }
+    
+    @Override
+    public void println(double x) {
+        genericPrintln(x);
+    }
+    
+    @Override
+    public void println(char x) {
+        genericPrintln(x);
+    }
+    
+    @Override
+    public void println(boolean x) {
+        genericPrintln(x);
+    }
+    
+    @Override
+    public void println(float x) {
+        genericPrintln(x);
+    }
+    
+    @Override
+    public void println(char[] x) {
+        genericPrintln(new String(x));
+    }
+    
     public <T> void genericPrint(T t) {
-        contents += t;
+        append(String.valueOf(t));
     }
     
     public <T> void genericPrintln(T t) {
-        genericPrint(t + "\n");
+        append(t + "\n");
+    }
+    
+    private synchronized void append(String s) {
+        int end = s.length();
+        for (int i = 0; i < end; i++) {
+            if (s.charAt(i) >= 0x80) {
+                byte[] encoded = s.getBytes(StandardCharsets.UTF_8);
+                append(encoded, 0, encoded.length);
+                return;
+            }
+        }
+        /* ASCII is its own UTF-8, so it needs no encoder. */
+        int start = end > limit ? (int) (end - limit) : 0;
+        totalPrinted += start;
+        while (start < end) {
+            int count = Math.min(end - start, CHUNK_SIZE);
+            for (int i = 0; i < count; i++) {
+                asciiBuffer[i] = (byte) s.charAt(start + i);
+            }
+            append(asciiBuffer, 0, count);
+            start += count;
+        }
+    }
+    
+    private synchronized void append(byte[] buf, int off, int len) {
+        int start = off;
+        int end = off + len;
+        totalPrinted += len;
+        if (len > limit) {
+            /* Everything kept so far would be dropped anyway. */
+            start = (int) (end - limit);
+            clearChunks();
+        }
+        while (start < end) {
+            if (chunks.isEmpty() || tailLength == CHUNK_SIZE) {
+                chunks.addLast(newChunk());
+                tailLength = 0;
+            }
+            int count = Math.min(end - start, CHUNK_SIZE - tailLength);
+            System.arraycopy(buf, start, chunks.peekLast(), tailLength,
+                             count);
+            start += count;
+            tailLength += count;
+            length += count;
+        }
+        if (length > limit) {
+            dropOldest(length - limit);
+        }
+        /* Never keep the tail of a char whose lead byte was dropped. */
+        while (length > 0 && totalPrinted > length &&
+               (headByte() & 0xC0) == 0x80) {
+            dropOldest(1);
+        }
+    }
+    
+    private byte[] newChunk() {
+        byte[] chunk = spareChunk;
+        spareChunk = null;
+        return chunk == null ? new byte[CHUNK_SIZE] : chunk;
+    }
+    
+    private byte headByte() {
+        if (headOffset == CHUNK_SIZE) {
+            spareChunk = chunks.pollFirst();
+            headOffset = 0;
+        }
+        return chunks.peekFirst()[headOffset];
+    }
+    
+    private void dropOldest(long excess) {
+        while (excess > 0) {
+            int available = (chunks.size() == 1 ? tailLength : CHUNK_SIZE) -
+                            headOffset;
+            if (excess >= available && chunks.size() > 1) {
+                spareChunk = chunks.pollFirst();
+                headOffset = 0;
+                length -= available;
+                excess -= available;
+            } else {
+                headOffset += (int) excess;
+                length -= excess;
+                excess = 0;
+            }
+        }
+    }
+    
+    private void clearChunks() {
+        chunks.clear();
+        headOffset = 0;
+        tailLength = 0;
+        length = 0;
+    }
+    
+    /**
+     * Discards everything kept so far.
+     */
+    public synchronized void clear() {
+        clearChunks();
+        totalPrinted = 0;
+    }
+    
+    /**
+     * @return the number of UTF-8 bytes kept, which is less than
+     *         getTotalPrinted() if older bytes were dropped
+     */
+    public synchronized long length() {
+        return length;
+    }
+    
+    /**
+     * @return the number of bytes printed since creation or clear()
+     */
+    public synchronized long getTotalPrinted() {
+        return totalPrinted;
+    }
+    
+    /**
+     * Decodes the kept bytes as UTF-8 and writes them to out a chunk at a
+     * time, without building them into a String first. Malformed bytes from
+     * write() become U+FFFD.
+     * @param out receives the kept chars; not flushed or closed
+     * @throws IOException if out fails
+     */
+    public synchronized void writeTo(Writer out) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer input = ByteBuffer.allocate(CHUNK_SIZE + MAX_SEQUENCE);
+        CharBuffer output = CharBuffer.allocate(CHUNK_SIZE);
+        Iterator<byte[]> iterator = chunks.iterator();
+        int start = headOffset;
+        while (iterator.hasNext()) {
+            byte[] chunk = iterator.next();
+            int end = iterator.hasNext() ? CHUNK_SIZE : tailLength;
+            /* Bytes of a char split across chunks wait at the front. */
+            input.put(chunk, start, end - start);
+            input.flip();
+            decode(decoder, input, output, false, out);
+            input.compact();
+            start = 0;
+        }
+        input.flip();
+        decode(decoder, input, output, true, out);
+        while (decoder.flush(output) == CoderResult.OVERFLOW) {
+            drain(output, out);
+        }
+        drain(output, out);
+    }
+    
+    private static void decode(CharsetDecoder decoder, ByteBuffer input,
+                               CharBuffer output, boolean isLast,
+                               Writer out) throws IOException {
+        while (decoder.decode(input, output, isLast) ==
+               CoderResult.OVERFLOW) {
+            drain(output, out);
+        }
+    }
+    
+    private static void drain(CharBuffer output, Writer out)
+            throws IOException {
+        output.flip();
+        out.write(output.array(), 0, output.limit());
+        output.clear();
+    }
+    
+    /**
+     * Writes the kept bytes to out as they are, a chunk at a time.
+     * @param out receives the UTF-8 bytes; flushed but not closed
+     * @throws IOException if out fails
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        Iterator<byte[]> iterator = chunks.iterator();
+        int start = headOffset;
+        while (iterator.hasNext()) {
+            byte[] chunk = iterator.next();
+            int end = iterator.hasNext() ? CHUNK_SIZE : tailLength;
+            out.write(chunk, start, end - start);
+            start = 0;
+        }
+        out.flush();
     }
 
     @Override
-    public String toString() {
-        return contents;
+    public synchronized String toString() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Cannot make a String of " +
+                                            length + " bytes.");
+        }
+        StringWriter contents = new StringWriter((int) length);
+        try {
+            writeTo(contents);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return contents.toString();
     }
 }
@@ -1,6 +1,7 @@
 package capacita;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Virtual machine that executes successor code and has access to console
@@ -22,7 +23,20 @@ public class SuccessorVirtualMachine {
     private CapacitaObject[] capacitaObjRegs;
     private int[] program;
     private boolean isHalted;
-    private int[][] stackSegments;
+    /** Tagged values; see Values. */
+    private long[][] stackSegments;
+    /** Symbol IDs of property and variable names, by the constants of the
+     * instructions that use them. */
+    private int[] nameSymbols;
+    /** Inline caches of property syscalls, by instruction index. */
+    private PropertyCache[] propertyCaches;
+    /** Inline caches of method calls, by instruction index. */
+    private PropertyCache[] methodCaches;
+    private MegamorphicCache megamorphicCache;
+    /** Innermost environment; the outermost holds dynamic globals. */
+    private Frame frame;
+    /** Receives the output and supplies the input of this VM alone. */
+    private final InputOutputMachine io;
     
     public static final char LINEAR_GROWTH = 0;
     public static final char QUADRATIC_GROWTH = 1;
@@ -48,6 +62,21 @@ public class SuccessorVirtualMachine {
     public static final int VM_WRITE_PROPERTY = 6;
     public static final int VM_CALL_METHOD = 7;
     public static final int VM_OTHER = 8;
+    public static final int VM_NEW_OBJECT = 9;
+    public static final int VM_ENTER_FRAME = 10;
+    public static final int VM_EXIT_FRAME = 11;
+    public static final int VM_DEFINE_METHOD = 12;
+    
+    /* Property syscalls keep the index of the property name in the low bits
+     * of the constant, and the int register read or written above them.
+     * VM_DEFINE_METHOD takes the instruction index of the method from that
+     * register, and VM_CALL_METHOD uses only the name. */
+    private static final int NAME_MASK = 0xffff;
+    private static final int VALUE_REGISTER_SHIFT = 16;
+    /* loadlex and savelex keep the frame depth of a variable in the high
+     * bits of the constant, and its slot in the low bits. */
+    private static final int DEPTH_SHIFT = 16;
+    private static final int SLOT_MASK = 0xffff;
     
     private static final int STACK_SEG_SIZE = 16384;
     private int stackStart;
@@ -56,15 +85,62 @@ public class SuccessorVirtualMachine {
                              STACK_SEG_SIZE * (DEFAULT_STACK_SEGMENTS - 1);
     private int currentStackSeg;
     
+    private static final String[] NO_NAMES = {};
+    
     private static final int rSP = 62;
     private static final int rBP = 63;
     
     public SuccessorVirtualMachine(int[] bytecode) throws InternalException {
-        this(bytecode, DEFAULT_SEGMENTS, DEFAULT_SLOTS, DEFAULT_GROWTH);
+        this(bytecode, NO_NAMES, new BufferedInputOutputMachine());
+    }
+    
+    /**
+     * @param bytecode flattened program
+     * @param context input and output of this VM, used only by the thread
+     *                that calls execute, and flushed when execute returns
+     * @throws InternalException if the program is malformed
+     */
+    public SuccessorVirtualMachine(int[] bytecode, InputOutputMachine context)
+           throws InternalException {
+        this(bytecode, NO_NAMES, context);
+    }
+    
+    /**
+     * @param bytecode flattened program
+     * @param names property and variable names, indexed by the constants
+     *              of property syscalls and of loadname and savename
+     * @throws InternalException if the program is malformed
+     */
+    public SuccessorVirtualMachine(int[] bytecode, String[] names)
+           throws InternalException {
+        this(bytecode, names, new BufferedInputOutputMachine());
+    }
+    
+    /**
+     * @param bytecode flattened program
+     * @param names property and variable names, indexed by the constants
+     *              of property syscalls and of loadname and savename
+     * @param context input and output of this VM, used only by the thread
+     *                that calls execute, and flushed when execute returns
+     * @throws InternalException if the program is malformed
+     */
+    public SuccessorVirtualMachine(int[] bytecode, String[] names,
+                                   InputOutputMachine context)
+           throws InternalException {
+        this(bytecode, names, context, DEFAULT_SEGMENTS, DEFAULT_SLOTS,
+             DEFAULT_GROWTH);
     }
     
     public SuccessorVirtualMachine(int[] bytecode, int segments, int slots,
                                    char growth) throws InternalException {
+        this(bytecode, NO_NAMES, new BufferedInputOutputMachine(), segments,
+             slots, growth);
+    }
+    
+    private SuccessorVirtualMachine(int[] bytecode, String[] names,
+                                    InputOutputMachine context, int segments,
+                                    int slots, char growth)
+            throws InternalException {
         checkInitialConditions(segments, slots, growth);
         program = bytecode;
         if ((program.length & 1) == 1) {
@@ -86,13 +162,24 @@ public class SuccessorVirtualMachine {
         doubleRegs = new double[NUM_REGISTERS];
         stringRegs = new String[NUM_REGISTERS];
         capacitaObjRegs = new CapacitaObject[NUM_REGISTERS];
-        stackSegments = new int[DEFAULT_STACK_SEGMENTS][];
-        stackSegments[DEFAULT_STACK_SEGMENTS - 1] = new int[STACK_SEG_SIZE];
+        stackSegments = new long[DEFAULT_STACK_SEGMENTS][];
+        stackSegments[DEFAULT_STACK_SEGMENTS - 1] = new long[STACK_SEG_SIZE];
+        Arrays.fill(stackSegments[DEFAULT_STACK_SEGMENTS - 1],
+                    Values.ofInt(0));
         stackStart = STACK_VIRTUAL_OFFSET + STACK_SEG_SIZE - 1;
         setStackPointer(stackStart);
         setBasePointer(stackStart);
         isHalted = false;
         currentStackSeg = DEFAULT_STACK_SEGMENTS - 1;
+        nameSymbols = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            nameSymbols[i] = SymbolTable.intern(names[i]);
+        }
+        frame = new Frame(null);
+        propertyCaches = new PropertyCache[program.length >> 1];
+        methodCaches = new PropertyCache[program.length >> 1];
+        megamorphicCache = new MegamorphicCache();
+        io = context;
     }
     
     private void setStackPointer(int address) {
@@ -103,7 +190,19 @@ public class SuccessorVirtualMachine {
         intRegs[rBP] = address;
     }
     
+    /**
+     * Runs the program, then flushes the output of this VM.
+     * @return exit code of the program
+     */
     public int execute() {
+        try {
+            return run();
+        } finally {
+            io.flush();
+        }
+    }
+    
+    private int run() {
         for (int ip = 0; ip < program.length;) {
             int command = program[ip];
             int constant = program[ip + 1];
@@ -184,7 +283,8 @@ public class SuccessorVirtualMachine {
                 case Mnemonics.CALL: {
                     intRegs[rSP]--;
                     int destination = intRegs[rSP] - STACK_VIRTUAL_OFFSET;
-                    stackSegments[currentStackSeg][destination] = ip + 2;
+                    stackSegments[currentStackSeg][destination] =
+                        Values.ofInt(ip + 2);
                     ip = constant << 1;
                     break;
                 } case Mnemonics.SYSCALL:
@@ -194,45 +294,115 @@ public class SuccessorVirtualMachine {
                     case VM_EXIT:
                         return EXIT_SUCCESS;
                     case VM_PRINT:
-                        Capacita.IO.print(intRegs[rB]);
+                        io.print(intRegs[rB]);
                         ip += 2;
                         break;
                     case VM_PRINTLN:
-                        Capacita.IO.println(intRegs[rB]);
+                        io.println(intRegs[rB]);
                         ip += 2;
                         break;
                     case VM_INPUT:
                         try {
-                            stringRegs[rB] = Capacita.IO.getln();
+                            stringRegs[rB] = io.getln();
                         } catch (IOException ex) {
                             return EXIT_FAILURE;
                         }
                         ip += 2;
                         break;
-                    case VM_READ_PROPERTY:
+                    case VM_READ_PROPERTY: {
+                        PropertyCache cache = propertyCaches[ip >> 1];
+                        CapacitaObject receiver = capacitaObjRegs[rB];
+                        if (cache == null || receiver == null) {
+                            if (!isPropertyAccessValid(propertyCaches, ip, rB,
+                                                       constant)) {
+                                return EXIT_FAILURE;
+                            }
+                            cache = propertyCaches[ip >> 1];
+                            receiver = capacitaObjRegs[rB];
+                        }
+                        long value = cache.read(receiver);
+                        if (!Values.isInt(value)) {
+                            return EXIT_FAILURE;
+                        }
+                        intRegs[(constant >>> VALUE_REGISTER_SHIFT) & 0x3f] =
+                            Values.asInt(value);
+                        ip += 2;
                         break;
-                    case VM_WRITE_PROPERTY:
+                    } case VM_WRITE_PROPERTY:
+                    case VM_DEFINE_METHOD: {
+                        PropertyCache cache = propertyCaches[ip >> 1];
+                        CapacitaObject receiver = capacitaObjRegs[rB];
+                        if (cache == null || receiver == null) {
+                            if (!isPropertyAccessValid(propertyCaches, ip, rB,
+                                                       constant)) {
+                                return EXIT_FAILURE;
+                            }
+                            cache = propertyCaches[ip >> 1];
+                            receiver = capacitaObjRegs[rB];
+                        }
+                        int written = intRegs[
+                            (constant >>> VALUE_REGISTER_SHIFT) & 0x3f];
+                        cache.write(receiver, rA == VM_WRITE_PROPERTY ?
+                                              Values.ofInt(written) :
+                                              Values.ofFunction(written));
+                        ip += 2;
                         break;
-                    case VM_CALL_METHOD:
+                    } case VM_CALL_METHOD: {
+                        PropertyCache cache = methodCaches[ip >> 1];
+                        CapacitaObject receiver = capacitaObjRegs[rB];
+                        if (cache == null || receiver == null) {
+                            if (!isPropertyAccessValid(methodCaches, ip, rB,
+                                                       constant)) {
+                                return EXIT_FAILURE;
+                            }
+                            cache = methodCaches[ip >> 1];
+                            receiver = capacitaObjRegs[rB];
+                        }
+                        long method = cache.read(receiver);
+                        if (!Values.isFunction(method)) {
+                            return EXIT_FAILURE;
+                        }
+                        intRegs[rSP]--;
+                        int destination = intRegs[rSP] - STACK_VIRTUAL_OFFSET;
+                        stackSegments[currentStackSeg][destination] =
+                            Values.ofInt(ip + 2);
+                        ip = Values.addressOf(method) << 1;
                         break;
+                    }
                     case VM_OTHER:
                         break;
+                    case VM_NEW_OBJECT:
+                        capacitaObjRegs[rB] = new CapacitaObject();
+                        ip += 2;
+                        break;
+                    case VM_ENTER_FRAME:
+                        frame = new Frame(frame, constant);
+                        ip += 2;
+                        break;
+                    case VM_EXIT_FRAME:
+                        if (frame.getParent() == null) {
+                            return EXIT_FAILURE;
+                        }
+                        frame = frame.getParent();
+                        ip += 2;
+                        break;
                     case VM_HALT:
                     default:
                         return EXIT_FAILURE;
                     }
                     break;
                 case Mnemonics.RET:
-                    int returnAddress = stackSegments[currentStackSeg][
-                                        intRegs[rSP] - STACK_VIRTUAL_OFFSET];
+                    int returnAddress = Values.asInt(stackSegments[
+                        currentStackSeg][intRegs[rSP] - STACK_VIRTUAL_OFFSET]);
                     ip = returnAddress;
                     intRegs[rSP]++;
                     break;
                 case Mnemonics.LOAD: {
                     int baseAddress = intRegs[rB] + intRegs[rC] + constant;
                     if (baseAddress >= STACK_VIRTUAL_BOUNDARY) {
-                        intRegs[rA] = stackSegments[currentStackSeg][
-                                      baseAddress - STACK_VIRTUAL_OFFSET];
+                        intRegs[rA] = Values.asInt(
+                            stackSegments[currentStackSeg][
+                                baseAddress - STACK_VIRTUAL_OFFSET]);
                     } else {
                         // TODO: load int from heap
                         return EXIT_FAILURE;
@@ -243,7 +413,8 @@ public class SuccessorVirtualMachine {
                     int baseAddress = intRegs[rB] + intRegs[rC] + constant;
                     if (baseAddress >= STACK_VIRTUAL_BOUNDARY) {
                         stackSegments[currentStackSeg][
-                            baseAddress - STACK_VIRTUAL_OFFSET] = intRegs[rA];
+                            baseAddress - STACK_VIRTUAL_OFFSET] =
+                            Values.ofInt(intRegs[rA]);
                     } else {
                         // TODO: save int to heap
                         return EXIT_FAILURE;
@@ -253,25 +424,74 @@ public class SuccessorVirtualMachine {
                 } case Mnemonics.PUSH: {
                     intRegs[rSP]--;
                     int destination = intRegs[rSP] - STACK_VIRTUAL_OFFSET;
-                    stackSegments[currentStackSeg][destination] = constant;
+                    stackSegments[currentStackSeg][destination] =
+                        Values.ofInt(constant);
                     ip += 2;
                     break;
                 } case Mnemonics.POP:
-                    int poppedValue = stackSegments[currentStackSeg][
-                                      intRegs[rSP] - STACK_VIRTUAL_OFFSET];
+                    int poppedValue = Values.asInt(stackSegments[
+                        currentStackSeg][intRegs[rSP] - STACK_VIRTUAL_OFFSET]);
                     intRegs[rA] = poppedValue;
                     intRegs[rSP]++;
                     ip += 2;
                     break;
+                case Mnemonics.LOADLEX: {
+                    long value = frame.getLocal(constant >>> DEPTH_SHIFT,
+                                                constant & SLOT_MASK);
+                    if (!Values.isInt(value)) {
+                        return EXIT_FAILURE;
+                    }
+                    intRegs[rA] = Values.asInt(value);
+                    ip += 2;
+                    break;
+                } case Mnemonics.SAVELEX:
+                    frame.setLocal(constant >>> DEPTH_SHIFT,
+                                   constant & SLOT_MASK,
+                                   Values.ofInt(intRegs[rA]));
+                    ip += 2;
+                    break;
+                case Mnemonics.LOADNAME: {
+                    if (constant < 0 || constant >= nameSymbols.length) {
+                        return EXIT_FAILURE;
+                    }
+                    long value = frame.lookup(nameSymbols[constant]);
+                    if (!Values.isInt(value)) {
+                        return EXIT_FAILURE;
+                    }
+                    intRegs[rA] = Values.asInt(value);
+                    ip += 2;
+                    break;
+                } case Mnemonics.SAVENAME: {
+                    if (constant < 0 || constant >= nameSymbols.length) {
+                        return EXIT_FAILURE;
+                    }
+                    /* Dynamic names are defined in the outermost frame. */
+                    Frame global = frame;
+                    while (global.getParent() != null) {
+                        global = global.getParent();
+                    }
+                    global.assign(nameSymbols[constant],
+                                  Values.ofInt(intRegs[rA]));
+                    ip += 2;
+                    break;
+                }
                 default:
                     return EXIT_FAILURE;
                 }
                 break;
             case Mnemonics.DBL:
-                break;
             case Mnemonics.STR:
-                break;
+                /* No f-typed or s-typed instruction is implemented yet. */
+                return EXIT_FAILURE;
             case Mnemonics.CAPACITA_OBJ:
+                switch (opcode) {
+                case Mnemonics.MOV:
+                    capacitaObjRegs[rA] = capacitaObjRegs[rB];
+                    ip += 2;
+                    break;
+                default:
+                    return EXIT_FAILURE;
+                }
                 break;
             default:
                 return EXIT_FAILURE;
@@ -281,13 +501,47 @@ public class SuccessorVirtualMachine {
         return EXIT_EOF;
     }
     
+    /**
+     * Checks the receiver and property name of a property syscall, creating
+     * the inline cache of the syscall on its first execution.
+     * @return false iff the receiver is missing or the name is undefined
+     */
+    private boolean isPropertyAccessValid(PropertyCache[] caches, int ip,
+                                          int rB, int constant) {
+        int nameIndex = constant & NAME_MASK;
+        if (capacitaObjRegs[rB] == null ||
+            nameIndex >= nameSymbols.length) {
+            return false;
+        }
+        if (caches[ip >> 1] == null) {
+            caches[ip >> 1] = new PropertyCache(nameSymbols[nameIndex],
+                                                megamorphicCache);
+        }
+        return true;
+    }
+    
+    /**
+     * @return how the inline caches of property syscalls have fared
+     */
+    public InlineCacheStatistics getPropertyCacheStatistics() {
+        return new InlineCacheStatistics(propertyCaches, megamorphicCache);
+    }
+    
+    /**
+     * @return how the inline caches of method calls have fared
+     */
+    public InlineCacheStatistics getMethodCacheStatistics() {
+        return new InlineCacheStatistics(methodCaches, megamorphicCache);
+    }
+    
     public String stackToString() {
         String result = "";
         /* int stoppingPoint = Math.min(intRegs[rSP] - STACK_VIRTUAL_OFFSET,
                                      intRegs[rBP] - STACK_VIRTUAL_OFFSET); */
         int stoppingPoint = STACK_SEG_SIZE - 11;
         for (int i = STACK_SEG_SIZE - 1; i >= stoppingPoint; i--) {
-            result = stackSegments[DEFAULT_STACK_SEGMENTS - 1][i] +
+            result = Values.toString(
+                         stackSegments[DEFAULT_STACK_SEGMENTS - 1][i]) +
                      " | " + result;
         }
         return result;
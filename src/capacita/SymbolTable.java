@@ -0,0 +1,59 @@
+package capacita;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns identifier names into small non-negative symbol IDs, so that
+ * environments and shapes can be keyed by ints instead of by strings. IDs
+ * are shared by every compilation in the process, and never reused.
+ * @author Jiangcheng Oliver Chu
+ */
+public final class SymbolTable {
+    private static final ConcurrentHashMap<String, Integer> ids =
+        new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] names = new String[64];
+    private static int count = 0;
+
+    private SymbolTable() {}
+
+    /**
+     * @param name an identifier
+     * @return the symbol ID of name, assigned the first time it is interned
+     */
+    public static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (SymbolTable.class) {
+            id = ids.get(name);
+            if (id == null) {
+                if (count == names.length) {
+                    names = Arrays.copyOf(names, 2 * count);
+                }
+                names[count] = name;
+                id = count++;
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param name an identifier
+     * @return the symbol ID of name, or -1 if it was never interned
+     */
+    public static int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param symbol an interned symbol ID
+     * @return the identifier that symbol was interned from
+     */
+    public static String nameOf(int symbol) {
+        return names[symbol];
+    }
+}
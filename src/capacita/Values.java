@@ -0,0 +1,159 @@
+package capacita;
+
+/**
+ * Capacita values encoded in a single long, so that they can be stored in
+ * primitive arrays without any allocation. Doubles are stored as their own
+ * bits. Every other value is stored in the payload of a negative quiet NaN
+ * that no double operation produces, with a 3-bit tag above the payload:
+ * ints inline, strings and objects as a heap address and heap ID, and
+ * functions as the instruction index of their code.
+ * @author Jiangcheng Oliver Chu
+ */
+public final class Values {
+    public static final char MAIN_HEAP = 0;
+    public static final char INT_TYPE = 0;
+    public static final char DBL_TYPE = 1;
+    public static final char STR_TYPE = 2;
+    public static final char OBJ_TYPE = 3;
+    public static final char UNDEFINED_TYPE = 4;
+    public static final char FN_TYPE = 5;
+
+    private static final int TAG_SHIFT = 48;
+    /** Top 16 bits of the NaN whose payloads hold tagged values. */
+    private static final int BOXED_PREFIX = 0xfff8;
+    private static final long PAYLOAD_MASK = (1L << TAG_SHIFT) - 1;
+    private static final long CANONICAL_NAN = 0x7ff8000000000000L;
+    private static final int INT_TAG = 1;
+    private static final int STR_TAG = 2;
+    private static final int OBJ_TAG = 3;
+    private static final int FN_TAG = 4;
+    private static final int UNDEFINED_TAG = 7;
+
+    /** The value of a variable or property that does not exist. */
+    public static final long UNDEFINED = tagged(UNDEFINED_TAG, 0);
+
+    private Values() {}
+
+    private static long tagged(int tag, long payload) {
+        return ((long) (BOXED_PREFIX | tag) << TAG_SHIFT) | payload;
+    }
+
+    private static int tagOf(long value) {
+        return (int) (value >>> TAG_SHIFT) - BOXED_PREFIX;
+    }
+
+    public static long ofInt(int i) {
+        return tagged(INT_TAG, i & 0xffffffffL);
+    }
+
+    public static long ofDouble(double d) {
+        /* Every NaN is folded into one, so none can look like a tag. */
+        return d != d ? CANONICAL_NAN : Double.doubleToRawLongBits(d);
+    }
+
+    public static long ofString(int address, char heapId) {
+        return tagged(STR_TAG, ((long) heapId << 32) |
+                               (address & 0xffffffffL));
+    }
+
+    public static long ofObj(int address, char heapId) {
+        return tagged(OBJ_TAG, ((long) heapId << 32) |
+                               (address & 0xffffffffL));
+    }
+
+    /**
+     * @param instruction index of the first instruction of a function
+     * @return a value holding the function
+     */
+    public static long ofFunction(int instruction) {
+        return tagged(FN_TAG, instruction & 0xffffffffL);
+    }
+
+    /**
+     * @param value a tagged value
+     * @return one of INT_TYPE, DBL_TYPE, STR_TYPE, OBJ_TYPE, FN_TYPE or
+     *         UNDEFINED_TYPE
+     */
+    public static char typeOf(long value) {
+        switch (tagOf(value)) {
+        case INT_TAG:
+            return INT_TYPE;
+        case STR_TAG:
+            return STR_TYPE;
+        case OBJ_TAG:
+            return OBJ_TYPE;
+        case FN_TAG:
+            return FN_TYPE;
+        case UNDEFINED_TAG:
+            return UNDEFINED_TYPE;
+        default:
+            return DBL_TYPE;
+        }
+    }
+
+    public static boolean isInt(long value) {
+        return tagOf(value) == INT_TAG;
+    }
+
+    public static boolean isFunction(long value) {
+        return tagOf(value) == FN_TAG;
+    }
+
+    public static boolean isDouble(long value) {
+        return tagOf(value) <= 0;
+    }
+
+    public static boolean isDefined(long value) {
+        return value != UNDEFINED;
+    }
+
+    /**
+     * @param value a tagged int
+     * @return the int held by value
+     */
+    public static int asInt(long value) {
+        return (int) value;
+    }
+
+    /**
+     * @param value a tagged double
+     * @return the double held by value
+     */
+    public static double asDouble(long value) {
+        return Double.longBitsToDouble(value);
+    }
+
+    /**
+     * @param value a tagged string, object or function
+     * @return its address within its heap, or for a function, the index of
+     *         its first instruction
+     */
+    public static int addressOf(long value) {
+        return (int) value;
+    }
+
+    /**
+     * @param value a tagged string or object
+     * @return the ID of the heap holding it
+     */
+    public static char heapIdOf(long value) {
+        return (char) ((value & PAYLOAD_MASK) >>> 32);
+    }
+
+    public static String toString(long value) {
+        switch (typeOf(value)) {
+        case INT_TYPE:
+            return Integer.toString(asInt(value));
+        case DBL_TYPE:
+            return Double.toString(asDouble(value));
+        case STR_TYPE:
+            return "str@" + heapIdOf(value) + ":" + addressOf(value);
+        case OBJ_TYPE:
+            return "obj@" + heapIdOf(value) + ":" + addressOf(value);
+        case FN_TYPE:
+            return "fn@" + addressOf(value);
+        default:
+            return "undefined";
+        }
+    }
+}
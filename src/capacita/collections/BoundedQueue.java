@@ -0,0 +1,107 @@
+package capacita.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free bounded FIFO queue for any number of producers and consumers.
+ * Each slot of a ring carries a sequence number saying whether it is ready
+ * to be written or read at a given position, so that producers and
+ * consumers only contend on compare-and-set of their own position.
+ * @author Jiangcheng Oliver Chu
+ */
+public class BoundedQueue<T> {
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    /** Position of the next element offered. */
+    private final AtomicLong tail = new AtomicLong();
+    /** Position of the next element polled. */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param minimumCapacity rounded up to a power of 2
+     */
+    public BoundedQueue(int minimumCapacity) {
+        int capacity = 2;
+        while (capacity < minimumCapacity) {
+            capacity <<= 1;
+        }
+        elements = new AtomicReferenceArray<T>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @param element must not be null
+     * @return false iff the queue is full
+     */
+    public boolean offer(T element) {
+        long position = tail.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if no element is ready
+     */
+    public T poll() {
+        long position = head.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T element = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements offered successfully so far, counting
+     *         those still being stored
+     */
+    public long getOfferedCount() {
+        return tail.get();
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
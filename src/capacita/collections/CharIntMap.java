@@ -0,0 +1,98 @@
+package capacita.collections;
+
+/**
+ * A map from chars to ints using open addressing with linear probing,
+ * so that neither keys nor values are boxed.
+ * @author Jiangcheng Oliver Chu
+ */
+public class CharIntMap {
+    private static final int DEFAULT_CAPACITY = 16;
+    private char[] keys;
+    private int[] values;
+    private boolean[] isOccupied;
+    /** Leaves as many high bits of a hash as index the table. */
+    private int hashShift;
+    private int size;
+
+    public CharIntMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of keys that fit without rehashing
+     */
+    public CharIntMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int tableSize = 2;
+        while (tableSize < 2 * expectedSize) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    private void allocate(int tableSize) {
+        keys = new char[tableSize];
+        values = new int[tableSize];
+        isOccupied = new boolean[tableSize];
+        hashShift = Integer.numberOfLeadingZeros(tableSize) + 1;
+        size = 0;
+    }
+
+    private int slotOf(char key) {
+        int mask = keys.length - 1;
+        int slot = (key * 0x9e3779b9) >>> hashShift;
+        while (isOccupied[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public void put(char key, int value) {
+        int slot = slotOf(key);
+        if (!isOccupied[slot]) {
+            if (2 * (size + 1) > keys.length) {
+                rehash(2 * keys.length);
+                slot = slotOf(key);
+            }
+            isOccupied[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return the value of key, or missingValue if key is absent
+     */
+    public int get(char key, int missingValue) {
+        int slot = slotOf(key);
+        return isOccupied[slot] ? values[slot] : missingValue;
+    }
+
+    public boolean containsKey(char key) {
+        return isOccupied[slotOf(key)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(keys.length);
+    }
+
+    private void rehash(int tableSize) {
+        char[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] wasOccupied = isOccupied;
+        allocate(tableSize);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (wasOccupied[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package capacita.collections;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints backed by one flat array, so nothing is boxed.
+ * @author Jiangcheng Oliver Chu
+ */
+public class IntArrayList {
+    private static final int DEFAULT_CAPACITY = 16;
+    private int[] elements;
+    private int size;
+
+    public IntArrayList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntArrayList(int initialCapacity) {
+        elements = new int[Math.max(1, initialCapacity)];
+        size = 0;
+    }
+
+    public void add(int i) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, 2 * elements.length);
+        }
+        elements[size++] = i;
+    }
+
+    /**
+     * Appends count elements of source, starting at offset.
+     */
+    public void addAll(int[] source, int offset, int count) {
+        ensureCapacity(size + count);
+        System.arraycopy(source, offset, elements, size, count);
+        size += count;
+    }
+
+    public int get(int index) {
+        checkIndex(index);
+        return elements[index];
+    }
+
+    public void set(int index, int i) {
+        checkIndex(index);
+        elements[index] = i;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(
+                "Index " + index + " in int list of size " + size);
+        }
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > elements.length) {
+            elements = Arrays.copyOf(elements,
+                           Math.max(capacity, 2 * elements.length));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every element, keeping the allocated array for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the elements, exactly size() long
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+}
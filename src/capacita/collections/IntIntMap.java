@@ -0,0 +1,132 @@
+package capacita.collections;
+
+/**
+ * A map from ints to ints using open addressing with linear probing,
+ * so that neither keys nor values are boxed.
+ * @author Jiangcheng Oliver Chu
+ */
+public class IntIntMap {
+    private static final int DEFAULT_CAPACITY = 16;
+    private int[] keys;
+    private int[] values;
+    private boolean[] isOccupied;
+    /** Leaves as many high bits of a hash as index the table. */
+    private int hashShift;
+    private int size;
+
+    public IntIntMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of keys that fit without rehashing
+     */
+    public IntIntMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int tableSize = 2;
+        while (tableSize < 2 * expectedSize) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    private void allocate(int tableSize) {
+        keys = new int[tableSize];
+        values = new int[tableSize];
+        isOccupied = new boolean[tableSize];
+        hashShift = Integer.numberOfLeadingZeros(tableSize) + 1;
+        size = 0;
+    }
+
+    private int homeSlot(int key) {
+        return (key * 0x9e3779b9) >>> hashShift;
+    }
+
+    private int slotOf(int key) {
+        int mask = keys.length - 1;
+        int slot = homeSlot(key);
+        while (isOccupied[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public void put(int key, int value) {
+        int slot = slotOf(key);
+        if (!isOccupied[slot]) {
+            if (2 * (size + 1) > keys.length) {
+                rehash(2 * keys.length);
+                slot = slotOf(key);
+            }
+            isOccupied[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return the value of key, or missingValue if key is absent
+     */
+    public int get(int key, int missingValue) {
+        int slot = slotOf(key);
+        return isOccupied[slot] ? values[slot] : missingValue;
+    }
+
+    public boolean containsKey(int key) {
+        return isOccupied[slotOf(key)];
+    }
+
+    /**
+     * Removes key, shifting later entries of its probe run back so that
+     * no tombstones are needed.
+     * @return true iff key was present
+     */
+    public boolean remove(int key) {
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        if (!isOccupied[slot]) {
+            return false;
+        }
+        int next = (slot + 1) & mask;
+        while (isOccupied[next]) {
+            int home = homeSlot(keys[next]);
+            /* Move the entry back unless its home lies cyclically in
+             * (slot, next]. */
+            boolean stays = slot <= next ? (slot < home && home <= next) :
+                                           (slot < home || home <= next);
+            if (!stays) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        isOccupied[slot] = false;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(keys.length);
+    }
+
+    private void rehash(int tableSize) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] wasOccupied = isOccupied;
+        allocate(tableSize);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (wasOccupied[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
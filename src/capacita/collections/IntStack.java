@@ -0,0 +1,60 @@
+package capacita.collections;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A stack of ints backed by a growable array, so nothing is boxed.
+ * @author Jiangcheng Oliver Chu
+ */
+public class IntStack {
+    private static final int DEFAULT_CAPACITY = 16;
+    private int[] elements;
+    private int size;
+
+    public IntStack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntStack(int initialCapacity) {
+        elements = new int[Math.max(1, initialCapacity)];
+        size = 0;
+    }
+
+    public void push(int i) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, 2 * elements.length);
+        }
+        elements[size++] = i;
+    }
+
+    public int pop() throws NoSuchElementException {
+        if (size == 0) {
+            throw new NoSuchElementException(
+                      "Int stack has no more elements.");
+        }
+        return elements[--size];
+    }
+
+    public int peek() throws NoSuchElementException {
+        if (size == 0) {
+            throw new NoSuchElementException("Int stack is empty.");
+        }
+        return elements[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every element, keeping the allocated array for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+}
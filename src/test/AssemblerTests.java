@@ -1,8 +1,18 @@
 package test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
 import capacita.Assembler;
+import capacita.CompilationCache;
+import capacita.IncrementalAssembler;
 import capacita.InternalException;
+import capacita.StreamingAssembler;
 
 /**
  *
@@ -145,11 +155,294 @@ public class AssemblerTests extends TestGroup {
                         return false;
                     }
                 }
+            },
+            new TestGroup("hex_constants") {
+                @Override
+                protected boolean mainTest() {
+                    String hexProgram = "i mov r1, rZERO, 0x1F\n" +
+                                        "i add r2, r1, -0x10\n" +
+                                        "i xor r3, r3, 0xffffffff";
+                    int[] correctCompilation = {
+                        0x180040, 0x1f,
+                        0x200081, -0x10,
+                        0x5800c3, -0x1
+                    };
+                    try {
+                        return Arrays.equals(correctCompilation,
+                            Assembler.flatCompileDirectly(hexProgram));
+                    } catch (InternalException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("parallel_assembly") {
+                @Override
+                protected boolean mainTest() {
+                    StringBuilder generated = new StringBuilder();
+                    for (int i = 0; i < 20000; i++) {
+                        generated.append("i add r").append(i % 64)
+                                 .append(", rZERO, ").append(i).append('\n');
+                    }
+                    String source = generated.toString();
+                    try {
+                        int[] sequential = Assembler.flatCompileDirectly(source);
+                        int[] parallel =
+                              Assembler.parallelFlatCompileDirectly(source);
+                        if (!Arrays.equals(sequential, parallel)) {
+                            setFailureMessage("Parallel assembly differs " +
+                                              "from sequential assembly.");
+                            return false;
+                        }
+                    } catch (InternalException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    }
+                    int secondHalf = source.indexOf("i add r16, rZERO, 10000");
+                    String illegalSource = source.substring(0, secondHalf) +
+                                           "i bogus r1, r2, 0\n" +
+                                           source.substring(secondHalf) +
+                                           "i add r1, r99, 0";
+                    try {
+                        Assembler.parallelFlatCompileDirectly(illegalSource);
+                        setFailureMessage("Illegal lines were assembled.");
+                        return false;
+                    } catch (InternalException ex) {
+                        return assertEquals(ex.getMessage().substring(0, 11),
+                                            "Line 10001:");
+                    }
+                }
+            },
+            new TestGroup("streaming_assembly") {
+                @Override
+                protected boolean mainTest() {
+                    StringBuilder generated = new StringBuilder();
+                    for (int i = 0; i < 2000; i++) {
+                        generated.append("i mul r").append(i % 64)
+                                 .append(", rSP, ").append(-i).append('\n');
+                    }
+                    generated.append("\n\n");
+                    String source = generated.toString();
+                    int[] expected;
+                    int[] fromReader;
+                    int[] fromFile;
+                    int written;
+                    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+                    try {
+                        expected = Assembler.flatCompileDirectly(source);
+                        fromReader = StreamingAssembler.compile(
+                                     new StringReader(source));
+                        Path file = Files.createTempFile("successor", ".s");
+                        try {
+                            Files.write(file, source.getBytes("US-ASCII"));
+                            fromFile = StreamingAssembler.compile(file);
+                        } finally {
+                            deleteMapped(file);
+                        }
+                        written = StreamingAssembler.compile(
+                                  new StringReader(source), binary);
+                    } catch (InternalException | IOException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    }
+                    if (!Arrays.equals(expected, fromReader) ||
+                        !Arrays.equals(expected, fromFile) ||
+                        written != expected.length / 2 ||
+                        binary.size() != 4 * expected.length) {
+                        setFailureMessage("Streamed program differs.");
+                        return false;
+                    }
+                    try {
+                        StreamingAssembler.compile(
+                            new StringReader("j 0\n\nj 1"));
+                        setFailureMessage("Empty line was assembled.");
+                        return false;
+                    } catch (InternalException ex) {
+                        return assertEquals(ex.getMessage().substring(0, 7),
+                                            "Line 2:");
+                    } catch (IOException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("incremental_assembly") {
+                @Override
+                protected boolean mainTest() {
+                    StringBuilder generated = new StringBuilder();
+                    for (int i = 0; i < 10000; i++) {
+                        generated.append("i sub r").append(i % 60)
+                                 .append(", rBP, ").append(i).append('\n');
+                    }
+                    String source = generated.toString();
+                    String edited = source.replace("i sub r5, rBP, 65\n",
+                                                   "i or r5, rBP, 65\n");
+                    try {
+                        IncrementalAssembler assembler =
+                                             new IncrementalAssembler();
+                        assembler.update(source);
+                        int[] updated = assembler.update(edited);
+                        TestTools.assertTrue(Arrays.equals(updated,
+                            Assembler.flatCompileDirectly(edited)));
+                        assembler.edit(65, 1, "i and r5, rBP, 65");
+                        String anded = edited.replace("i or r5, rBP, 65\n",
+                                                      "i and r5, rBP, 65\n");
+                        TestTools.assertTrue(Arrays.equals(
+                            assembler.getProgram(),
+                            Assembler.flatCompileDirectly(anded)));
+                        /* Moves the gap both ways and grows it. */
+                        assembler.edit(9000, 2, "");
+                        assembler.edit(10, 0, "j 1\nj 2\nj 3");
+                        String moved = anded.replace(
+                            "i sub r0, rBP, 9000\ni sub r1, rBP, 9001\n", "")
+                            .replace("i sub r10, rBP, 10\n",
+                                     "j 1\nj 2\nj 3\ni sub r10, rBP, 10\n");
+                        TestTools.assertTrue(Arrays.equals(
+                            assembler.getProgram(),
+                            Assembler.flatCompileDirectly(moved)));
+                        TestTools.assertTrue(assembler.getLineCount() ==
+                                             10001);
+                        TestTools.assertTrue(assembler.getCachedLineCount() <=
+                            IncrementalAssembler.MAX_CACHED_LINES);
+                        return true;
+                    } catch (InternalException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("compilation_cache") {
+                @Override
+                protected boolean mainTest() {
+                    String first = "i mov r1, rZERO, 6\nj -1";
+                    String second = "i mov r2, rZERO, 7\nj -1";
+                    Path directory = null;
+                    try {
+                        directory = Files.createTempDirectory("successor");
+                        /* Room for exactly one 6-word entry. */
+                        CompilationCache cache =
+                                         new CompilationCache(directory, 24);
+                        TestTools.assertTrue(cache.get(first) == null);
+                        int[] compiled = cache.assemble(first);
+                        TestTools.assertTrue(Arrays.equals(compiled,
+                            cache.get(first)));
+                        /* Left behind by a writer that crashed. */
+                        Path stale = Files.createTempFile(directory,
+                                                          "entry", ".tmp");
+                        Files.setLastModifiedTime(stale,
+                            FileTime.fromMillis(0));
+                        cache.assemble(second);
+                        File[] entries = directory.toFile().listFiles();
+                        TestTools.assertTrue(entries.length == 1);
+                        return assertEquals(entries[0].length(), 24L);
+                    } catch (InternalException | IOException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    } finally {
+                        if (directory != null) {
+                            for (File entry : directory.toFile().listFiles()) {
+                                entry.delete();
+                            }
+                            directory.toFile().delete();
+                        }
+                    }
+                }
             }
         };
         setSubtests(tests);
     }
     
+    /**
+     * @return a new instance of each benchmark of the assemblers
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new Benchmark("assembler_flat_compile", 1 << 16, 1 << 22) {
+                private String source;
+
+                @Override
+                protected void setUp(int size) {
+                    source = mixedSource(size);
+                }
+
+                @Override
+                protected Object operation() throws InternalException {
+                    return Assembler.flatCompileDirectly(source);
+                }
+            },
+            new Benchmark("assembler_parallel_compile", 1 << 16, 1 << 22) {
+                private String source;
+
+                @Override
+                protected void setUp(int size) {
+                    source = mixedSource(size);
+                }
+
+                @Override
+                protected Object operation() throws InternalException {
+                    return Assembler.parallelFlatCompileDirectly(source);
+                }
+            },
+            new Benchmark("incremental_assembler_edit", 1000, 100000) {
+                private IncrementalAssembler assembler;
+                private int line;
+
+                @Override
+                protected void setUp(int size) throws InternalException {
+                    StringBuilder generated = new StringBuilder();
+                    for (int i = 0; i < size; i++) {
+                        generated.append("i sub r").append(i % 60)
+                                 .append(", rBP, ").append(i).append('\n');
+                    }
+                    assembler = new IncrementalAssembler();
+                    assembler.update(generated.toString());
+                    line = size / 2;
+                }
+
+                @Override
+                protected Object operation() throws InternalException {
+                    /* Alternate lines, so the gap moves on each edit. */
+                    line ^= 1;
+                    assembler.edit(line, 1, "i and r5, rBP, 65");
+                    return assembler.getLineCount();
+                }
+            }
+        };
+    }
+
+    /**
+     * Deletes a file that may still be memory-mapped. Windows refuses to
+     * delete a mapped file until the mapping is collected, so the file is
+     * then left to be deleted on exit.
+     */
+    private static void deleteMapped(Path file) {
+        try {
+            Files.delete(file);
+        } catch (IOException ex) {
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * @return about length chars of assembly mixing several instructions
+     */
+    private static String mixedSource(int length) {
+        String[] instructions = {
+            "i mov r2, rZERO, 0\n",
+            "i add r1, rZERO, 100\n",
+            "jge r2, r6, 8\n",
+            "i save r1, rSP, rZERO, 0\n",
+            "i load r6, rBP, rZERO, 0x2\n",
+            "call 7\n",
+            "ret\n"
+        };
+        StringBuilder generated = new StringBuilder(length);
+        for (int i = 0; generated.length() < length; i++) {
+            generated.append(instructions[i % instructions.length]);
+        }
+        return generated.toString();
+    }
+
     @Override
     protected boolean mainTest() {
         return true;
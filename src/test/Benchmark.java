@@ -0,0 +1,172 @@
+package test;
+
+/**
+ * A micro-benchmark of one operation, run at each of several input sizes.
+ * Each iteration calls the operation repeatedly for a fixed time, so fast
+ * operations are timed over many calls rather than one nanoTime() pair.
+ * Warmup iterations are run and discarded before measuring, so the JIT
+ * has compiled the operation, and the bytes allocated by the measuring
+ * thread are divided among the calls measured.
+ * @author Jiangcheng Oliver Chu
+ */
+public abstract class Benchmark {
+    private final String name;
+    private final int[] sizes;
+    /** Holds the last result, so computing it cannot be optimized away. */
+    private Object sink;
+
+    /**
+     * @param benchmarkName name printed in reports
+     * @param inputSizes sizes passed to setUp, one set of iterations each
+     */
+    public Benchmark(String benchmarkName, int... inputSizes) {
+        name = benchmarkName;
+        sizes = inputSizes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int[] getSizes() {
+        return sizes;
+    }
+
+    /**
+     * Prepares the input of the operation, outside of any timing.
+     * @param size input size, such as a number of chars or loop iterations
+     * @throws Exception if the input cannot be prepared
+     */
+    protected abstract void setUp(int size) throws Exception;
+
+    /**
+     * Runs the operation once on the input prepared by setUp.
+     * @return the result of the operation, or any object derived from it
+     * @throws Exception if the operation fails
+     */
+    protected abstract Object operation() throws Exception;
+
+    /**
+     * Releases what setUp acquired, such as temporary files, after the
+     * input of one size has been measured.
+     * @throws Exception if it cannot be released
+     */
+    protected void tearDown() throws Exception {}
+
+    /**
+     * @param size input size to prepare
+     * @param warmupIterations iterations run before measuring
+     * @param iterations iterations measured
+     * @param iterationNanos time each iteration keeps calling the operation
+     * @return time and allocation per call
+     * @throws Exception if setUp, the operation or tearDown fails
+     */
+    public Result measure(int size, int warmupIterations, int iterations,
+                          long iterationNanos) throws Exception {
+        setUp(size);
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iterate(iterationNanos, new long[1]);
+            }
+            double[] nanosPerCall = new double[iterations];
+            long calls = 0;
+            long before = TestTools.threadAllocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                long[] count = new long[1];
+                long nanos = iterate(iterationNanos, count);
+                nanosPerCall[i] = nanos / (double) count[0];
+                calls += count[0];
+            }
+            long allocated = TestTools.threadAllocatedBytes() - before;
+            double bytesPerCall = before < 0 ? Double.NaN :
+                                  allocated / (double) calls;
+            return new Result(name, size, nanosPerCall, bytesPerCall);
+        } finally {
+            tearDown();
+        }
+    }
+
+    /**
+     * Calls the operation until iterationNanos have passed.
+     * @param count receives the number of calls made
+     * @return nanoseconds taken by the calls
+     */
+    private long iterate(long iterationNanos, long[] count)
+            throws Exception {
+        long startTime = System.nanoTime();
+        long elapsed;
+        long calls = 0;
+        do {
+            sink = operation();
+            calls++;
+            elapsed = System.nanoTime() - startTime;
+        } while (elapsed < iterationNanos);
+        count[0] = calls;
+        return elapsed;
+    }
+
+    /**
+     * Measurements of one benchmark at one input size.
+     */
+    public static class Result {
+        private final String name;
+        private final int size;
+        private final double[] nanosPerCall;
+        private final double bytesPerCall;
+
+        Result(String benchmarkName, int inputSize, double[] nanos,
+               double bytes) {
+            name = benchmarkName;
+            size = inputSize;
+            nanosPerCall = nanos;
+            bytesPerCall = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getIterations() {
+            return nanosPerCall.length;
+        }
+
+        /**
+         * @return mean over the iterations of nanoseconds per call
+         */
+        public double getScore() {
+            double sum = 0;
+            for (double nanos : nanosPerCall) {
+                sum += nanos;
+            }
+            return sum / nanosPerCall.length;
+        }
+
+        /**
+         * @return sample standard deviation over the iterations of
+         *         nanoseconds per call, or 0 for a single iteration
+         */
+        public double getError() {
+            if (nanosPerCall.length < 2) {
+                return 0;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double nanos : nanosPerCall) {
+                squares += (nanos - mean) * (nanos - mean);
+            }
+            return Math.sqrt(squares / (nanosPerCall.length - 1));
+        }
+
+        /**
+         * @return bytes allocated per call, or NaN if the JVM cannot
+         *         report allocation
+         */
+        public double getBytesPerCall() {
+            return bytesPerCall;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import capacita.Assembler;
+import capacita.Capacita;
+import capacita.CapacitaException;
+import capacita.DenseLinkedList;
+import capacita.RPNCompiler;
+import capacita.ShuntingYard;
+import capacita.SuccessorVirtualMachine;
+import tools.SyntaxHighlight;
+
+/**
+ * Benchmarks of every Capacita subsystem at several input sizes, reporting
+ * time and allocation per call. Besides its own, the suite runs the
+ * benchmarks that each test class keeps beside its tests. As a test, each benchmark is run once at
+ * its smallest size to check that it works. For measurements, run
+ *     java test.BenchmarkSuite [-f regex] [-o results.csv] [-b base.csv]
+ * where -f keeps the benchmarks whose names match, -o saves the results,
+ * and -b compares them to results saved by an earlier run.
+ * @author Jiangcheng Oliver Chu
+ */
+public class BenchmarkSuite extends TestGroup {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 200000000L;
+    private static final String CSV_HEADER =
+        "benchmark,size,iterations,ns_per_call,error_ns,bytes_per_call";
+
+    public BenchmarkSuite() {
+        super("benchmark_suite");
+        TestGroup[] tests = {
+            new TestGroup("all_benchmarks") {
+                @Override
+                protected boolean mainTest() {
+                    /* One short iteration at the smallest size. */
+                    for (Benchmark benchmark : allBenchmarks()) {
+                        Benchmark.Result result;
+                        try {
+                            result = benchmark.measure(
+                                benchmark.getSizes()[0], 0, 1, 1000000L);
+                        } catch (Exception ex) {
+                            setFailureMessage(benchmark.getName() + ": " +
+                                              ex);
+                            return false;
+                        }
+                        if (!(result.getScore() > 0)) {
+                            setFailureMessage(benchmark.getName() +
+                                              " took no time.");
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            },
+            new TestGroup("timeable_statistics") {
+                @Override
+                protected boolean mainTest() {
+                    final int[] calls = new int[1];
+                    Timeable allocating = new Timeable() {
+                        @Override
+                        public boolean run() {
+                            calls[0]++;
+                            int[] garbage = new int[1 << 18];
+                            garbage[calls[0] & 0xff] = calls[0];
+                            return garbage.length > 0;
+                        }
+                    };
+                    Timeable.Statistics statistics =
+                        allocating.getStatistics(3, 20);
+                    long allocated = statistics.getAllocatedBytes();
+                    return assertEquals(calls[0], 23) &&
+                           assertEquals(statistics.getRuns(), 20) &&
+                           assertEquals(statistics.hasAllPassed(), true) &&
+                           assertEquals(statistics.getMedian() <=
+                                        statistics.getP90() &&
+                                        statistics.getP90() <=
+                                        statistics.getP99(), true) &&
+                           assertEquals(allocated < 0 ||
+                                        allocated >= 4 << 18, true);
+                }
+            }
+        };
+        setSubtests(tests);
+    }
+
+    /**
+     * @return a new instance of every benchmark
+     */
+    public static Benchmark[] allBenchmarks() {
+        Benchmark[][] groups = {
+            coreBenchmarks(), AssemblerTests.benchmarks(),
+            SuccessorTests.benchmarks(), DataTests.benchmarks(),
+            CompilerTests.benchmarks(), CollectionsTests.benchmarks(),
+            IOTests.benchmarks(), SyntaxHighlightTests.benchmarks()
+        };
+        ArrayList<Benchmark> all = new ArrayList<Benchmark>();
+        for (Benchmark[] group : groups) {
+            all.addAll(Arrays.asList(group));
+        }
+        return all.toArray(new Benchmark[all.size()]);
+    }
+
+    /**
+     * @return a new instance of each benchmark of a whole subsystem
+     */
+    private static Benchmark[] coreBenchmarks() {
+        return new Benchmark[]{
+            new Benchmark("vm_execute_loop", 1000, 100000) {
+                private int[] program;
+
+                @Override
+                protected void setUp(int size) throws CapacitaException {
+                    program = Assembler.flatCompileDirectly(
+                        "i mov r1, rZERO, 0\n" +
+                        "i mov r2, rZERO, " + size + "\n" +
+                        "i add r1, rZERO, 1\n" +
+                        "i jle r1, r2, 2\n" +
+                        Assembler.SUCCESSOR_EXIT);
+                }
+
+                @Override
+                protected Object operation() throws CapacitaException {
+                    return new SuccessorVirtualMachine(program).execute();
+                }
+            },
+            new Benchmark("vm_execute_calls", 1000, 100000) {
+                private int[] program;
+
+                @Override
+                protected void setUp(int size) throws CapacitaException {
+                    program = Assembler.flatCompileDirectly(
+                        "j 3\n" +
+                        "i add r7, rZERO, 1\n" +
+                        "ret\n" +
+                        "i mov r7, rZERO, 0\n" +
+                        "i mov r1, rZERO, " + size + "\n" +
+                        "call 1\n" +
+                        "i sub r1, rZERO, 1\n" +
+                        "jg r1, rZERO, 5\n" +
+                        Assembler.SUCCESSOR_EXIT);
+                }
+
+                @Override
+                protected Object operation() throws CapacitaException {
+                    return new SuccessorVirtualMachine(program).execute();
+                }
+            },
+            new Benchmark("assembler_compile", 100, 10000) {
+                private String code;
+
+                @Override
+                protected void setUp(int size) {
+                    StringBuilder lines = new StringBuilder();
+                    for (int i = 0; i < size; i++) {
+                        lines.append("i add r1, r2, ").append(i).append('\n');
+                    }
+                    lines.append(Assembler.SUCCESSOR_EXIT);
+                    code = lines.toString();
+                }
+
+                @Override
+                protected Object operation() throws CapacitaException {
+                    return new Assembler(code).compile();
+                }
+            },
+            new Benchmark("shunting_yard_infix_to_rpn", 16, 1024) {
+                private final DenseLinkedList queue = new DenseLinkedList();
+                private String infix;
+
+                @Override
+                protected void setUp(int size) {
+                    infix = infixExpression(size);
+                }
+
+                @Override
+                protected Object operation() throws CapacitaException {
+                    ShuntingYard.infixToRPN(infix, queue);
+                    return queue;
+                }
+            },
+            new Benchmark("rpn_compiler_compile", 16, 1024) {
+                private final RPNCompiler compiler = new RPNCompiler("");
+                private String rpn;
+
+                @Override
+                protected void setUp(int size) throws CapacitaException {
+                    rpn = ShuntingYard.infixToRPN(infixExpression(size))
+                                      .convertToString();
+                }
+
+                @Override
+                protected Object operation() {
+                    compiler.reset(rpn);
+                    return compiler.compile();
+                }
+            },
+            new Benchmark("dense_linked_list_push_pop", 64, 65536) {
+                private final DenseLinkedList list = new DenseLinkedList();
+                private int count;
+
+                @Override
+                protected void setUp(int size) {
+                    count = size;
+                }
+
+                @Override
+                protected Object operation() {
+                    for (int i = 0; i < count; i++) {
+                        list.push((char) i);
+                    }
+                    int sum = 0;
+                    while (!list.isEmpty()) {
+                        sum += list.pop();
+                    }
+                    return sum;
+                }
+            },
+            new Benchmark("syntax_highlight", 1 << 10, 1 << 16, 1 << 20,
+                          1 << 24) {
+                private final SyntaxHighlight highlighter =
+                    new SyntaxHighlight();
+                private String code;
+
+                @Override
+                protected void setUp(int size) {
+                    code = SyntaxHighlightTests.sampleCode(size);
+                }
+
+                @Override
+                protected Object operation() {
+                    return highlighter.highlight(code);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return an expression of size single-letter operands, such as
+     *         "a*b+c*d-e"
+     */
+    private static String infixExpression(int size) {
+        String operators = "*+*-";
+        StringBuilder infix = new StringBuilder(2 * size);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                infix.append(operators.charAt(i % operators.length()));
+            }
+            infix.append((char) ('a' + i % 26));
+        }
+        return infix.toString();
+    }
+
+    @Override
+    protected boolean mainTest() {
+        return true;
+    }
+
+    /**
+     * @param args optional -f regex, -o results.csv and -b base.csv
+     * @throws Exception if a benchmark fails, or results cannot be read or
+     *         saved
+     */
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(".*");
+        Path output = null;
+        HashMap<String, Double> baseline = new HashMap<String, Double>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-f")) {
+                filter = Pattern.compile(args[i + 1]);
+            } else if (args[i].equals("-o")) {
+                output = Paths.get(args[i + 1]);
+            } else if (args[i].equals("-b")) {
+                baseline = readScores(Paths.get(args[i + 1]));
+            } else {
+                throw new IllegalArgumentException("Unknown option " +
+                                                   args[i]);
+            }
+        }
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Missing value of option " +
+                                               args[args.length - 1]);
+        }
+        ArrayList<String> csv = new ArrayList<String>();
+        csv.add(CSV_HEADER);
+        Capacita.IO.println(String.format("%-28s %8s %4s %14s %12s %14s %8s",
+            "Benchmark", "Size", "Cnt", "ns/call", "Error", "B/call",
+            "vs base"));
+        for (Benchmark benchmark : allBenchmarks()) {
+            if (!filter.matcher(benchmark.getName()).find()) {
+                continue;
+            }
+            for (int size : benchmark.getSizes()) {
+                Benchmark.Result result = benchmark.measure(size,
+                    WARMUP_ITERATIONS, ITERATIONS, ITERATION_NANOS);
+                String key = result.getName() + "," + size;
+                Double base = baseline.get(key);
+                Capacita.IO.println(String.format(
+                    "%-28s %8d %4d %14.1f %12.1f %14.1f %8s",
+                    result.getName(), size, result.getIterations(),
+                    result.getScore(), result.getError(),
+                    result.getBytesPerCall(), base == null ? "" :
+                        String.format("%+.1f%%",
+                            100 * (result.getScore() / base - 1))));
+                csv.add(key + "," + result.getIterations() + "," +
+                        result.getScore() + "," + result.getError() + "," +
+                        result.getBytesPerCall());
+            }
+        }
+        if (output != null) {
+            Files.write(output, csv, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return nanoseconds per call of each benchmark and size, keyed by
+     *         name and size separated by a comma
+     */
+    private static HashMap<String, Double> readScores(Path csvFile)
+            throws IOException {
+        HashMap<String, Double> scores = new HashMap<String, Double>();
+        List<String> lines = Files.readAllLines(csvFile,
+                                                StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            scores.put(fields[0] + "," + fields[1],
+                       Double.parseDouble(fields[3]));
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,293 @@
+package test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import capacita.collections.BoundedQueue;
+import capacita.collections.CharIntMap;
+import capacita.collections.IntArrayList;
+import capacita.collections.IntIntMap;
+import capacita.collections.IntStack;
+
+/**
+ * Tests and benchmarks for the primitive-specialized collections.
+ * @author Jiangcheng Oliver Chu
+ */
+public class CollectionsTests extends TestGroup {
+    public CollectionsTests() {
+        super("collections_tests");
+        TestGroup[] tests = {
+            new TestGroup("int_stack_and_list") {
+                @Override
+                protected boolean mainTest() {
+                    IntStack stack = new IntStack(1);
+                    IntArrayList list = new IntArrayList(1);
+                    for (int i = 0; i < 100; i++) {
+                        stack.push(i * i);
+                        list.add(-i);
+                    }
+                    list.addAll(new int[]{7, 8, 9}, 1, 2);
+                    int sum = 0;
+                    while (!stack.isEmpty()) {
+                        sum += stack.pop();
+                    }
+                    return assertEquals(sum, 328350) &&
+                           assertEquals(list.size(), 102) &&
+                           assertEquals(list.get(99) + list.get(101), -90) &&
+                           assertEquals(list.toArray().length, 102);
+                }
+            },
+            new TestGroup("char_int_map") {
+                @Override
+                protected boolean mainTest() {
+                    CharIntMap map = new CharIntMap(2);
+                    for (char c = 0; c < 1000; c++) {
+                        map.put(c, c * 3);
+                    }
+                    map.put('\u2261', 9);
+                    return assertEquals(map.size(), 1001) &&
+                           assertEquals(map.get('\0', -1), 0) &&
+                           assertEquals(map.get((char) 999, -1), 2997) &&
+                           assertEquals(map.get('\u2261', -1), 9) &&
+                           assertEquals(map.get('\u2262', -1), -1) &&
+                           allCharsMapped();
+                }
+
+                /* Every char, so the table grows past 2^16 slots. */
+                private boolean allCharsMapped() {
+                    CharIntMap map = new CharIntMap();
+                    for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                        map.put((char) c, -c);
+                    }
+                    for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                        if (map.get((char) c, 1) != -c) {
+                            setFailureMessage("Wrong value of char " + c);
+                            return false;
+                        }
+                    }
+                    return assertEquals(map.size(), Character.MAX_VALUE + 1);
+                }
+            },
+            new TestGroup("int_int_map") {
+                @Override
+                protected boolean mainTest() {
+                    IntIntMap map = new IntIntMap();
+                    for (int i = -500; i < 500; i++) {
+                        map.put(i * 64, i);
+                    }
+                    for (int i = -500; i < 500; i += 2) {
+                        if (!map.remove(i * 64)) {
+                            setFailureMessage("Missing key " + (i * 64));
+                            return false;
+                        }
+                    }
+                    for (int i = -499; i < 500; i += 2) {
+                        if (map.get(i * 64, Integer.MIN_VALUE) != i) {
+                            setFailureMessage("Lost key " + (i * 64));
+                            return false;
+                        }
+                    }
+                    return assertEquals(map.size(), 500) &&
+                           assertEquals(map.containsKey(0), false) &&
+                           assertEquals(map.remove(0), false);
+                }
+            },
+            new TestGroup("bounded_queue") {
+                @Override
+                protected boolean mainTest() {
+                    final BoundedQueue<Integer> queue =
+                        new BoundedQueue<Integer>(5);
+                    for (int i = 0; i < queue.capacity(); i++) {
+                        queue.offer(i);
+                    }
+                    if (queue.offer(-1) || queue.capacity() != 8) {
+                        setFailureMessage("Queue did not fill up at 8.");
+                        return false;
+                    }
+                    for (int i = 0; i < 8; i++) {
+                        if (queue.poll() != i) {
+                            setFailureMessage("Queue is not FIFO.");
+                            return false;
+                        }
+                    }
+                    final int producers = 4;
+                    final int count = 10000;
+                    Thread[] threads = new Thread[producers];
+                    for (int t = 0; t < producers; t++) {
+                        final int producer = t;
+                        threads[t] = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (int i = 0; i < count; i++) {
+                                    while (!queue.offer(producer * count + i))
+                                    {
+                                        Thread.yield();
+                                    }
+                                }
+                            }
+                        });
+                        threads[t].start();
+                    }
+                    int[] next = new int[producers];
+                    int received = 0;
+                    while (received < producers * count) {
+                        Integer element = queue.poll();
+                        if (element == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int producer = element / count;
+                        if (element % count != next[producer]) {
+                            setFailureMessage("Producer order was lost.");
+                            return false;
+                        }
+                        next[producer]++;
+                        received++;
+                    }
+                    return assertEquals(queue.isEmpty(), true) &&
+                           assertEquals(queue.poll() == null, true) &&
+                           assertEquals(queue.getOfferedCount(),
+                                        8L + producers * count);
+                }
+            }
+        };
+        setSubtests(tests);
+    }
+
+    /**
+     * @return a new instance of each benchmark of a primitive collection
+     *         and of its boxed equivalent
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new CollectionBenchmark("int_stack_push_pop") {
+                @Override
+                protected Object operation() {
+                    IntStack stack = new IntStack();
+                    for (int i = 0; i < count; i++) {
+                        stack.push(i);
+                    }
+                    while (!stack.isEmpty()) {
+                        stack.pop();
+                    }
+                    return stack;
+                }
+            },
+            new CollectionBenchmark("array_deque_int_push_pop") {
+                @Override
+                protected Object operation() {
+                    ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+                    for (int i = 0; i < count; i++) {
+                        stack.push(i);
+                    }
+                    while (!stack.isEmpty()) {
+                        stack.pop();
+                    }
+                    return stack;
+                }
+            },
+            new CollectionBenchmark("int_array_list_add_get") {
+                @Override
+                protected Object operation() {
+                    IntArrayList list = new IntArrayList();
+                    for (int i = 0; i < count; i++) {
+                        list.add(i);
+                    }
+                    long sum = 0;
+                    for (int i = 0; i < list.size(); i++) {
+                        sum += list.get(i);
+                    }
+                    return sum;
+                }
+            },
+            new CollectionBenchmark("array_list_int_add_get") {
+                @Override
+                protected Object operation() {
+                    ArrayList<Integer> list = new ArrayList<Integer>();
+                    for (int i = 0; i < count; i++) {
+                        list.add(i);
+                    }
+                    long sum = 0;
+                    for (int i = 0; i < list.size(); i++) {
+                        sum += list.get(i);
+                    }
+                    return sum;
+                }
+            },
+            new CollectionBenchmark("char_int_map_count") {
+                @Override
+                protected Object operation() {
+                    CharIntMap map = new CharIntMap();
+                    for (int i = 0; i < count; i++) {
+                        char c = (char) (i & 0x3ff);
+                        map.put(c, map.get(c, 0) + 1);
+                    }
+                    return map;
+                }
+            },
+            new CollectionBenchmark("hash_map_char_count") {
+                @Override
+                protected Object operation() {
+                    HashMap<Character, Integer> map =
+                        new HashMap<Character, Integer>();
+                    for (int i = 0; i < count; i++) {
+                        char c = (char) (i & 0x3ff);
+                        Integer previous = map.get(c);
+                        map.put(c, previous == null ? 1 : previous + 1);
+                    }
+                    return map;
+                }
+            },
+            new CollectionBenchmark("int_int_map_put_get") {
+                @Override
+                protected Object operation() {
+                    IntIntMap map = new IntIntMap();
+                    for (int i = 0; i < count; i++) {
+                        map.put(i * 31, i);
+                    }
+                    long sum = 0;
+                    for (int i = 0; i < count; i++) {
+                        sum += map.get(i * 31, 0);
+                    }
+                    return sum;
+                }
+            },
+            new CollectionBenchmark("hash_map_int_put_get") {
+                @Override
+                protected Object operation() {
+                    HashMap<Integer, Integer> map =
+                        new HashMap<Integer, Integer>();
+                    for (int i = 0; i < count; i++) {
+                        map.put(i * 31, i);
+                    }
+                    long sum = 0;
+                    for (int i = 0; i < count; i++) {
+                        sum += map.get(i * 31);
+                    }
+                    return sum;
+                }
+            }
+        };
+    }
+
+    /**
+     * A benchmark that fills a new collection with count elements.
+     */
+    private abstract static class CollectionBenchmark extends Benchmark {
+        protected int count;
+
+        CollectionBenchmark(String name) {
+            super(name, 1 << 10, 1 << 18);
+        }
+
+        @Override
+        protected void setUp(int size) {
+            count = size;
+        }
+    }
+
+    @Override
+    protected boolean mainTest() {
+        return true;
+    }
+}
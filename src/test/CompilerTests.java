@@ -1,7 +1,13 @@
 package test;
 
+import capacita.Assembler;
 import capacita.CapacitaException;
+import capacita.DenseLinkedList;
+import capacita.InternalException;
+import capacita.RPNCompiler;
+import capacita.ScopeResolver;
 import capacita.ShuntingYard;
+import capacita.SuccessorVirtualMachine;
 
 /**
  * Tests for the Capacita compiler.
@@ -51,11 +57,188 @@ public class CompilerTests extends TestGroup {
                         return false;
                     }
                 }
+            },
+            new TestGroup("shunting_yard_reused_queue") {
+                @Override
+                protected boolean mainTest() {
+                    String expression = "(3+4)*(5+(8-y):(3^(5/x)+x))";
+                    DenseLinkedList reused = new DenseLinkedList();
+                    try {
+                        ShuntingYard.infixToRPN("a+b", reused);
+                        ShuntingYard.infixToRPN(expression, reused);
+                        DenseLinkedList fresh =
+                                        ShuntingYard.infixToRPN(expression);
+                        return assertEquals(reused.toString(),
+                                            fresh.toString()) &&
+                               assertEquals(reused.convertToString(),
+                                   "CharLinkedList[\"34+58y-35x/^x+:+*\"]");
+                    } catch (CapacitaException ex) {
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("rpn_compiler_view") {
+                @Override
+                protected boolean mainTest() {
+                    try {
+                        DenseLinkedList rpn =
+                                        ShuntingYard.infixToRPN("3+4*x");
+                        String fromView =
+                               new RPNCompiler(rpn.asCharSequence()).compile();
+                        RPNCompiler compiler = new RPNCompiler("34x*+");
+                        String fromString = compiler.compile();
+                        return assertEquals(fromView, fromString) &&
+                               assertEquals(compiler.compile(), fromString) &&
+                               assertEquals(rpn.size(), 5);
+                    } catch (CapacitaException ex) {
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("lexical_addressing") {
+                @Override
+                protected boolean mainTest() {
+                    ScopeResolver resolver = new ScopeResolver();
+                    try {
+                        StringBuilder program = new StringBuilder();
+                        program.append("i mov r1, rZERO, 7\n")
+                               .append(resolver.save("r1", "g"));
+                        resolver.enterScope(program);
+                        resolver.declare("x");
+                        resolver.declare("y");
+                        program.append("i mov r1, rZERO, 1\n")
+                               .append(resolver.save("r1", "x"))
+                               .append("i mov r1, rZERO, 10\n")
+                               .append(resolver.save("r1", "y"));
+                        resolver.enterScope(program);
+                        resolver.declare("x");
+                        program.append("i mov r1, rZERO, 2\n")
+                               .append(resolver.save("r1", "x"));
+                        resolver.enterScope(program);
+                        program.append(resolver.load("r2", "x"))
+                               .append(resolver.load("r3", "y"))
+                               .append(resolver.load("r4", "g"))
+                               .append("i syscall r11, rZERO, 0\n");
+                        int innerSlots = resolver.exitScope();
+                        program.append("i syscall r11, rZERO, 0\n")
+                               .append(Assembler.SUCCESSOR_EXIT);
+                        int address = resolver.resolve("y");
+                        resolver.exitScope();
+                        int outerSlots = resolver.exitScope();
+                        SuccessorVirtualMachine vm =
+                            new SuccessorVirtualMachine(
+                                Assembler.flatCompileDirectly(
+                                    program.toString()),
+                                resolver.getNames());
+                        int exitCode = vm.execute();
+                        String state = vm.inspectState();
+                        return assertEquals(innerSlots, 0) &&
+                               assertEquals(outerSlots, 2) &&
+                               assertEquals(ScopeResolver.depthOf(address),
+                                            1) &&
+                               assertEquals(ScopeResolver.slotOf(address),
+                                            1) &&
+                               assertEquals(resolver.resolve("g"),
+                                   ScopeResolver.DYNAMIC) &&
+                               assertEquals(exitCode,
+                                   SuccessorVirtualMachine.EXIT_SUCCESS) &&
+                               assertEquals(state.contains("r2 = 2\n"),
+                                            true) &&
+                               assertEquals(state.contains("r3 = 10\n"),
+                                            true) &&
+                               assertEquals(state.contains("r4 = 7\n"), true);
+                    } catch (InternalException ex) {
+                        setFailureMessage(ex.getMessage());
+                        return false;
+                    }
+                }
             }
         };
         setSubtests(tests);
     }
     
+    /**
+     * @return a new instance of each benchmark of the compiler
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new Benchmark("shunting_yard_new_queue", 16, 1024) {
+                private String infix;
+
+                @Override
+                protected void setUp(int size) {
+                    StringBuilder expression = new StringBuilder("a");
+                    for (int i = 1; i < size; i++) {
+                        expression.append(i % 2 == 0 ? '+' : '*')
+                                  .append((char) ('a' + i % 26));
+                    }
+                    infix = expression.toString();
+                }
+
+                @Override
+                protected Object operation() throws CapacitaException {
+                    return ShuntingYard.infixToRPN(infix);
+                }
+            },
+            nestedLoadBenchmark("vm_lexical_load", false),
+            nestedLoadBenchmark("vm_global_name_load", true)
+        };
+    }
+
+    /**
+     * @return a benchmark of a loop reading a variable declared size scopes
+     *         out, either by its lexical address or, for a dynamic global,
+     *         by name
+     */
+    private static Benchmark nestedLoadBenchmark(String name,
+                                                 final boolean isDynamic) {
+        return new Benchmark(name, 1, 8, 64) {
+            private int[] program;
+            private String[] names;
+
+            @Override
+            protected void setUp(int size) throws InternalException {
+                ScopeResolver resolver = new ScopeResolver();
+                program = Assembler.flatCompileDirectly(
+                              nestedLoad(resolver, size, isDynamic));
+                names = resolver.getNames();
+            }
+
+            @Override
+            protected Object operation() throws InternalException {
+                return new SuccessorVirtualMachine(program, names).execute();
+            }
+        };
+    }
+
+    /**
+     * @return a loop that reads a variable from depth scopes out 100000
+     *         times, with every scope entered through resolver and exited
+     */
+    private static String nestedLoad(ScopeResolver resolver, int depth,
+            boolean isDynamic) throws InternalException {
+        StringBuilder program = new StringBuilder();
+        int lines = 0;
+        for (int d = 0; d < depth; d++) {
+            resolver.enterScope(program);
+            resolver.declare("v" + d);
+            program.append("i mov r1, rZERO, ").append(d + 1).append("\n");
+            program.append(resolver.save("r1", isDynamic ? "g" : "v" + d));
+            lines += 3;
+        }
+        program.append("i mov r10, rZERO, 0\n");
+        program.append("i mov r11, rZERO, 100000\n");
+        program.append(resolver.load("r2", isDynamic ? "g" : "v0"));
+        program.append("i add r3, r2, 0\n");
+        program.append("i add r10, rZERO, 1\n");
+        program.append("i jl r10, r11, ").append(lines + 2).append("\n");
+        program.append(Assembler.SUCCESSOR_EXIT);
+        for (int d = 0; d < depth; d++) {
+            resolver.exitScope();
+        }
+        return program.toString();
+    }
+    
     @Override
     protected boolean mainTest() {
         return true;
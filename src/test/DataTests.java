@@ -1,6 +1,19 @@
 package test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PrimitiveIterator;
+import capacita.CapacitaException;
 import capacita.DenseLinkedList;
+import capacita.Frame;
+import capacita.StringPrintStream;
+import capacita.SymbolTable;
+import capacita.Values;
 import functional.Lambdas.VarArgLambda;
 import functional.Tuple;
 import functional.TupleCell.EmptyCell;
@@ -10,6 +23,8 @@ import functional.TupleCell.EmptyCell;
  * @author Jiangcheng Oliver Chu
  */
 public class DataTests extends TestGroup {
+    private static final int FRAME_VARIABLES = 16;
+
     public DataTests() {
         super("data_tests");
         TestGroup[] tests = {
@@ -38,6 +53,232 @@ public class DataTests extends TestGroup {
                                    "CharLinkedList[\"" + forwards + "\"]");
                 }
             },
+            new TestGroup("charqueue_nul_and_bulk") {
+                @Override
+                protected boolean mainTest() {
+                    DenseLinkedList cq = new DenseLinkedList();
+                    StringBuilder expected = new StringBuilder();
+                    for (int i = 0; i < 1000; i++) {
+                        expected.append((char) (i % 7));
+                    }
+                    cq.pushAll(expected);
+                    cq.push('\0');
+                    expected.append('\0');
+                    PrimitiveIterator.OfInt chars = cq.iterator();
+                    for (int i = 0; i < expected.length(); i++) {
+                        if (chars.nextInt() != expected.charAt(i)) {
+                            setFailureMessage("Iteration differs at " + i);
+                            return false;
+                        }
+                    }
+                    char[] drained = new char[expected.length() + 5];
+                    int count = cq.drainTo(drained);
+                    return count == expected.length() && cq.isEmpty() &&
+                           new String(drained, 0, count).equals(
+                               expected.toString());
+                }
+            },
+            new TestGroup("charqueue_views") {
+                @Override
+                protected boolean mainTest() {
+                    DenseLinkedList cq = new DenseLinkedList();
+                    cq.pushAll("views");
+                    CharSequence forwards = cq.asCharSequence();
+                    CharSequence backwards = cq.asReversedCharSequence();
+                    PrimitiveIterator.OfInt reversed = cq.reversedIterator();
+                    StringBuilder iterated = new StringBuilder();
+                    while (reversed.hasNext()) {
+                        iterated.append((char) reversed.nextInt());
+                    }
+                    cq.push('!');
+                    return assertEquals(forwards.toString() + " " +
+                                        backwards.subSequence(1, 4) + " " +
+                                        iterated, "views! swe sweiv") &&
+                           assertEquals(cq.size(), 6);
+                }
+            },
+            new TestGroup("charqueue_pool") {
+                @Override
+                protected boolean mainTest() {
+                    DenseLinkedList first = DenseLinkedList.obtain();
+                    first.pushAll(SyntaxHighlightTests.sampleCode(1 << 14));
+                    first.recycle();
+                    boolean isDoubleRecycleRejected = false;
+                    try {
+                        first.recycle();
+                    } catch (IllegalStateException ex) {
+                        isDoubleRecycleRejected = true;
+                    }
+                    DenseLinkedList second = DenseLinkedList.obtain();
+                    DenseLinkedList third = DenseLinkedList.obtain();
+                    boolean isEmpty = second.isEmpty();
+                    second.pushAll("reused");
+                    String reused = second.convertToString();
+                    second.recycle();
+                    third.recycle();
+                    return assertEquals(isDoubleRecycleRejected, true) &&
+                           assertEquals(second == third, false) &&
+                           assertEquals(isEmpty, true) &&
+                           assertEquals(reused, "CharLinkedList[\"reused\"]");
+                }
+            },
+            new TestGroup("charqueue_long_reads") {
+                @Override
+                protected boolean mainTest() {
+                    /* Long enough to span many blocks. */
+                    DenseLinkedList cq = new DenseLinkedList();
+                    long expected = 0;
+                    for (int i = 0; i < 1 << 16; i++) {
+                        cq.push((char) i);
+                        expected += (char) i;
+                    }
+                    return assertEquals(readChecksum(cq), expected) &&
+                           assertEquals(cq.asCharSequence().length(),
+                                        1 << 16);
+                }
+            },
+            new TestGroup("tagged_values") {
+                @Override
+                protected boolean mainTest() {
+                    double[] doubles = {0.0, -0.0, 1.5, -2.75e300,
+                                        Double.MIN_VALUE,
+                                        Double.POSITIVE_INFINITY,
+                                        Double.NEGATIVE_INFINITY};
+                    for (double d : doubles) {
+                        long value = Values.ofDouble(d);
+                        if (!Values.isDouble(value) ||
+                            Double.compare(Values.asDouble(value), d) != 0) {
+                            setFailureMessage("Lost double " + d);
+                            return false;
+                        }
+                    }
+                    int[] ints = {0, -1, 1, Integer.MIN_VALUE,
+                                  Integer.MAX_VALUE};
+                    for (int i : ints) {
+                        long value = Values.ofInt(i);
+                        if (!Values.isInt(value) || Values.asInt(value) != i) {
+                            setFailureMessage("Lost int " + i);
+                            return false;
+                        }
+                    }
+                    long nan = Values.ofDouble(Double.longBitsToDouble(
+                                   0xfff9000000000001L));
+                    long str = Values.ofString(-7, (char) 0xffff);
+                    long obj = Values.ofObj(123456, Values.MAIN_HEAP);
+                    return assertEquals(Values.typeOf(nan), Values.DBL_TYPE) &&
+                           assertEquals(Double.isNaN(Values.asDouble(nan)),
+                                        true) &&
+                           assertEquals(Values.typeOf(str), Values.STR_TYPE) &&
+                           assertEquals(Values.addressOf(str), -7) &&
+                           assertEquals((int) Values.heapIdOf(str), 0xffff) &&
+                           assertEquals(Values.typeOf(obj), Values.OBJ_TYPE) &&
+                           assertEquals(Values.addressOf(obj), 123456) &&
+                           assertEquals(Values.typeOf(Values.UNDEFINED),
+                                        Values.UNDEFINED_TYPE) &&
+                           assertEquals(Values.isDefined(Values.ofInt(0)),
+                                        true);
+                }
+            },
+            new TestGroup("frames") {
+                @Override
+                protected boolean mainTest() {
+                    int x = SymbolTable.intern("frames_x");
+                    int y = SymbolTable.intern("frames_y");
+                    Frame global = new Frame(null);
+                    Frame local = new Frame(global);
+                    for (int i = 0; i < 100; i++) {
+                        global.assign(SymbolTable.intern("frames_" + i),
+                                      Values.ofInt(i));
+                    }
+                    global.assign(x, Values.ofInt(1));
+                    local.assign(x, Values.ofInt(2));
+                    boolean deleted = global.delete(
+                                      SymbolTable.intern("frames_50"));
+                    return assertEquals(SymbolTable.intern("frames_x"), x) &&
+                           assertEquals(SymbolTable.nameOf(y), "frames_y") &&
+                           assertEquals(Values.asInt(local.get(x)), 2) &&
+                           assertEquals(Values.asInt(local.lookup(
+                               SymbolTable.intern("frames_99"))), 99) &&
+                           assertEquals(local.get(y), Values.UNDEFINED) &&
+                           assertEquals(local.lookup(y), Values.UNDEFINED) &&
+                           assertEquals(deleted, true) &&
+                           assertEquals(global.lookup(SymbolTable.intern(
+                               "frames_50")), Values.UNDEFINED) &&
+                           assertEquals(global.size(), 100);
+                }
+            },
+            new TestGroup("string_print_stream") {
+                @Override
+                protected boolean mainTest() {
+                    try {
+                        StringPrintStream out = new StringPrintStream();
+                        out.print(1);
+                        out.print('a');
+                        out.print(2.5);
+                        out.println(true);
+                        out.println("\u266b");
+                        StringBuilder expected =
+                            new StringBuilder("1a2.5true\n\u266b\n");
+                        for (int i = 0; i < 20000; i++) {
+                            out.print(i);
+                            expected.append(i);
+                        }
+                        StringWriter written = new StringWriter();
+                        out.writeTo(written);
+                        ByteArrayOutputStream bytes =
+                            new ByteArrayOutputStream();
+                        out.writeTo(bytes);
+                        return assertEquals(out.toString(),
+                                            expected.toString()) &&
+                               assertEquals(written.toString(),
+                                            expected.toString()) &&
+                               assertEquals(new String(bytes.toByteArray(),
+                                   StandardCharsets.UTF_8),
+                                   expected.toString()) &&
+                               assertEquals(out.length(),
+                                   (long) expected.toString().getBytes(
+                                   StandardCharsets.UTF_8).length);
+                    } catch (IOException ex) {
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("string_print_stream_bounded") {
+                @Override
+                protected boolean mainTest() {
+                    try {
+                        StringPrintStream out = new StringPrintStream(10000);
+                        StringBuilder expected = new StringBuilder();
+                        for (int i = 0; i < 100000; i++) {
+                            out.println(i);
+                            expected.append(i).append('\n');
+                        }
+                        String tail = expected.substring(
+                                      expected.length() - 10000);
+                        StringPrintStream tiny = new StringPrintStream(3);
+                        tiny.print("abcdef");
+                        tiny.print("g");
+                        /* The cut falls inside the second note. */
+                        StringPrintStream notes = new StringPrintStream(4);
+                        notes.print("\u266b\u266bab");
+                        StringPrintStream raw = new StringPrintStream(4);
+                        raw.write(new byte[] {'1', '2', '3'});
+                        raw.write(new byte[] {'4', '5', '6'}, 1, 2);
+                        StringWriter written = new StringWriter();
+                        out.writeTo(written);
+                        return assertEquals(out.toString(), tail) &&
+                               assertEquals(written.toString(), tail) &&
+                               assertEquals(out.getTotalPrinted(),
+                                            (long) expected.length()) &&
+                               assertEquals(tiny.toString(), "efg") &&
+                               assertEquals(notes.toString(), "ab") &&
+                               assertEquals(raw.toString(), "2356") &&
+                               assertEquals(raw.getTotalPrinted(), 5L);
+                    } catch (IOException ex) {
+                        return false;
+                    }
+                }
+            },
             new TestGroup("tuple") {
                 @Override
                 protected boolean mainTest() {
@@ -73,6 +314,210 @@ public class DataTests extends TestGroup {
         setSubtests(tests);
     }
 
+    /**
+     * An environment frame as it was before symbol IDs: a map from names,
+     * where a miss throws and the enclosing frame is tried next.
+     */
+    private static class StringKeyedFrame {
+        private final StringKeyedFrame parent;
+        private final HashMap<String, Long> bindings;
+
+        StringKeyedFrame(StringKeyedFrame enclosing) {
+            parent = enclosing;
+            bindings = new HashMap<String, Long>();
+        }
+
+        void assign(String variable, long value) {
+            bindings.put(variable, value);
+        }
+
+        long get(String variable) throws CapacitaException {
+            if (bindings.containsKey(variable)) {
+                return bindings.get(variable);
+            } else {
+                throw new CapacitaException("Variable " + variable +
+                                        " used before assignment.");
+            }
+        }
+
+        long lookup(String variable) {
+            try {
+                return get(variable);
+            } catch (CapacitaException ex) {
+                return parent == null ? Values.UNDEFINED :
+                                        parent.lookup(variable);
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the chars of cq as read through its CharSequence
+     *         view, or -1 if its iterator reads a different sum
+     */
+    private static long readChecksum(DenseLinkedList cq) {
+        CharSequence view = cq.asCharSequence();
+        long checksum = 0;
+        for (int i = 0; i < view.length(); i++) {
+            checksum += view.charAt(i);
+        }
+        long iterated = 0;
+        PrimitiveIterator.OfInt chars = cq.iterator();
+        while (chars.hasNext()) {
+            iterated += chars.nextInt();
+        }
+        return iterated == checksum ? checksum : -1;
+    }
+
+    /**
+     * @return a new instance of each benchmark of the data structures
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new Benchmark("dense_linked_list_read", 1 << 10, 1 << 20,
+                          1 << 24) {
+                private final DenseLinkedList cq = new DenseLinkedList();
+
+                @Override
+                protected void setUp(int size) {
+                    cq.clear();
+                    for (int i = 0; i < size; i++) {
+                        cq.push((char) i);
+                    }
+                }
+
+                @Override
+                protected Object operation() {
+                    return readChecksum(cq);
+                }
+            },
+            new Benchmark("dense_linked_list_push_poll", 1 << 10, 1 << 20) {
+                private int count;
+
+                @Override
+                protected void setUp(int size) {
+                    count = size;
+                }
+
+                @Override
+                protected Object operation() {
+                    DenseLinkedList cq = new DenseLinkedList();
+                    for (int i = 0; i < count; i++) {
+                        cq.push((char) ('a' + i % 26));
+                    }
+                    for (int i = 0; i < count; i++) {
+                        cq.poll();
+                    }
+                    return cq;
+                }
+            },
+            new Benchmark("array_deque_push_poll", 1 << 10, 1 << 20) {
+                private int count;
+
+                @Override
+                protected void setUp(int size) {
+                    count = size;
+                }
+
+                @Override
+                protected Object operation() {
+                    ArrayDeque<Character> cq = new ArrayDeque<Character>();
+                    for (int i = 0; i < count; i++) {
+                        cq.add((char) ('a' + i % 26));
+                    }
+                    for (int i = 0; i < count; i++) {
+                        cq.poll();
+                    }
+                    return cq;
+                }
+            },
+            new Benchmark("frame_lookup_symbols", 1, 4, 16) {
+                private Frame innermost;
+                private int[] symbols;
+
+                @Override
+                protected void setUp(int size) {
+                    String[] names = frameVariables(size);
+                    symbols = new int[names.length];
+                    innermost = null;
+                    for (int d = 0; d < size; d++) {
+                        innermost = new Frame(innermost);
+                        for (int v = 0; v < FRAME_VARIABLES; v++) {
+                            int i = d * FRAME_VARIABLES + v;
+                            symbols[i] = SymbolTable.intern(names[i]);
+                            innermost.assign(symbols[i], Values.ofInt(i));
+                        }
+                    }
+                }
+
+                @Override
+                protected Object operation() {
+                    long sum = 0;
+                    for (int symbol : symbols) {
+                        sum += Values.asInt(innermost.lookup(symbol));
+                    }
+                    return sum;
+                }
+            },
+            new Benchmark("frame_lookup_strings", 1, 4, 16) {
+                private StringKeyedFrame innermost;
+                private String[] names;
+
+                @Override
+                protected void setUp(int size) {
+                    names = frameVariables(size);
+                    innermost = null;
+                    for (int d = 0; d < size; d++) {
+                        innermost = new StringKeyedFrame(innermost);
+                        for (int v = 0; v < FRAME_VARIABLES; v++) {
+                            int i = d * FRAME_VARIABLES + v;
+                            innermost.assign(names[i], Values.ofInt(i));
+                        }
+                    }
+                }
+
+                @Override
+                protected Object operation() {
+                    long sum = 0;
+                    for (String name : names) {
+                        sum += Values.asInt(innermost.lookup(name));
+                    }
+                    return sum;
+                }
+            },
+            new Benchmark("string_print_stream_println", 1 << 10, 1 << 16,
+                          1 << 18) {
+                private int lines;
+
+                @Override
+                protected void setUp(int size) {
+                    lines = size;
+                }
+
+                @Override
+                protected Object operation()
+                        throws UnsupportedEncodingException {
+                    StringPrintStream out = new StringPrintStream();
+                    for (int i = 0; i < lines; i++) {
+                        out.println("line");
+                    }
+                    return out.length();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return names of FRAME_VARIABLES variables for each of depth frames
+     */
+    private static String[] frameVariables(int depth) {
+        String[] names = new String[depth * FRAME_VARIABLES];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "bench_" + i / FRAME_VARIABLES + "_" +
+                       i % FRAME_VARIABLES;
+        }
+        return names;
+    }
+
     @Override
     protected boolean mainTest() {
         return true;
@@ -0,0 +1,261 @@
+package test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import capacita.AsyncInputOutputMachine;
+import capacita.AsyncInputOutputMachine.OverflowPolicy;
+import capacita.Capacita;
+
+/**
+ * Tests for input and output machines.
+ * @author Jiangcheng Oliver Chu
+ */
+public class IOTests extends TestGroup {
+    public IOTests() {
+        super("io_tests");
+        TestGroup[] tests = {
+            new TestGroup("async_output_order") {
+                @Override
+                protected boolean mainTest() {
+                    final int threads = 4;
+                    final int lines = 5000;
+                    try {
+                        Path path = Files.createTempFile("async", ".txt");
+                        FileChannel channel = FileChannel.open(path,
+                                              StandardOpenOption.WRITE);
+                        final AsyncInputOutputMachine io =
+                            new AsyncInputOutputMachine(channel, System.in,
+                                64, OverflowPolicy.BLOCK);
+                        Thread[] writers = new Thread[threads];
+                        for (int t = 0; t < threads; t++) {
+                            final int thread = t;
+                            writers[t] = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    for (int i = 0; i < lines; i++) {
+                                        io.println(thread + ":" + i);
+                                    }
+                                }
+                            });
+                            writers[t].start();
+                        }
+                        for (Thread writer : writers) {
+                            writer.join();
+                        }
+                        boolean isClosed = io.close();
+                        channel.close();
+                        List<String> written = Files.readAllLines(path,
+                                               StandardCharsets.UTF_8);
+                        Files.delete(path);
+                        int[] next = new int[threads];
+                        for (String line : written) {
+                            int colon = line.indexOf(':');
+                            int thread = Integer.parseInt(
+                                         line.substring(0, colon));
+                            int i = Integer.parseInt(
+                                    line.substring(colon + 1));
+                            if (i != next[thread]) {
+                                setFailureMessage("Line " + line +
+                                                  " out of order.");
+                                return false;
+                            }
+                            next[thread]++;
+                        }
+                        return assertEquals(isClosed, true) &&
+                               assertEquals(written.size(), threads * lines) &&
+                               assertEquals(io.getDroppedCount(), 0L) &&
+                               assertEquals(io.getChannelWrites() <
+                                            threads * lines, true);
+                    } catch (IOException | InterruptedException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("async_output_idle_writer") {
+                @Override
+                protected boolean mainTest() {
+                    SlowChannel channel = new SlowChannel();
+                    AsyncInputOutputMachine io = new AsyncInputOutputMachine(
+                        channel, System.in, 16, OverflowPolicy.BLOCK);
+                    io.println("a");
+                    boolean isFlushed = io.flush();
+                    boolean isStopped = awaitNoWriterThread();
+                    io.println("b");
+                    boolean isClosed = io.close();
+                    return assertEquals(isFlushed, true) &&
+                           assertEquals(isStopped, true) &&
+                           assertEquals(isClosed, true) &&
+                           assertEquals(channel.getBytes(), 2L *
+                               (1 + System.lineSeparator().length())) &&
+                           assertEquals(awaitNoWriterThread(), true);
+                }
+            },
+            new TestGroup("async_output_backpressure") {
+                @Override
+                protected boolean mainTest() {
+                    int lines = 2000;
+                    SlowChannel blockingChannel = new SlowChannel();
+                    AsyncInputOutputMachine blocking =
+                        new AsyncInputOutputMachine(blockingChannel,
+                            System.in, 16, OverflowPolicy.BLOCK);
+                    SlowChannel droppingChannel = new SlowChannel();
+                    AsyncInputOutputMachine dropping =
+                        new AsyncInputOutputMachine(droppingChannel,
+                            System.in, 16, OverflowPolicy.DROP);
+                    for (int i = 0; i < lines; i++) {
+                        blocking.println("x");
+                        dropping.println("x");
+                    }
+                    blocking.close();
+                    dropping.close();
+                    long droppingBytes = droppingChannel.getBytes();
+                    long lineBytes = 1 + System.lineSeparator().length();
+                    return assertEquals(blockingChannel.getBytes(),
+                                        lineBytes * lines) &&
+                           assertEquals(blocking.getDroppedCount(), 0L) &&
+                           assertEquals(blocking.getBlockedNanos() > 0,
+                                        true) &&
+                           assertEquals(blocking.getMaxQueueDepth() >= 16,
+                                        true) &&
+                           assertEquals(dropping.getDroppedCount() > 0, true) &&
+                           assertEquals(droppingBytes, lineBytes * (lines -
+                                        dropping.getDroppedCount()));
+                }
+            }
+        };
+        setSubtests(tests);
+    }
+
+    /**
+     * Waits up to a second for every output writer thread to stop.
+     * @return whether none is left running
+     */
+    private static boolean awaitNoWriterThread() {
+        for (int i = 0; i < 100; i++) {
+            boolean isWriting = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                isWriting |= thread.getName().equals("capacita-output-writer");
+            }
+            if (!isWriting) {
+                return true;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a new instance of each benchmark of printing size lines to a
+     *         file, synchronously and through the writer thread
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new FileBenchmark("print_file_synchronous") {
+                @Override
+                protected Object operation() throws IOException {
+                    try (PrintStream out = new PrintStream(
+                             new FileOutputStream(path.toFile()))) {
+                        Capacita io = new Capacita(out);
+                        for (int i = 0; i < lines; i++) {
+                            io.println(i);
+                        }
+                        return io.flush();
+                    }
+                }
+            },
+            new FileBenchmark("print_file_async") {
+                @Override
+                protected Object operation() throws IOException {
+                    try (FileChannel channel = FileChannel.open(path,
+                             StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+                        AsyncInputOutputMachine io =
+                            new AsyncInputOutputMachine(channel, System.in,
+                                AsyncInputOutputMachine.DEFAULT_CAPACITY,
+                                OverflowPolicy.BLOCK);
+                        for (int i = 0; i < lines; i++) {
+                            io.println(i);
+                        }
+                        return io.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * A benchmark that prints lines to a temporary file.
+     */
+    private abstract static class FileBenchmark extends Benchmark {
+        protected Path path;
+        protected int lines;
+
+        FileBenchmark(String name) {
+            super(name, 1000, 200000);
+        }
+
+        @Override
+        protected void setUp(int size) throws IOException {
+            path = Files.createTempFile("output", ".txt");
+            lines = size;
+        }
+
+        @Override
+        protected void tearDown() throws IOException {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * A channel that counts bytes and takes a while for each write, like a
+     * slow terminal.
+     */
+    private static class SlowChannel implements WritableByteChannel {
+        private volatile long bytes = 0;
+
+        long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            int written = source.remaining();
+            source.position(source.limit());
+            bytes += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    @Override
+    protected boolean mainTest() {
+        return true;
+    }
+}
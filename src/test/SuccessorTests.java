@@ -1,8 +1,17 @@
 package test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import capacita.Assembler;
+import capacita.BufferedInputOutputMachine;
 import capacita.InternalException;
 import capacita.Capacita;
+import capacita.InlineCacheStatistics;
 import capacita.SuccessorVirtualMachine;
 
 /**
@@ -21,10 +30,9 @@ public class SuccessorTests extends TestGroup {
                     try {
                         int[] compiled =
                               Assembler.flatCompileDirectly(assignAndPrint);
-                        SuccessorVirtualMachine vm =
-                            new SuccessorVirtualMachine(compiled);
-                        int exitCode = vm.execute();
-                        return exitCode == SuccessorVirtualMachine.EXIT_EOF;
+                        return assertEquals(lines(99999),
+                                   runCaptured(compiled,
+                                       SuccessorVirtualMachine.EXIT_EOF));
                     } catch (InternalException ex) {
                         return false;
                     }
@@ -42,10 +50,9 @@ public class SuccessorTests extends TestGroup {
                     try {
                         int[] compiled =
                               Assembler.flatCompileDirectly(forLoop);
-                        SuccessorVirtualMachine vm =
-                            new SuccessorVirtualMachine(compiled);
-                        int exitCode = vm.execute();
-                        return exitCode == SuccessorVirtualMachine.EXIT_SUCCESS;
+                        return assertEquals(lines(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10),
+                                   runCaptured(compiled,
+                                       SuccessorVirtualMachine.EXIT_SUCCESS));
                     } catch (InternalException ex) {
                         return false;
                     }
@@ -67,10 +74,9 @@ public class SuccessorTests extends TestGroup {
                     try {
                         int[] compiled =
                               Assembler.flatCompileDirectly(forLoopProgram);
-                        SuccessorVirtualMachine vm =
-                            new SuccessorVirtualMachine(compiled);
-                        int exitCode = vm.execute();
-                        return exitCode == SuccessorVirtualMachine.EXIT_SUCCESS;
+                        return assertEquals(lines(900),
+                                   runCaptured(compiled,
+                                       SuccessorVirtualMachine.EXIT_SUCCESS));
                     } catch (InternalException ex) {
                         return false;
                     }
@@ -92,10 +98,9 @@ public class SuccessorTests extends TestGroup {
                     try {
                         int[] compiled =
                               Assembler.flatCompileDirectly(functionProgram);
-                        SuccessorVirtualMachine vm =
-                            new SuccessorVirtualMachine(compiled);
-                        int exitCode = vm.execute();
-                        return exitCode == SuccessorVirtualMachine.EXIT_SUCCESS;
+                        return assertEquals(lines(810),
+                                   runCaptured(compiled,
+                                       SuccessorVirtualMachine.EXIT_SUCCESS));
                     } catch (InternalException ex) {
                         return false;
                     }
@@ -137,15 +142,196 @@ public class SuccessorTests extends TestGroup {
                     try {
                         int[] compiled =
                               Assembler.flatCompileDirectly(recursiveFactorial);
+                        return assertEquals(lines(720),
+                                   runCaptured(compiled,
+                                       SuccessorVirtualMachine.EXIT_SUCCESS));
+                    } catch (InternalException ex) {
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("object_properties") {
+                @Override
+                protected boolean mainTest() {
+                    String properties = "i syscall r9, r1, 0\n" +
+                                        "i mov r2, rZERO, 10\n" +
+                                        "i syscall r6, r1, 0x20000\n" +
+                                        "i mov r2, rZERO, 20\n" +
+                                        "i syscall r6, r1, 0x20001\n" +
+                                        "i syscall r9, r2, 0\n" +
+                                        "i syscall r6, r2, 0x20001\n" +
+                                        "i syscall r6, r2, 0x20000\n" +
+                                        "i syscall r5, r1, 0x30000\n" +
+                                        "i syscall r5, r2, 0x40001\n" +
+                                        "i add r3, r4, 0\n" +
+                                        Assembler.SUCCESSOR_EXIT;
+                    String undefined = "i syscall r9, r1, 0\n" +
+                                       "i syscall r5, r1, 0x30001";
+                    String[] names = {"x", "y"};
+                    try {
+                        SuccessorVirtualMachine vm =
+                            new SuccessorVirtualMachine(
+                                Assembler.flatCompileDirectly(properties),
+                                names);
+                        SuccessorVirtualMachine failing =
+                            new SuccessorVirtualMachine(
+                                Assembler.flatCompileDirectly(undefined),
+                                names);
+                        ByteArrayOutputStream out =
+                            new ByteArrayOutputStream();
+                        SuccessorVirtualMachine printing =
+                            new SuccessorVirtualMachine(
+                                Assembler.flatCompileDirectly(
+                                    properties.replace("i add r3, r4, 0\n",
+                                        "i add r3, r4, 0\n" +
+                                        "i syscall r3, r3, 0\n")),
+                                names,
+                                new BufferedInputOutputMachine(out,
+                                                               System.in));
+                        printing.execute();
+                        return assertEquals(out.toString(), lines(30)) &&
+                               assertEquals(vm.execute(),
+                                   SuccessorVirtualMachine.EXIT_SUCCESS) &&
+                               assertEquals(vm.inspectState().contains(
+                                   "r3 = 30\n"), true) &&
+                               assertEquals(failing.execute(),
+                                   SuccessorVirtualMachine.EXIT_FAILURE);
+                    } catch (InternalException ex) {
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("property_access") {
+                @Override
+                protected boolean mainTest() {
+                    try {
                         SuccessorVirtualMachine vm =
-                            new SuccessorVirtualMachine(compiled);
+                            new SuccessorVirtualMachine(
+                                Assembler.flatCompileDirectly(
+                                    propertyLoop(1000)),
+                                new String[]{"x", "y"});
+                        return assertEquals(vm.execute(),
+                                   SuccessorVirtualMachine.EXIT_SUCCESS) &&
+                               assertEquals(vm.inspectState().contains(
+                                   "r3 = 1001\n"), true);
+                    } catch (InternalException ex) {
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("method_calls") {
+                @Override
+                protected boolean mainTest() {
+                    String methods = "j 5\n" +
+                                     "i mov r5, rZERO, 1\n" +
+                                     "ret\n" +
+                                     "i mov r5, rZERO, 2\n" +
+                                     "ret\n" +
+                                     "i mov r20, rZERO, 1\n" +
+                                     "i mov r21, rZERO, 3\n" +
+                                     "i syscall r9, r1, 0\n" +
+                                     "i syscall r12, r1, 0x140000\n" +
+                                     "i syscall r9, r2, 0\n" +
+                                     "i syscall r6, r2, 0x140001\n" +
+                                     "i syscall r12, r2, 0x150000\n" +
+                                     "i syscall r7, r1, 0\n" +
+                                     "i add r6, r5, 0\n" +
+                                     "i syscall r7, r2, 0\n" +
+                                     "i add r6, r5, 0\n" +
+                                     "i syscall r7, r2, 1\n" +
+                                     Assembler.SUCCESSOR_EXIT;
+                    try {
+                        SuccessorVirtualMachine vm =
+                            new SuccessorVirtualMachine(
+                                Assembler.flatCompileDirectly(methods),
+                                new String[]{"m", "k"});
                         int exitCode = vm.execute();
-                        return exitCode == SuccessorVirtualMachine.EXIT_SUCCESS;
+                        InlineCacheStatistics stats =
+                            vm.getMethodCacheStatistics();
+                        /* Calling the property k, which is not a method,
+                         * fails. */
+                        return assertEquals(exitCode,
+                                   SuccessorVirtualMachine.EXIT_FAILURE) &&
+                               assertEquals(vm.inspectState().contains(
+                                   "r6 = 3\n"), true) &&
+                               assertEquals(stats.getMonomorphicSites(), 3) &&
+                               assertEquals(stats.getMisses(), 3L) &&
+                               assertEquals(stats.getHits(), 0L);
                     } catch (InternalException ex) {
                         return false;
                     }
                 }
             },
+            new TestGroup("unsupported_typed_instructions") {
+                @Override
+                protected boolean mainTest() {
+                    String[] unsupported = {
+                        "f mov r1, r2, 0", "s mov r1, r2, 0",
+                        "o add r1, r2, 0"
+                    };
+                    try {
+                        for (String instruction : unsupported) {
+                            SuccessorVirtualMachine vm =
+                                new SuccessorVirtualMachine(
+                                    Assembler.flatCompileDirectly(
+                                        instruction + "\n" +
+                                        Assembler.SUCCESSOR_EXIT));
+                            if (vm.execute() !=
+                                SuccessorVirtualMachine.EXIT_FAILURE) {
+                                setFailureMessage(instruction +
+                                                  " did not fail.");
+                                return false;
+                            }
+                        }
+                        return true;
+                    } catch (InternalException ex) {
+                        setFailureMessage(ex.getMessage());
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("method_caches") {
+                @Override
+                protected boolean mainTest() {
+                    try {
+                        InlineCacheStatistics monomorphic =
+                            runMethodLoop(1, 600);
+                        InlineCacheStatistics polymorphic =
+                            runMethodLoop(3, 600);
+                        InlineCacheStatistics megamorphic =
+                            runMethodLoop(6, 600);
+                        return assertEquals(
+                                   monomorphic.getMonomorphicSites(), 1) &&
+                               assertEquals(
+                                   polymorphic.getPolymorphicSites(), 1) &&
+                               assertEquals(
+                                   megamorphic.getMegamorphicSites(), 1) &&
+                               assertEquals(
+                                   monomorphic.getHitRate() > 0.99, true) &&
+                               assertEquals(
+                                   polymorphic.getHitRate() > 0.99, true) &&
+                               assertEquals(megamorphic.getMegamorphicHits() >
+                                   megamorphic.getMisses() / 2, true);
+                    } catch (InternalException ex) {
+                        setFailureMessage(ex.getMessage());
+                        return false;
+                    }
+                }
+            },
+            new TestGroup("isolated_io_contexts") {
+                @Override
+                protected boolean mainTest() {
+                    try {
+                        int[][] programs = printingPrograms(20, 100);
+                        printConcurrently(programs, 100, false);
+                        printConcurrently(programs, 100, true);
+                        return true;
+                    } catch (InternalException | InterruptedException ex) {
+                        setFailureMessage(ex.getMessage());
+                        return false;
+                    }
+                }
+            },
             new TestGroup("recursive_fibonacci") {
                 @Override
                 protected boolean mainTest() {
@@ -198,8 +384,11 @@ public class SuccessorTests extends TestGroup {
                     try {
                         int[] compiled =
                               Assembler.flatCompileDirectly(recursiveFib);
+                        final ByteArrayOutputStream out =
+                                                    new ByteArrayOutputStream();
                         final SuccessorVirtualMachine vm =
-                            new SuccessorVirtualMachine(compiled);
+                            new SuccessorVirtualMachine(compiled,
+                                new BufferedInputOutputMachine(out, System.in));
                         Timeable executeTimer = new Timeable() {
                             public boolean run() {
                                 int exitCode = vm.execute();
@@ -209,7 +398,7 @@ public class SuccessorTests extends TestGroup {
                         };
                         Capacita.IO.println("Fibonacci(33) takes " +
                             executeTimer.getTimeTaken() + " seconds.");
-                        return true;
+                        return assertEquals(lines(3524578), out.toString());
                     } catch (InternalException ex) {
                         return false;
                     }
@@ -219,6 +408,275 @@ public class SuccessorTests extends TestGroup {
         setSubtests(tests);
     }
     
+    /**
+     * @return a loop that reads and writes the properties x and y of one
+     *         object iterations times, leaving iterations + 1 in r3
+     */
+    private static String propertyLoop(int iterations) {
+        return "i syscall r9, r1, 0\n" +
+               "i mov r2, rZERO, 1\n" +
+               "i syscall r6, r1, 0x20000\n" +
+               "i syscall r6, r1, 0x20001\n" +
+               "i mov r10, rZERO, 0\n" +
+               "i mov r11, rZERO, " + iterations + "\n" +
+               "i syscall r5, r1, 0x30000\n" +
+               "i syscall r5, r1, 0x40001\n" +
+               "i add r3, r4, 0\n" +
+               "i syscall r6, r1, 0x30000\n" +
+               "i add r10, rZERO, 1\n" +
+               "i jl r10, r11, 6\n" +
+               Assembler.SUCCESSOR_EXIT;
+    }
+
+    /**
+     * Runs the loop of methodLoop and checks the methods it called.
+     * @return statistics of the method caches after the loop
+     */
+    private static InlineCacheStatistics runMethodLoop(int shapes,
+            int iterations) throws InternalException {
+        SuccessorVirtualMachine vm = new SuccessorVirtualMachine(
+            Assembler.flatCompileDirectly(methodLoop(shapes, iterations)),
+            methodNames(shapes));
+        if (vm.execute() != SuccessorVirtualMachine.EXIT_SUCCESS ||
+            !vm.inspectState().contains("r3 = " +
+                                        iterations * (shapes + 1) / 2 + "\n")) {
+            throw new InternalException("Wrong methods called on " + shapes +
+                                        " shapes.");
+        }
+        return vm.getMethodCacheStatistics();
+    }
+
+    /**
+     * @return the method name m, then the property names of methodLoop
+     */
+    private static String[] methodNames(int shapes) {
+        String[] names = new String[shapes];
+        names[0] = "m";
+        for (int p = 1; p < shapes; p++) {
+            names[p] = "p" + p;
+        }
+        return names;
+    }
+
+    /**
+     * @return a loop whose single method call site sees receivers of the
+     *         given number of shapes in turn
+     */
+    private static String methodLoop(int shapes, int iterations) {
+        StringBuilder program = new StringBuilder();
+        int start = 1 + 2 * shapes;
+        program.append("j ").append(start).append("\n");
+        for (int k = 0; k < shapes; k++) {
+            program.append("i mov r5, rZERO, ").append(k + 1).append("\n");
+            program.append("ret\n");
+        }
+        int lines = start;
+        for (int k = 0; k < shapes; k++) {
+            String receiver = "r" + (k + 1);
+            program.append("i syscall r9, ").append(receiver).append(", 0\n");
+            for (int p = 1; p <= k; p++) {
+                program.append("i syscall r6, ").append(receiver)
+                       .append(", 0x").append(Integer.toHexString(
+                           (20 << 16) | p)).append("\n");
+            }
+            program.append("i mov r21, rZERO, ").append(1 + 2 * k)
+                   .append("\n");
+            program.append("i syscall r12, ").append(receiver)
+                   .append(", 0x150000\n");
+            lines += k + 3;
+        }
+        program.append("i mov r10, rZERO, 0\n");
+        program.append("i mov r11, rZERO, ").append(iterations).append("\n");
+        int loop = lines + 2;
+        program.append("i syscall r7, r1, 0\n");
+        program.append("i add r3, r5, 0\n");
+        /* Rotate the receivers through the register of the call site. */
+        program.append("o mov r7, r1, 0\n");
+        for (int k = 1; k < shapes; k++) {
+            program.append("o mov r").append(k).append(", r").append(k + 1)
+                   .append(", 0\n");
+        }
+        program.append("o mov r").append(shapes).append(", r7, 0\n");
+        program.append("i add r10, rZERO, 1\n");
+        program.append("i jl r10, r11, ").append(loop).append("\n");
+        program.append(Assembler.SUCCESSOR_EXIT);
+        return program.toString();
+    }
+    
+    /**
+     * Runs a program with an output context of its own.
+     * @return everything the program printed, or null if it did not exit
+     *         with exitCode
+     */
+    private static String runCaptured(int[] compiled, int exitCode)
+            throws InternalException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SuccessorVirtualMachine vm = new SuccessorVirtualMachine(compiled,
+            new BufferedInputOutputMachine(out, System.in));
+        if (vm.execute() != exitCode) {
+            return null;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return one program per machine, each printing its own index
+     *         printsPerMachine times
+     */
+    private static int[][] printingPrograms(int machines,
+            int printsPerMachine) throws InternalException {
+        int[][] programs = new int[machines][];
+        for (int i = 0; i < machines; i++) {
+            programs[i] = Assembler.flatCompileDirectly(
+                "i mov r1, rZERO, " + i + "\n" +
+                "i mov r2, rZERO, 0\n" +
+                "i mov r4, rZERO, " + printsPerMachine + "\n" +
+                "i syscall r3, r1, 0\n" +
+                "i add r2, rZERO, 1\n" +
+                "i jl r2, r4, 3\n" +
+                Assembler.SUCCESSOR_EXIT);
+        }
+        return programs;
+    }
+
+    /**
+     * Runs the printing programs on a thread pool, each VM printing either
+     * to an output context of its own or to one shared output, and checks
+     * what they printed.
+     */
+    private static void printConcurrently(int[][] programs,
+            int printsPerMachine, boolean isShared)
+            throws InternalException, InterruptedException {
+        int machines = programs.length;
+        final SuccessorVirtualMachine[] vms =
+            new SuccessorVirtualMachine[machines];
+        final ByteArrayOutputStream[] outputs =
+            new ByteArrayOutputStream[machines];
+        ByteArrayOutputStream sharedOutput = new ByteArrayOutputStream();
+        Capacita shared = new Capacita(new PrintStream(sharedOutput));
+        for (int i = 0; i < machines; i++) {
+            outputs[i] = new ByteArrayOutputStream();
+            vms[i] = new SuccessorVirtualMachine(programs[i],
+                isShared ? shared :
+                new BufferedInputOutputMachine(outputs[i], System.in));
+        }
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < machines; i++) {
+            final SuccessorVirtualMachine vm = vms[i];
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (vm.execute() != SuccessorVirtualMachine.EXIT_SUCCESS) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        if (failures.get() > 0) {
+            throw new InternalException(failures.get() + " VMs failed.");
+        }
+        if (isShared) {
+            if (sharedOutput.size() < machines * printsPerMachine * 2) {
+                throw new InternalException("Shared output was lost.");
+            }
+        } else {
+            for (int i = 0; i < machines; i++) {
+                int[] expected = new int[printsPerMachine];
+                Arrays.fill(expected, i);
+                if (!lines(expected).equals(outputs[i].toString())) {
+                    throw new InternalException("Output of VM " + i +
+                                                " is wrong.");
+                }
+            }
+        }
+    }
+
+    private static String lines(int... values) {
+        StringBuilder result = new StringBuilder();
+        for (int value : values) {
+            result.append(value).append(System.lineSeparator());
+        }
+        return result.toString();
+    }
+    
+    /**
+     * @return a new instance of each benchmark of the Successor VM
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new Benchmark("vm_property_access", 1000, 1000000) {
+                private int[] program;
+
+                @Override
+                protected void setUp(int size) throws InternalException {
+                    program = Assembler.flatCompileDirectly(
+                                  propertyLoop(size));
+                }
+
+                @Override
+                protected Object operation() throws InternalException {
+                    return new SuccessorVirtualMachine(program,
+                               new String[]{"x", "y"}).execute();
+                }
+            },
+            methodCallBenchmark("vm_method_calls_monomorphic", 1),
+            methodCallBenchmark("vm_method_calls_polymorphic", 3),
+            methodCallBenchmark("vm_method_calls_megamorphic", 6),
+            printingBenchmark("vm_concurrent_printing_isolated", false),
+            printingBenchmark("vm_concurrent_printing_shared", true)
+        };
+    }
+
+    /**
+     * @return a benchmark of size method calls, on receivers of the given
+     *         number of shapes
+     */
+    private static Benchmark methodCallBenchmark(String name,
+                                                 final int shapes) {
+        return new Benchmark(name, 600, 600000) {
+            private int[] program;
+            private final String[] names = methodNames(shapes);
+
+            @Override
+            protected void setUp(int size) throws InternalException {
+                program = Assembler.flatCompileDirectly(
+                              methodLoop(shapes, size));
+            }
+
+            @Override
+            protected Object operation() throws InternalException {
+                return new SuccessorVirtualMachine(program, names).execute();
+            }
+        };
+    }
+
+    /**
+     * @return a benchmark of size VMs printing 1000 lines each at once
+     */
+    private static Benchmark printingBenchmark(String name,
+                                               final boolean isShared) {
+        return new Benchmark(name, 10, 1000) {
+            private static final int PRINTS_PER_MACHINE = 1000;
+            private int[][] programs;
+
+            @Override
+            protected void setUp(int size) throws InternalException {
+                programs = printingPrograms(size, PRINTS_PER_MACHINE);
+            }
+
+            @Override
+            protected Object operation()
+                    throws InternalException, InterruptedException {
+                printConcurrently(programs, PRINTS_PER_MACHINE, isShared);
+                return programs;
+            }
+        };
+    }
+
     @Override
     protected boolean mainTest() {
         return true;
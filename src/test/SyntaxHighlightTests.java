@@ -1,5 +1,25 @@
 package test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import capacita.Capacita;
+import tools.ArgParser;
+import tools.BatchHighlighter;
+import tools.IncrementalHighlighter;
+import tools.KeywordTrie;
 import tools.SyntaxHighlight;
 
 /**
@@ -118,7 +138,7 @@ public class SyntaxHighlightTests extends TestGroup {
                     );
                     return assertEquals(highlighted,
                         "y = <span class=\"keyword\">null</span>\n" +
-                        "<span class=\"keyword\">if</span> x > " +
+                        "<span class=\"keyword\">if</span> x &gt; " +
                         "<span class=\"number2\">0.0</span>\n" +
                         "    y = <span class=\"string2\">" +
                         "\"some string.\"</span>\n" +
@@ -130,11 +150,525 @@ public class SyntaxHighlightTests extends TestGroup {
                         "<span class=\"comment2\">// end of file</span>"
                     );
                 }
+            },
+            new TestGroup("html_escaping") {
+                @Override
+                protected boolean mainTest() {
+                    StringBuilder highlighted = new StringBuilder();
+                    try {
+                        (new SyntaxHighlight()).highlight(
+                            "a<b && \"<i>\" // x > 0 & y\n",
+                            highlighted);
+                    } catch (IOException ex) {
+                        return false;
+                    }
+                    return assertEquals(highlighted.toString(),
+                        "a&lt;b &amp;&amp; " +
+                        "<span class=\"string2\">\"&lt;i&gt;\"</span> " +
+                        "<span class=\"comment2\">// x &gt; 0 &amp; y</span>\n"
+                    );
+                }
+            },
+            new TestGroup("whole_tokens") {
+                @Override
+                protected boolean mainTest() {
+                    String highlighted = (new SyntaxHighlight()).highlight(
+                        "elif in x1 '\\\\' /* a */ b */ /* c"
+                    );
+                    return assertEquals(highlighted,
+                        "elif <span class=\"keyword\">in</span> x1 " +
+                        "<span class=\"string2\">'\\\\'</span> " +
+                        "<span class=\"comment2\">/* a */</span> b */ " +
+                        "<span class=\"comment2\">/* c</span>"
+                    );
+                }
+            },
+            new TestGroup("parallel_highlighting") {
+                @Override
+                protected boolean mainTest() {
+                    String code = "x = 1 /* opened\n" + sampleCode(3000) +
+                        "\nclosed */ y = 'a' /* b */ // c */\n" +
+                        "/* two\nlines */ " + sampleCode(500) + "\n/* open";
+                    SyntaxHighlight highlighter = new SyntaxHighlight();
+                    String expected = highlighter.highlight(code);
+                    ForkJoinPool pool = new ForkJoinPool(4);
+                    try {
+                        for (int chunkSize : new int[]{1, 7, 100, 1 << 12}) {
+                            StringBuilder highlighted = new StringBuilder();
+                            int misses = highlighter.highlightParallel(code,
+                                             highlighted, pool, chunkSize);
+                            if (!expected.equals(highlighted.toString())) {
+                                setFailureMessage("Chunks of " + chunkSize +
+                                    " chars differ from sequential output.");
+                                return false;
+                            }
+                            if (chunkSize == 100 && misses == 0) {
+                                setFailureMessage("Comment never relexed.");
+                                return false;
+                            }
+                        }
+                        return true;
+                    } catch (IOException ex) {
+                        return false;
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            },
+            new TestGroup("incremental_highlighting") {
+                @Override
+                protected boolean mainTest() {
+                    String[] pieces = {
+                        "x", "if ", "\n", "/*", "*/", "'a'", "\"", "12.5",
+                        "// c", "#Int", " < ", "end", "*", "/"
+                    };
+                    Random random = new Random(7);
+                    StringBuilder text = new StringBuilder(sampleCode(600));
+                    IncrementalHighlighter highlighter =
+                        new IncrementalHighlighter(text.toString());
+                    ArrayList<String> html = new ArrayList<String>();
+                    for (int i = 0; i < highlighter.getLineCount(); i++) {
+                        html.add(highlighter.getLineHtml(i));
+                    }
+                    for (int edit = 0; edit < 2000; edit++) {
+                        int offset = random.nextInt(text.length() + 1);
+                        int deleted = Math.min(random.nextInt(8),
+                                               text.length() - offset);
+                        String inserted =
+                            pieces[random.nextInt(pieces.length)];
+                        text.replace(offset, offset + deleted, inserted);
+                        IncrementalHighlighter.Change change =
+                            highlighter.edit(offset, deleted, inserted);
+                        List<String> replaced = html.subList(
+                            change.getFirstLine(), change.getFirstLine() +
+                            change.getRemovedCount());
+                        replaced.clear();
+                        replaced.addAll(change.getLines());
+                        IncrementalHighlighter fresh =
+                            new IncrementalHighlighter(text.toString());
+                        if (!fresh.getHtml().equals(highlighter.getHtml()) ||
+                            !String.join("\n", html).equals(fresh.getHtml())) {
+                            setFailureMessage("Edit " + edit + " at " +
+                                offset + " was highlighted wrongly.");
+                            return false;
+                        }
+                    }
+                    return assertEquals(highlighter.getText(),
+                                        text.toString()) &&
+                           assertEquals(highlighter.length(), text.length());
+                }
+            },
+            new TestGroup("keyword_trie") {
+                @Override
+                protected boolean mainTest() {
+                    KeywordTrie trie =
+                        new KeywordTrie(SyntaxHighlight.CAPACITA_KEYWORDS);
+                    for (String keyword : SyntaxHighlight.CAPACITA_KEYWORDS) {
+                        if (!trie.contains(keyword)) {
+                            setFailureMessage("Missing " + keyword);
+                            return false;
+                        }
+                    }
+                    return assertEquals(trie.contains("in"), true) &&
+                           assertEquals(trie.contains("inp"), false) &&
+                           assertEquals(trie.contains("notbx"), false) &&
+                           assertEquals(trie.contains("If"), false) &&
+                           assertEquals(trie.contains("\u00e9"), false) &&
+                           assertEquals(trie.contains(""), false) &&
+                           assertEquals(trie.contains("x or y", 2, 4), true) &&
+                           assertEquals(trie.getFootprintBytes() <
+                               new PointerTrie(SyntaxHighlight
+                                   .CAPACITA_KEYWORDS).getFootprintBytes(),
+                               true);
+                }
+            },
+            new TestGroup("batch_highlighting") {
+                @Override
+                protected boolean mainTest() {
+                    Path root = null;
+                    try {
+                        root = Files.createTempDirectory("batch");
+                        Path docs = root.resolve("docs");
+                        Path out = root.resolve("html");
+                        String first = sampleCode(1000);
+                        String second = "x = '\u00e9' + 1 // <b>\n";
+                        writeFile(docs.resolve("a.cap"), first);
+                        writeFile(docs.resolve("sub/b.cap"), second);
+                        writeFile(docs.resolve("sub/notes.txt"), "if");
+                        BatchHighlighter batch = new BatchHighlighter(3);
+                        String glob = docs + "/**.cap";
+                        BatchHighlighter.Summary summary =
+                            batch.highlightAll(glob, out);
+                        SyntaxHighlight highlighter = new SyntaxHighlight();
+                        if (!assertEquals(summary.getHighlightedCount(), 2) ||
+                            !assertEquals(readFile(out.resolve("a.cap.html")),
+                                          highlighter.highlight(first)) ||
+                            !assertEquals(
+                                readFile(out.resolve("sub/b.cap.html")),
+                                highlighter.highlight(second)) ||
+                            !assertEquals(Files.exists(
+                                out.resolve("sub/notes.txt.html")), false)) {
+                            return false;
+                        }
+                        summary = batch.highlightAll(glob, out);
+                        if (!assertEquals(summary.getHighlightedCount(), 0) ||
+                            !assertEquals(summary.getSkippedCount(), 2)) {
+                            return false;
+                        }
+                        writeFile(docs.resolve("a.cap"), second);
+                        Files.delete(out.resolve("sub/b.cap.html"));
+                        summary = batch.highlightAll(glob, out);
+                        if (!assertEquals(summary.getHighlightedCount(), 2) ||
+                            !assertEquals(readFile(out.resolve("a.cap.html")),
+                                          highlighter.highlight(second))) {
+                            return false;
+                        }
+                        /* The output directory inside docs is not read. */
+                        summary = batch.highlightAll(docs.toString(),
+                                                     docs.resolve("html"));
+                        if (!assertEquals(summary.getHighlightedCount(), 3) ||
+                            !assertEquals(summary.getFailures().isEmpty(),
+                                          true)) {
+                            return false;
+                        }
+                        Path single = root.resolve("single.html");
+                        boolean isParsed = (new ArgParser(new String[]{
+                            "--syn-highlight", docs.resolve("a.cap").toString(),
+                            single.toString()})).parse();
+                        ByteArrayOutputStream errors =
+                            new ByteArrayOutputStream();
+                        boolean isMisuseParsed = (new ArgParser(
+                            new String[]{"--syn-highlight", "a"},
+                            new PrintStream(errors, true, "UTF-8"))).parse();
+                        return assertEquals(isParsed, true) &&
+                               assertEquals(readFile(single),
+                                            highlighter.highlight(second)) &&
+                               assertEquals(isMisuseParsed, false) &&
+                               assertEquals(errors.toString("UTF-8")
+                                   .startsWith("Usage: --syn-highlight"),
+                                   true);
+                    } catch (IOException | InterruptedException ex) {
+                        setFailureMessage(ex.toString());
+                        return false;
+                    } finally {
+                        deleteTree(root);
+                    }
+                }
             }
         };
         setSubtests(tests);
     }
     
+    /**
+     * @return a new instance of each benchmark of the highlighters
+     */
+    static Benchmark[] benchmarks() {
+        return new Benchmark[]{
+            new Benchmark("syntax_highlight_parallel", 1 << 10, 1 << 20,
+                          1 << 24) {
+                private final SyntaxHighlight highlighter =
+                    new SyntaxHighlight();
+                private String code;
+
+                @Override
+                protected void setUp(int size) {
+                    code = sampleCode(size);
+                }
+
+                @Override
+                protected Object operation() throws IOException {
+                    StringBuilder out = new StringBuilder();
+                    highlighter.highlightParallel(code, out);
+                    return out;
+                }
+            },
+            new Benchmark("incremental_highlight_keystroke", 1 << 16,
+                          1 << 20, 1 << 22) {
+                private IncrementalHighlighter highlighter;
+                private int offset;
+
+                @Override
+                protected void setUp(int size) {
+                    highlighter = new IncrementalHighlighter(
+                                      sampleCode(size));
+                    offset = size / 2;
+                }
+
+                @Override
+                protected Object operation() {
+                    /* Typing a char, then deleting it again. */
+                    highlighter.edit(offset, 0, "x");
+                    return highlighter.edit(offset, 1, "");
+                }
+            },
+            new Benchmark("incremental_highlight_newline", 1 << 16,
+                          1 << 20, 1 << 22) {
+                private IncrementalHighlighter highlighter;
+                private int offset;
+
+                @Override
+                protected void setUp(int size) {
+                    highlighter = new IncrementalHighlighter(
+                                      sampleCode(size));
+                    offset = size / 2;
+                }
+
+                @Override
+                protected Object operation() {
+                    /* Pressing Enter, then Backspace, in mid-buffer. */
+                    highlighter.edit(offset, 0, "\n");
+                    return highlighter.edit(offset, 1, "");
+                }
+            },
+            new LookupBenchmark("keyword_trie_lookup") {
+                private final KeywordTrie trie =
+                    new KeywordTrie(SyntaxHighlight.CAPACITA_KEYWORDS);
+
+                @Override
+                protected Object operation() {
+                    int found = 0;
+                    for (int i = 0; i < words.length; i += 2) {
+                        if (trie.contains(code, words[i], words[i + 1])) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            },
+            new LookupBenchmark("pointer_trie_lookup") {
+                private final PointerTrie trie =
+                    new PointerTrie(SyntaxHighlight.CAPACITA_KEYWORDS);
+
+                @Override
+                protected Object operation() {
+                    int found = 0;
+                    for (int i = 0; i < words.length; i += 2) {
+                        if (trie.contains(code, words[i], words[i + 1])) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            },
+            new LookupBenchmark("hash_set_lookup") {
+                private final HashSet<String> set = new HashSet<String>(
+                    Arrays.asList(SyntaxHighlight.CAPACITA_KEYWORDS));
+
+                @Override
+                protected Object operation() {
+                    int found = 0;
+                    for (int i = 0; i < words.length; i += 2) {
+                        if (set.contains(code.substring(words[i], words[i + 1]))) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            },
+            new BatchBenchmark("batch_highlight_changed", true),
+            new BatchBenchmark("batch_highlight_unchanged", false)
+        };
+    }
+
+    /**
+     * A benchmark of looking up every word of size chars of sample code
+     * among the Capacita keywords. Each subclass has a loop of its own, so
+     * that no call site sees every kind of lookup.
+     */
+    private abstract static class LookupBenchmark extends Benchmark {
+        protected String code;
+        protected int[] words;
+
+        LookupBenchmark(String name) {
+            super(name, 1 << 12, 1 << 20);
+        }
+
+        @Override
+        protected void setUp(int size) {
+            code = sampleCode(size);
+            words = wordBounds(code);
+        }
+    }
+
+    /**
+     * A benchmark of highlighting size files of 64K chars, each of which
+     * has either changed since the last run or not.
+     */
+    private static class BatchBenchmark extends Benchmark {
+        private final boolean isChanged;
+        private final BatchHighlighter batch = new BatchHighlighter(4);
+        private Path root;
+        private Path docs;
+        private Path out;
+
+        BatchBenchmark(String name, boolean isEveryFileChanged) {
+            super(name, 4, 256);
+            isChanged = isEveryFileChanged;
+        }
+
+        @Override
+        protected void setUp(int size) throws IOException {
+            root = Files.createTempDirectory("batch");
+            docs = root.resolve("docs");
+            out = root.resolve("html");
+            for (int i = 0; i < size; i++) {
+                writeFile(docs.resolve(i % 16 + "/" + i + ".cap"),
+                          sampleCode(1 << 16));
+            }
+        }
+
+        @Override
+        protected Object operation()
+                throws IOException, InterruptedException {
+            if (isChanged) {
+                /* Without a manifest, every file counts as changed. */
+                Files.deleteIfExists(
+                    out.resolve(BatchHighlighter.MANIFEST_NAME));
+            }
+            return batch.highlightAll(docs.toString(), out);
+        }
+
+        @Override
+        protected void tearDown() {
+            deleteTree(root);
+        }
+    }
+
+    /**
+     * @return start and end of every word of code, in pairs
+     */
+    private static int[] wordBounds(String code) {
+        ArrayList<Integer> bounds = new ArrayList<Integer>();
+        int i = 0;
+        while (i < code.length()) {
+            if (Character.isLetter(code.charAt(i))) {
+                int start = i;
+                while (i < code.length() &&
+                       Character.isLetterOrDigit(code.charAt(i))) {
+                    i++;
+                }
+                bounds.add(start);
+                bounds.add(i);
+            } else {
+                i++;
+            }
+        }
+        int[] result = new int[bounds.size()];
+        for (int j = 0; j < result.length; j++) {
+            result[j] = bounds.get(j);
+        }
+        return result;
+    }
+
+    /**
+     * A trie with an array of 94 children per node, one for each printable
+     * ASCII char, like the PrefixTrie that SyntaxHighlight once used.
+     */
+    private static class PointerTrie {
+        private static final int ASCII_RANGE = 94;
+        private final PointerTrie[] children = new PointerTrie[ASCII_RANGE];
+        private boolean isWord = false;
+
+        PointerTrie() {}
+
+        PointerTrie(String[] words) {
+            for (String word : words) {
+                PointerTrie node = this;
+                for (int i = 0; i < word.length(); i++) {
+                    int index = word.charAt(i) - ' ';
+                    if (node.children[index] == null) {
+                        node.children[index] = new PointerTrie();
+                    }
+                    node = node.children[index];
+                }
+                node.isWord = true;
+            }
+        }
+
+        boolean contains(CharSequence s, int start, int end) {
+            PointerTrie node = this;
+            for (int i = start; i < end && node != null; i++) {
+                int index = s.charAt(i) - ' ';
+                node = index >= 0 && index < ASCII_RANGE ?
+                       node.children[index] : null;
+            }
+            return node != null && node.isWord;
+        }
+
+        /**
+         * Estimates the bytes taken by this trie, assuming 4-byte
+         * references and 16-byte object and array headers.
+         */
+        int getFootprintBytes() {
+            int bytes = 16 + 16 + 4 * ASCII_RANGE;
+            for (PointerTrie child : children) {
+                if (child != null) {
+                    bytes += child.getFootprintBytes();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Builds Capacita source of the given length from a repeated program
+     * using every kind of token.
+     */
+    static String sampleCode(int length) {
+        String program =
+            "sub area(#Shape s) // area of shape\n" +
+            "    if s.kind == 'circle' and s.r > 0.0\n" +
+            "        return 3.14159 * s.r * s.r\n" +
+            "    else\n" +
+            "        return s.w * s.h + -1e-9 & mask\n" +
+            "    end\n" +
+            "end\n" +
+            "xs = [18, 19, #h2o, \"a < b\", null]\n";
+        StringBuilder code = new StringBuilder(length + program.length());
+        while (code.length() < length) {
+            code.append(program);
+        }
+        code.setLength(length);
+        return code.toString();
+    }
+    
+    private static void writeFile(Path file, String text) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readFile(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes a directory and everything under it, if it exists.
+     */
+    private static void deleteTree(Path root) {
+        if (root == null) {
+            return;
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attributes) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory,
+                        IOException ex) throws IOException {
+                    Files.delete(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            /* Left for the operating system to clean up. */
+        }
+    }
+    
     @Override
     protected boolean mainTest() {
         return true;
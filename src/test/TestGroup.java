@@ -52,6 +52,10 @@ public abstract class TestGroup extends Timeable {
         return name;
     }
     
+    TestGroup[] getSubtests() {
+        return subTests;
+    }
+    
     protected abstract boolean mainTest();
     
     /**
@@ -1,5 +1,6 @@
 package test;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import capacita.Capacita;
 import capacita.StringPrintStream;
@@ -32,12 +33,66 @@ public class TestRunner {
                 break;
             }
         }
-        String inspected = strOut.toString();
         Capacita.IO.setSystemPrintStream();
         if (isStrOutWorking) {
-            Capacita.IO.debugln("TEST OUTPUT:\n" + inspected);
+            Capacita.IO.debugln("TEST OUTPUT:");
+            try {
+                strOut.writeTo(System.out);
+            } catch (IOException ex) {
+                Capacita.IO.debugerr("Could not write test output.");
+            }
+            Capacita.IO.println("");
         }
         Capacita.IO.debugln("All tests passed? " +
                     (allTestsPassed ? "Yes" : "No, stopped on first failure"));
     }
+    
+    /**
+     * Runs every test as a benchmark and prints a table of its run times,
+     * allocation and garbage collections. Each subtest of a test is
+     * measured on its own; a test without subtests is measured whole.
+     * Output printed by the tests is discarded, unless a test fails.
+     * @param warmupRuns runs of each test before measuring
+     * @param runs runs of each test measured
+     * @return whether every run of every test passed
+     */
+    public boolean runBenchmarks(int warmupRuns, int runs) {
+        /* Bounded, since tests may print on every run. */
+        StringPrintStream strOut = new StringPrintStream(1 << 16);
+        Capacita.IO.println(String.format(
+            "%-56s %4s %10s %10s %10s %12s %7s %8s", "Test", "Runs",
+            "Median ms", "p90 ms", "p99 ms", "Alloc KB", "GCs", "GC ms"));
+        boolean allTestsPassed = true;
+        for (TestGroup test : allTests) {
+            TestGroup[] subTests = test.getSubtests();
+            if (subTests.length == 0) {
+                subTests = new TestGroup[]{test};
+            }
+            for (TestGroup subTest : subTests) {
+                String name = subTest == test ? test.getName() :
+                              test.getName() + "." + subTest.getName();
+                Capacita.IO.setPrintStream(strOut);
+                Timeable.Statistics statistics =
+                    subTest.getStatistics(warmupRuns, runs);
+                Capacita.IO.setSystemPrintStream();
+                if (!statistics.hasAllPassed()) {
+                    Capacita.IO.println(name + " failed. Its output ends " +
+                                        "with:\n" + strOut);
+                    allTestsPassed = false;
+                    break;
+                }
+                Capacita.IO.println(String.format(
+                    "%-56s %4d %10.2f %10.2f %10.2f %12d %7.2f %8.2f", name,
+                    statistics.getRuns(), 1000 * statistics.getMedian(),
+                    1000 * statistics.getP90(), 1000 * statistics.getP99(),
+                    statistics.getAllocatedBytes() / 1024,
+                    statistics.getCollections(),
+                    statistics.getCollectionMillis()));
+            }
+            if (!allTestsPassed) {
+                break;
+            }
+        }
+        return allTestsPassed;
+    }
 }
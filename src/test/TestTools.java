@@ -1,5 +1,7 @@
 package test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import capacita.InternalException;
 
 /**
@@ -45,6 +47,21 @@ public class TestTools {
         }
     }
     
+    /**
+     * Returns the number of bytes allocated so far by the current thread,
+     * or -1 if the JVM cannot report it.
+     * @return bytes allocated by this thread
+     */
+    public static long threadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                   .getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return -1;
+        }
+    }
+    
     public static Integer[] boxIntArray(int[] array) {
         Integer[] result = new Integer[array.length];
         for (int i = 0; i < array.length; i++) {
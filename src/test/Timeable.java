@@ -1,5 +1,9 @@
 package test;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
 /**
  * Represents a class with a run() method that can be timed.
  * @author Jiangcheng Oliver Chu
@@ -14,4 +18,135 @@ public abstract class Timeable {
         run();
         return (System.nanoTime() - startTime) / NANOSECONDS_PER_SEC;
     }
+
+    /**
+     * Times several runs after discarding a few warmup runs, so that the
+     * JIT has compiled run() before it is measured. Allocation is counted
+     * for the calling thread only, while collections are counted for the
+     * whole JVM.
+     * @param warmupRuns runs before measuring
+     * @param runs runs measured, at least one
+     * @return the distribution of run times, with allocation and
+     *         collections per run
+     */
+    public Statistics getStatistics(int warmupRuns, int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException(
+                "At least one run is needed, not " + runs);
+        }
+        boolean allPassed = true;
+        for (int i = 0; i < warmupRuns; i++) {
+            allPassed &= run();
+        }
+        long[] nanos = new long[runs];
+        long allocatedBefore = TestTools.threadAllocatedBytes();
+        long collectionsBefore = collectionCount();
+        long collectionMillisBefore = collectionMillis();
+        for (int i = 0; i < runs; i++) {
+            long startTime = System.nanoTime();
+            allPassed &= run();
+            nanos[i] = System.nanoTime() - startTime;
+        }
+        long allocated = allocatedBefore < 0 ? -1 :
+            (TestTools.threadAllocatedBytes() - allocatedBefore) / runs;
+        return new Statistics(nanos, allocated,
+            (collectionCount() - collectionsBefore) / (double) runs,
+            (collectionMillis() - collectionMillisBefore) / (double) runs,
+            allPassed);
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            /* -1 if the collector does not report it. */
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Run times and memory use measured by Timeable.getStatistics.
+     */
+    public static class Statistics {
+        /** Run times in ascending order. */
+        private final long[] sortedNanos;
+        private final long allocatedBytes;
+        private final double collections;
+        private final double collectionMillis;
+        private final boolean allPassed;
+
+        Statistics(long[] nanos, long bytesPerRun, double collectionsPerRun,
+                   double collectionMillisPerRun, boolean passed) {
+            sortedNanos = nanos.clone();
+            Arrays.sort(sortedNanos);
+            allocatedBytes = bytesPerRun;
+            collections = collectionsPerRun;
+            collectionMillis = collectionMillisPerRun;
+            allPassed = passed;
+        }
+
+        public int getRuns() {
+            return sortedNanos.length;
+        }
+
+        /**
+         * @param percent percentage of runs, from 0 to 100
+         * @return seconds within which that percentage of runs finished,
+         *         by the nearest-rank method
+         */
+        public double getPercentile(double percent) {
+            int rank = (int) Math.ceil(percent / 100 * sortedNanos.length);
+            int index = Math.min(Math.max(rank - 1, 0),
+                                 sortedNanos.length - 1);
+            return sortedNanos[index] / NANOSECONDS_PER_SEC;
+        }
+
+        public double getMedian() {
+            return getPercentile(50);
+        }
+
+        public double getP90() {
+            return getPercentile(90);
+        }
+
+        public double getP99() {
+            return getPercentile(99);
+        }
+
+        /**
+         * @return bytes allocated by the measuring thread per run, or -1
+         *         if the JVM cannot report it
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return garbage collections per run, by any thread
+         */
+        public double getCollections() {
+            return collections;
+        }
+
+        public double getCollectionMillis() {
+            return collectionMillis;
+        }
+
+        /**
+         * @return whether every run, including warmup runs, returned true
+         */
+        public boolean hasAllPassed() {
+            return allPassed;
+        }
+    }
 }
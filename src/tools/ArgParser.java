@@ -1,16 +1,36 @@
 package tools;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import capacita.Capacita;
+
 /**
  * Command line argument parsing.
  * @author Jiangcheng Oliver Chu
  */
 public class ArgParser {
     private final String[] arguments;
+    private final PrintStream errors;
     private final Argument[] allowed = {
         new Argument(
             "--syn-highlight",
             new String[]{"inputFile", "outputFile"},
-            "Syntax highlights source code files."
+            "Syntax highlights source code files. If inputFile is a\n" +
+            "directory, or a glob such as \"docs/**.cap\", every file it\n" +
+            "holds is highlighted in parallel into the directory\n" +
+            "outputFile, and files unchanged since the last run are\n" +
+            "skipped."
+        ),
+        new Argument(
+            "bench",
+            new String[]{"warmupRuns", "runs"},
+            "Runs every test warmupRuns times, then times it runs times\n" +
+            "and prints the median, p90 and p99 run times, bytes\n" +
+            "allocated and garbage collections of each test."
         ),
         new Argument(
             "help",
@@ -19,11 +39,99 @@ public class ArgParser {
         )
     };
     
-    public ArgParser(String[] args) {
+    /**
+     * @param args command line arguments
+     * @param errorStream receives error messages and usage of misused
+     *                    commands
+     */
+    public ArgParser(String[] args, PrintStream errorStream) {
         arguments = args;
+        errors = errorStream;
+    }
+    
+    public ArgParser(String[] args) {
+        this(args, System.err);
+    }
+    
+    /**
+     * Runs the command named by the first argument.
+     * @return false iff the command is unknown, has the wrong number of
+     *         parameters or failed
+     */
+    public boolean parse() {
+        Argument command = null;
+        for (Argument argument : allowed) {
+            if (arguments.length > 0 &&
+                argument.getName().equals(arguments[0])) {
+                command = argument;
+            }
+        }
+        if (command == null) {
+            errors.println("Unknown command: " +
+                                 Arrays.toString(arguments));
+            printHelp();
+            return false;
+        }
+        String[] subArgs = Arrays.copyOfRange(arguments, 1, arguments.length);
+        if (!command.validate(subArgs)) {
+            errors.println(command.getFullDoc());
+            return false;
+        }
+        if (command.getName().equals("help")) {
+            printHelp();
+            return true;
+        }
+        if (command.getName().equals("bench")) {
+            return bench(subArgs[0], subArgs[1]);
+        }
+        return highlight(subArgs[0], Paths.get(subArgs[1]));
+    }
+    
+    private void printHelp() {
+        for (Argument argument : allowed) {
+            Capacita.IO.println(argument.getFullDoc());
+        }
+    }
+    
+    private boolean bench(String warmupRuns, String runs) {
+        int warmupCount;
+        int runCount;
+        try {
+            warmupCount = Integer.parseInt(warmupRuns);
+            runCount = Integer.parseInt(runs);
+        } catch (NumberFormatException ex) {
+            errors.println("Run counts must be integers: " + ex);
+            return false;
+        }
+        if (warmupCount < 0 || runCount < 1) {
+            errors.println("Need at least 0 warmup runs and 1 run.");
+            return false;
+        }
+        return Capacita.runBenchmarks(warmupCount, runCount);
     }
     
-    public void parse() {
-        
+    private boolean highlight(String input, Path output) {
+        BatchHighlighter highlighter = new BatchHighlighter();
+        BatchHighlighter.Summary summary;
+        try {
+            if (BatchHighlighter.isGlob(input) ||
+                Files.isDirectory(Paths.get(input))) {
+                summary = highlighter.highlightAll(input, output);
+            } else {
+                summary = highlighter.highlightFile(Paths.get(input), output);
+            }
+        } catch (IOException ex) {
+            errors.println("Cannot highlight " + input + ": " + ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            errors.println("Interrupted while highlighting " + input);
+            return false;
+        }
+        for (String failure : summary.getFailures()) {
+            errors.println("Cannot highlight " + failure);
+        }
+        Capacita.IO.println(summary);
+        return summary.getFailures().isEmpty();
     }
 }
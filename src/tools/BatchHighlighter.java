@@ -0,0 +1,422 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Highlights whole trees of source files into HTML files. Files are found
+ * by walking a directory, optionally filtered by a glob, and highlighted
+ * on a fixed number of worker threads. Inputs are memory mapped, and each
+ * output is written to a temporary file and then moved into place. A
+ * manifest in the output directory records a hash of every input, so
+ * files unchanged since the last run are skipped.
+ * @author Jiangcheng Oliver Chu
+ */
+public class BatchHighlighter {
+    /** Must change whenever the HTML produced for a source changes. */
+    public static final String HIGHLIGHTER_VERSION = "1";
+    public static final String MANIFEST_NAME = ".syn-highlight-manifest";
+    private static final String SUFFIX = ".html";
+    private static final String GLOB_CHARS = "*?[{";
+    private final int workerCount;
+
+    /**
+     * @param workers number of threads highlighting files at once
+     */
+    public BatchHighlighter(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException(
+                "At least one worker is needed, not " + workers);
+        }
+        workerCount = workers;
+    }
+
+    /**
+     * Uses one worker per available processor.
+     */
+    public BatchHighlighter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param input path to check
+     * @return whether input is a glob rather than the name of a file
+     */
+    public static boolean isGlob(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (GLOB_CHARS.indexOf(input.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Highlights a single file, without consulting the manifest.
+     * @param input source file
+     * @param output HTML file, replaced if it exists
+     * @return the summary of the run
+     * @throws IOException if input cannot be read or output written
+     */
+    public Summary highlightFile(Path input, Path output) throws IOException {
+        long startTime = System.nanoTime();
+        ByteBuffer mapped = map(input);
+        write(decode(mapped), output);
+        return new Summary(1, 0, mapped.capacity(),
+                           System.nanoTime() - startTime,
+                           Collections.<String>emptyList());
+    }
+
+    /**
+     * Highlights every file under a directory, or every file matching a
+     * glob such as "docs/**.cap", into outputDirectory. Each output has
+     * the path of its input relative to the directory, or to the part of
+     * the glob before its first wildcard, followed by ".html". Files
+     * under outputDirectory are never inputs.
+     * @param input directory or glob
+     * @param outputDirectory directory receiving the HTML files; created
+     *                        if it does not exist
+     * @return the summary of the run; a file that could not be highlighted
+     *         is reported there rather than ending the run
+     * @throws IOException if the output directory or manifest cannot be
+     *                     used
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              workers
+     */
+    public Summary highlightAll(String input, Path outputDirectory)
+           throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        final Path base;
+        final PathMatcher matcher;
+        if (isGlob(input)) {
+            int wildcard = 0;
+            while (GLOB_CHARS.indexOf(input.charAt(wildcard)) < 0) {
+                wildcard++;
+            }
+            int slash = input.lastIndexOf('/', wildcard);
+            base = Paths.get(slash < 0 ? "." :
+                             slash == 0 ? "/" : input.substring(0, slash));
+            matcher = FileSystems.getDefault().getPathMatcher(
+                      "glob:" + input.substring(slash + 1));
+        } else {
+            base = Paths.get(input);
+            matcher = null;
+        }
+        final Path outputs = outputDirectory.toAbsolutePath().normalize();
+        Files.createDirectories(outputs);
+        final Map<String, String> previous = readManifest(outputs);
+        final Map<String, String> current =
+            new ConcurrentHashMap<String, String>();
+        final Run run = new Run();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(4 * workerCount),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory,
+                        BasicFileAttributes attributes) {
+                    if (directory.toAbsolutePath().normalize()
+                                 .startsWith(outputs)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                        BasicFileAttributes attributes) {
+                    final Path relative = base.relativize(file);
+                    if (!attributes.isRegularFile() ||
+                        (matcher != null && !matcher.matches(relative))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    /* Blocks by running the task here once the queue is
+                       full, so the walk never gets far ahead. */
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            highlightEntry(file, relative, outputs,
+                                           previous, current, run);
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                                                       IOException ex) {
+                    run.fail(file, ex);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            pool.shutdown();
+            if (!pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Workers did not finish.");
+            }
+        }
+        writeManifest(outputs, current);
+        return new Summary(run.highlighted.get(), run.skipped.get(),
+                           run.bytesRead.get(),
+                           System.nanoTime() - startTime,
+                           new ArrayList<String>(run.failures));
+    }
+
+    /**
+     * Highlights one file of a batch unless its hash is in the previous
+     * manifest and its output exists.
+     */
+    private void highlightEntry(Path file, Path relative, Path outputs,
+                                Map<String, String> previous,
+                                Map<String, String> current, Run run) {
+        String name = relative.toString().replace(File.separatorChar, '/');
+        Path output = outputs.resolve(relative.toString() + SUFFIX);
+        try {
+            ByteBuffer mapped = map(file);
+            run.bytesRead.addAndGet(mapped.capacity());
+            String hash = hash(mapped);
+            if (hash.equals(previous.get(name)) && Files.exists(output)) {
+                run.skipped.incrementAndGet();
+            } else {
+                Files.createDirectories(output.getParent());
+                write(decode(mapped), output);
+                run.highlighted.incrementAndGet();
+            }
+            current.put(name, hash);
+        } catch (IOException | RuntimeException ex) {
+            /* Reported rather than thrown, since a worker would lose it
+               and the walking thread would skip writing the manifest. */
+            run.fail(file, ex);
+        }
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                                       StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                               channel.size());
+        }
+    }
+
+    private static CharBuffer decode(ByteBuffer mapped) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return decoder.decode(mapped.duplicate());
+    }
+
+    /**
+     * Renders the HTML of code in memory, since appending each token to a
+     * Writer costs a String per token, and writes it in one piece.
+     */
+    private static void write(CharSequence code, Path output)
+            throws IOException {
+        StringBuilder html = new StringBuilder(2 * code.length());
+        (new SyntaxHighlight()).highlight(code, html);
+        writeAtomically(StandardCharsets.UTF_8.encode(CharBuffer.wrap(html)),
+                        output);
+    }
+
+    /**
+     * Writes bytes to a temporary file beside output, which is then moved
+     * over output, so readers never see a partial file.
+     */
+    private static void writeAtomically(ByteBuffer bytes, Path output)
+            throws IOException {
+        Path directory = output.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, ".syn-highlight",
+                                              ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary,
+                                           StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            Files.move(temporary, output, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String hash(ByteBuffer mapped) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            /* Every Java platform is required to support SHA-256. */
+            throw new IllegalStateException(ex);
+        }
+        digest.update(HIGHLIGHTER_VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(mapped.duplicate());
+        byte[] hashed = digest.digest();
+        StringBuilder hex = new StringBuilder(2 * hashed.length);
+        for (byte b : hashed) {
+            hex.append(Character.forDigit((b >>> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads the manifest, one hash, tab and relative path per line.
+     * @return the hash of each input, or no hashes if there is no manifest
+     */
+    private static Map<String, String> readManifest(Path outputs)
+            throws IOException {
+        Map<String, String> hashes = new TreeMap<String, String>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(outputs.resolve(MANIFEST_NAME),
+                                       StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            return hashes;
+        }
+        for (String line : lines) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                hashes.put(line.substring(tab + 1), line.substring(0, tab));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Replaces the manifest with the hashes of this run, sorted by path.
+     * Files that were deleted or failed are left out, so they are
+     * highlighted again by the next run.
+     */
+    private static void writeManifest(Path outputs,
+                                      Map<String, String> hashes)
+            throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, String> entry :
+                 new TreeMap<String, String>(hashes).entrySet()) {
+            manifest.append(entry.getValue()).append('\t')
+                    .append(entry.getKey()).append('\n');
+        }
+        writeAtomically(StandardCharsets.UTF_8.encode(manifest.toString()),
+                        outputs.resolve(MANIFEST_NAME));
+    }
+
+    /**
+     * Counters shared by the workers of one batch.
+     */
+    private static class Run {
+        private final AtomicInteger highlighted = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final List<String> failures =
+            Collections.synchronizedList(new ArrayList<String>());
+
+        void fail(Path file, Exception ex) {
+            failures.add(file + ": " + ex);
+        }
+    }
+
+    /**
+     * Counts and throughput of one run.
+     */
+    public static class Summary {
+        private final int highlightedCount;
+        private final int skippedCount;
+        private final long bytesRead;
+        private final long nanoseconds;
+        private final List<String> failures;
+
+        Summary(int highlighted, int skipped, long bytes, long nanos,
+                List<String> failed) {
+            highlightedCount = highlighted;
+            skippedCount = skipped;
+            bytesRead = bytes;
+            nanoseconds = nanos;
+            failures = Collections.unmodifiableList(failed);
+        }
+
+        public int getHighlightedCount() {
+            return highlightedCount;
+        }
+
+        /**
+         * @return number of files unchanged since the last run
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * @return bytes of input read, including skipped files, which are
+         *         read to be hashed
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public double getSeconds() {
+            return nanoseconds / 1e9;
+        }
+
+        /**
+         * @return one message for each file that could not be highlighted
+         */
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return files highlighted or skipped per second
+         */
+        public double getFilesPerSecond() {
+            return (highlightedCount + skippedCount) / getSeconds();
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytesRead / 1e6 / getSeconds();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Highlighted %d files and skipped %d " +
+                "unchanged files (%.2f MB) in %.3f seconds: %.1f files/sec, " +
+                "%.2f MB/sec%s", highlightedCount, skippedCount,
+                bytesRead / 1e6, getSeconds(), getFilesPerSecond(),
+                getMegabytesPerSecond(),
+                failures.isEmpty() ? "." :
+                    ", " + failures.size() + " files failed.");
+        }
+    }
+}
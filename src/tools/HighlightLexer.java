@@ -0,0 +1,277 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A table-driven DFA that splits Capacita source into the tokens coloured
+ * by SyntaxHighlight. Words, numbers, strings, tags and comments are all
+ * states of one automaton, so each token is found in a single left-to-right
+ * pass, taking the longest match, without backtracking or allocation.
+ * Characters with identical transitions share a column of the table.
+ * Keywords are not states: a word is looked up in a KeywordTrie once it has
+ * been scanned, which keeps the table small.
+ * @author Jiangcheng Oliver Chu
+ */
+final class HighlightLexer {
+    /** Kinds of token; PLAIN and WORD are not highlighted. */
+    static final int PLAIN = 0;
+    static final int KEYWORD = 1;
+    static final int NUMBER = 2;
+    static final int STRING = 3;
+    static final int TAG = 4;
+    static final int COMMENT = 5;
+    static final int WORD = 6;
+    private static final int DEAD = -1;
+    /** Column of the build table shared by every non-ASCII char. */
+    private static final int OTHER = 128;
+    private static final String LETTERS =
+        "_ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final String DIGITS = "0123456789";
+    private static final String LINE_ENDS = "\n\r";
+    static final int START = 0;
+    /** Inside a block comment, after its opening. */
+    static final int BLOCK_COMMENT;
+    private static final int BLOCK_STAR;
+    /** Words highlighted as keywords, looked up once a word is scanned. */
+    private static final KeywordTrie keywords =
+        new KeywordTrie(SyntaxHighlight.CAPACITA_KEYWORDS);
+    private static final int[] transitions;
+    private static final byte[] kinds;
+    private static final byte[] charClasses = new byte[OTHER];
+    private static final int otherClass;
+    private static final int classCount;
+
+    /* States and their transitions by char, before columns are merged. */
+    private static ArrayList<int[]> building = new ArrayList<int[]>();
+    private static ArrayList<Integer> buildingKinds = new ArrayList<Integer>();
+
+    static {
+        int start = state(PLAIN);
+        int identifier = state(WORD);
+        on(start, LETTERS, identifier);
+        on(identifier, LETTERS + DIGITS, identifier);
+
+        int minus = state(PLAIN);
+        int firstDigit = state(NUMBER);
+        int radix = state(PLAIN);
+        int integer = state(NUMBER);
+        int point = state(PLAIN);
+        int fraction = state(NUMBER);
+        int exponent = state(PLAIN);
+        int exponentSign = state(PLAIN);
+        int exponentDigits = state(NUMBER);
+        int bracket = state(PLAIN);
+        int bracketDigits = state(PLAIN);
+        int bracketEnd = state(NUMBER);
+        on(start, "-", minus);
+        on(start, DIGITS, firstDigit);
+        for (int s : new int[]{minus, firstDigit}) {
+            on(s, "xob", radix);
+            on(s, DIGITS, integer);
+            on(s, ".", point);
+        }
+        on(radix, DIGITS, integer);
+        on(radix, ".", point);
+        on(integer, DIGITS, integer);
+        on(integer, ".", point);
+        on(point, DIGITS, fraction);
+        on(fraction, DIGITS, fraction);
+        for (int s : new int[]{integer, fraction}) {
+            on(s, "eE", exponent);
+            on(s, "[", bracket);
+        }
+        on(exponent, "-", exponentSign);
+        on(exponent, DIGITS, exponentDigits);
+        on(exponentSign, DIGITS, exponentDigits);
+        on(exponentDigits, DIGITS, exponentDigits);
+        on(exponentDigits, "[", bracket);
+        on(bracket, DIGITS, bracketDigits);
+        on(bracketDigits, DIGITS, bracketDigits);
+        on(bracketDigits, "]", bracketEnd);
+
+        addString(start, '"');
+        addString(start, '\'');
+
+        int hash = state(PLAIN);
+        int tagStart = state(PLAIN);
+        int tagMiddle = state(PLAIN);
+        int tagEnd = state(TAG);
+        on(start, "#", hash);
+        on(hash, LETTERS, tagStart);
+        for (int s : new int[]{tagStart, tagMiddle, tagEnd}) {
+            on(s, "(.,", tagMiddle);
+            on(s, LETTERS + DIGITS + ")", tagEnd);
+        }
+
+        int slash = state(PLAIN);
+        int lineComment = state(COMMENT);
+        int blockComment = state(COMMENT);
+        int blockStar = state(COMMENT);
+        int blockEnd = state(COMMENT);
+        on(start, "/", slash);
+        on(slash, "/", lineComment);
+        onAll(lineComment, lineComment);
+        on(lineComment, LINE_ENDS, DEAD);
+        on(slash, "*", blockComment);
+        onAll(blockComment, blockComment);
+        on(blockComment, "*", blockStar);
+        onAll(blockStar, blockComment);
+        on(blockStar, "*", blockStar);
+        on(blockStar, "/", blockEnd);
+        BLOCK_COMMENT = blockComment;
+        BLOCK_STAR = blockStar;
+
+        int[] columns = mergeColumns();
+        classCount = columns[OTHER] + 1;
+        otherClass = columns[OTHER];
+        for (int c = 0; c < OTHER; c++) {
+            charClasses[c] = (byte) columns[c];
+        }
+        transitions = new int[building.size() * classCount];
+        kinds = new byte[building.size()];
+        for (int s = 0; s < building.size(); s++) {
+            int[] row = building.get(s);
+            for (int c = 0; c <= OTHER; c++) {
+                transitions[s * classCount + columns[c]] = row[c];
+            }
+            kinds[s] = (byte) (int) buildingKinds.get(s);
+        }
+        building = null;
+        buildingKinds = null;
+    }
+
+    private HighlightLexer() {}
+
+    private static int state(int kind) {
+        int[] row = new int[OTHER + 1];
+        Arrays.fill(row, DEAD);
+        building.add(row);
+        buildingKinds.add(kind);
+        return building.size() - 1;
+    }
+
+    private static void on(int from, String chars, int to) {
+        for (int i = 0; i < chars.length(); i++) {
+            building.get(from)[chars.charAt(i)] = to;
+        }
+    }
+
+    private static void onAll(int from, int to) {
+        Arrays.fill(building.get(from), to);
+    }
+
+    /**
+     * Adds a string between two quote chars on one line, with backslash
+     * escapes. An unclosed quote is highlighted on its own.
+     */
+    private static void addString(int start, char quote) {
+        int open = state(STRING);
+        int body = state(PLAIN);
+        int escape = state(PLAIN);
+        int close = state(STRING);
+        on(start, String.valueOf(quote), open);
+        for (int s : new int[]{open, body}) {
+            onAll(s, body);
+            on(s, LINE_ENDS, DEAD);
+            on(s, "\\", escape);
+            on(s, String.valueOf(quote), close);
+        }
+        onAll(escape, body);
+        on(escape, LINE_ENDS, DEAD);
+    }
+
+    /**
+     * Numbers chars by their column of transitions, so that chars with
+     * identical columns share one.
+     * @return the class of each char, with the class of non-ASCII chars
+     *         last
+     */
+    private static int[] mergeColumns() {
+        HashMap<String, Integer> classes = new HashMap<String, Integer>();
+        int[] columns = new int[OTHER + 1];
+        int[] column = new int[building.size()];
+        for (int c = 0; c <= OTHER; c++) {
+            for (int s = 0; s < building.size(); s++) {
+                column[s] = building.get(s)[c];
+            }
+            String key = Arrays.toString(column);
+            Integer id = classes.get(key);
+            if (id == null) {
+                id = classes.size();
+                classes.put(key, id);
+            }
+            columns[c] = id;
+        }
+        /* Move the non-ASCII class to the end. */
+        int other = columns[OTHER];
+        int last = classes.size() - 1;
+        for (int c = 0; c <= OTHER; c++) {
+            if (columns[c] == other) {
+                columns[c] = last;
+            } else if (columns[c] == last) {
+                columns[c] = other;
+            }
+        }
+        return columns;
+    }
+
+    static int getStateCount() {
+        return kinds.length;
+    }
+
+    static int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Finds the longest token starting at index in the given state.
+     * @param s source
+     * @param index position of the first char of the token
+     * @param end position the token may not extend past
+     * @param state START, or BLOCK_COMMENT to continue a comment
+     * @return the end of the token in the high 32 bits, then the state
+     *         reached at its end, then its kind in the low 8 bits; a PLAIN
+     *         token is always one char long
+     */
+    static long scan(CharSequence s, int index, int end, int state) {
+        int tokenEnd = index + 1;
+        int tokenState = START;
+        int kind = PLAIN;
+        for (int i = index; i < end; i++) {
+            char c = s.charAt(i);
+            state = transitions[state * classCount +
+                                (c < OTHER ? charClasses[c] : otherClass)];
+            if (state == DEAD) {
+                break;
+            }
+            if (kinds[state] != PLAIN) {
+                tokenEnd = i + 1;
+                tokenState = state;
+                kind = kinds[state];
+            }
+        }
+        if (kind == WORD && keywords.contains(s, index, tokenEnd)) {
+            kind = KEYWORD;
+        }
+        return (long) tokenEnd << 32 | tokenState << 8 | kind;
+    }
+
+    static int endOf(long token) {
+        return (int) (token >>> 32);
+    }
+
+    static int kindOf(long token) {
+        return (int) token & 0xff;
+    }
+
+    /**
+     * @return whether a token ended while still inside a block comment,
+     *         which is only possible at the end of the text scanned
+     */
+    static boolean isOpenComment(long token) {
+        int state = (int) token >>> 8;
+        return state == BLOCK_COMMENT || state == BLOCK_STAR;
+    }
+}
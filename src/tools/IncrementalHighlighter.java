@@ -0,0 +1,287 @@
+package tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the highlighted HTML of a buffer being edited, one line at a time.
+ * The lexer state at the start of every line is remembered, so an edit only
+ * re-highlights the lines it touches and the lines after them whose start
+ * state changed, such as lines pulled into or out of a block comment.
+ * The HTML of each line is complete on its own: a block comment over
+ * several lines has a span on each line.
+ * <p>
+ * Lines are kept in a gap buffer whose gap follows the edits, so an edit
+ * that adds or removes lines only moves the lines between it and the
+ * previous edit. The char offset of the gap is kept, and the line lengths
+ * are kept in an array of their own, so finding the line at an offset scans
+ * that array from the gap.
+ * @author Jiangcheng Oliver Chu
+ */
+public class IncrementalHighlighter {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Lines of the buffer, with gapEnd - gapStart unused slots. */
+    private Line[] lines;
+    /** Length of the text of each slot of lines. */
+    private int[] lineLengths;
+    private int gapStart;
+    private int gapEnd;
+    /** Offset of the first char after the gap. */
+    private int gapOffset;
+    private int length;
+
+    /**
+     * @param code initial contents of the buffer
+     */
+    public IncrementalHighlighter(String code) {
+        List<String> texts = splitLines(code);
+        int capacity = Math.max(INITIAL_CAPACITY, 2 * texts.size());
+        lines = new Line[capacity];
+        lineLengths = new int[capacity];
+        gapStart = 0;
+        gapEnd = capacity - texts.size();
+        gapOffset = 0;
+        int state = HighlightLexer.START;
+        for (int i = 0; i < texts.size(); i++) {
+            Line line = new Line(texts.get(i));
+            state = line.render(state);
+            lines[gapEnd + i] = line;
+            lineLengths[gapEnd + i] = line.text.length();
+        }
+        length = code.length();
+    }
+
+    public int getLineCount() {
+        return lines.length - (gapEnd - gapStart);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param index zero-based line number
+     * @return the highlighted HTML of the line, without its newline
+     */
+    public String getLineHtml(int index) {
+        if (index < 0 || index >= getLineCount()) {
+            throw new IndexOutOfBoundsException("Line " + index +
+                " is outside of " + getLineCount() + " lines.");
+        }
+        return line(index).html;
+    }
+
+    /**
+     * @return the highlighted HTML of every line, joined by newlines
+     */
+    public String getHtml() {
+        StringBuilder result = new StringBuilder(length + length / 2);
+        for (int i = 0; i < getLineCount(); i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            result.append(line(i).html);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the current contents of the buffer
+     */
+    public String getText() {
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < getLineCount(); i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            result.append(line(i).text);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Replaces deletedLength chars at offset with insertedText. Lines are
+     * re-highlighted from the first line edited until the start state of a
+     * line after the edit is unchanged.
+     * @param offset position of the first char deleted
+     * @param deletedLength number of chars deleted
+     * @param insertedText text inserted at offset
+     * @return the lines whose HTML changed
+     */
+    public Change edit(int offset, int deletedLength, String insertedText) {
+        if (offset < 0 || deletedLength < 0 ||
+            offset + deletedLength > length) {
+            throw new IndexOutOfBoundsException("Edit of chars " + offset +
+                " to " + (offset + deletedLength) + " is outside of " +
+                length + " chars.");
+        }
+        moveGapTo(offset);
+        int firstLine = gapStart;
+        int firstColumn = offset - gapOffset;
+        int last = gapEnd;
+        int lastColumn = firstColumn + deletedLength;
+        while (lastColumn > lineLengths[last]) {
+            lastColumn -= lineLengths[last] + 1;
+            last++;
+        }
+        String edited = lines[gapEnd].text.substring(0, firstColumn) +
+                        insertedText + lines[last].text.substring(lastColumn);
+        List<String> texts = splitLines(edited);
+        ArrayList<String> html = new ArrayList<String>(texts.size());
+        int state = lines[gapEnd].startState;
+        int removedCount = last + 1 - gapEnd;
+        Arrays.fill(lines, gapEnd, last + 1, null);
+        gapEnd = last + 1;
+        ensureGap(texts.size());
+        /* The new lines go just after the gap, which stays at firstLine. */
+        gapEnd -= texts.size();
+        for (int i = 0; i < texts.size(); i++) {
+            Line line = new Line(texts.get(i));
+            state = line.render(state);
+            lines[gapEnd + i] = line;
+            lineLengths[gapEnd + i] = line.text.length();
+            html.add(line.html);
+        }
+        int next = gapEnd + texts.size();
+        while (next < lines.length && lines[next].startState != state) {
+            Line line = lines[next];
+            state = line.render(state);
+            html.add(line.html);
+            removedCount++;
+            next++;
+        }
+        length += insertedText.length() - deletedLength;
+        return new Change(firstLine, removedCount, html);
+    }
+
+    private Line line(int index) {
+        return lines[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    /**
+     * Moves the gap to just before the line containing offset, one line at
+     * a time.
+     */
+    private void moveGapTo(int offset) {
+        while (gapOffset > offset) {
+            gapStart--;
+            gapEnd--;
+            lines[gapEnd] = lines[gapStart];
+            lineLengths[gapEnd] = lineLengths[gapStart];
+            lines[gapStart] = null;
+            gapOffset -= lineLengths[gapEnd] + 1;
+        }
+        while (offset > gapOffset + lineLengths[gapEnd]) {
+            gapOffset += lineLengths[gapEnd] + 1;
+            lines[gapStart] = lines[gapEnd];
+            lineLengths[gapStart] = lineLengths[gapEnd];
+            lines[gapEnd] = null;
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    /**
+     * Grows the buffer, if needed, so the gap holds at least count lines.
+     */
+    private void ensureGap(int count) {
+        if (gapEnd - gapStart >= count) {
+            return;
+        }
+        int tail = lines.length - gapEnd;
+        int capacity = Math.max(2 * lines.length, gapStart + count + tail);
+        Line[] grownLines = new Line[capacity];
+        int[] grownLengths = new int[capacity];
+        System.arraycopy(lines, 0, grownLines, 0, gapStart);
+        System.arraycopy(lineLengths, 0, grownLengths, 0, gapStart);
+        System.arraycopy(lines, gapEnd, grownLines, capacity - tail, tail);
+        System.arraycopy(lineLengths, gapEnd, grownLengths,
+                         capacity - tail, tail);
+        lines = grownLines;
+        lineLengths = grownLengths;
+        gapEnd = capacity - tail;
+    }
+
+    /**
+     * Splits text at newlines, keeping a last line even if it is empty.
+     */
+    private static List<String> splitLines(String text) {
+        ArrayList<String> result = new ArrayList<String>();
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = text.indexOf('\n', lineStart)) >= 0) {
+            result.add(text.substring(lineStart, lineEnd));
+            lineStart = lineEnd + 1;
+        }
+        result.add(text.substring(lineStart));
+        return result;
+    }
+
+    private static class Line {
+        private final String text;
+        private int startState;
+        private String html;
+
+        Line(String lineText) {
+            text = lineText;
+        }
+
+        /**
+         * @return the lexer state at the start of the next line
+         */
+        int render(int state) {
+            startState = state;
+            StringBuilder result = new StringBuilder(text.length() + 16);
+            int endState;
+            try {
+                endState = SyntaxHighlight.render(text, 0, text.length(),
+                                                  state, true, true, result);
+            } catch (IOException ex) {
+                /* StringBuilder never throws IOException. */
+                throw new IllegalStateException(ex);
+            }
+            html = result.toString();
+            return endState;
+        }
+    }
+
+    /**
+     * Lines of HTML that replace a range of lines after an edit.
+     */
+    public static class Change {
+        private final int firstLine;
+        private final int removedCount;
+        private final List<String> lines;
+
+        Change(int first, int removed, List<String> html) {
+            firstLine = first;
+            removedCount = removed;
+            lines = Collections.unmodifiableList(html);
+        }
+
+        /**
+         * @return zero-based index of the first line replaced
+         */
+        public int getFirstLine() {
+            return firstLine;
+        }
+
+        /**
+         * @return number of lines of the old HTML replaced
+         */
+        public int getRemovedCount() {
+            return removedCount;
+        }
+
+        /**
+         * @return HTML of the new lines, without newlines
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package tools;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * A set of words stored as a double-array trie. The child of state s on
+ * char code c is the state t = base[s] + c, which exists only if
+ * check[t] == s, so every step of a lookup is two array reads, and the
+ * children of all states are interleaved in the same two arrays. The base
+ * and check of each state are stored side by side in one array, and the
+ * array is long enough that no lookup can step past its end.
+ * @author Jiangcheng Oliver Chu
+ */
+public final class KeywordTrie {
+    private static final int ROOT = 0;
+    private static final int FREE = -1;
+    /** Code of each ASCII char used by a word, from 1; 0 if unused. */
+    private final byte[] codes = new byte[128];
+    private int[] base;
+    private int[] check;
+    /** base[t] at 2 * t and check[t] at 2 * t + 1. */
+    private final int[] units;
+    private boolean[] isWord;
+
+    /**
+     * @param words ASCII words in the set
+     */
+    public KeywordTrie(String[] words) {
+        int alphabetSize = 0;
+        for (String word : words) {
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (c >= codes.length) {
+                    throw new IllegalArgumentException(
+                        "Not an ASCII word: " + word);
+                }
+                if (codes[c] == 0) {
+                    codes[c] = (byte) ++alphabetSize;
+                }
+            }
+        }
+        Node root = new Node();
+        for (String word : words) {
+            Node node = root;
+            for (int i = 0; i < word.length(); i++) {
+                int code = codes[word.charAt(i)];
+                Node child = node.children.get(code);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(code, child);
+                }
+                node = child;
+            }
+            node.isWord = true;
+        }
+        build(root, alphabetSize);
+        units = new int[2 * base.length];
+        for (int t = 0; t < base.length; t++) {
+            units[2 * t] = base[t];
+            units[2 * t + 1] = check[t];
+        }
+        base = null;
+        check = null;
+    }
+
+    /**
+     * Places the states breadth first, giving each state the smallest base
+     * at which all of its children land on free slots.
+     */
+    private void build(Node root, int alphabetSize) {
+        int capacity = 2 * (alphabetSize + 1);
+        base = new int[capacity];
+        check = new int[capacity];
+        isWord = new boolean[capacity];
+        /* The root is no state's child, so its check stays FREE. */
+        Arrays.fill(check, FREE);
+        root.state = ROOT;
+        int used = 1;
+        ArrayDeque<Node> queue = new ArrayDeque<Node>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            isWord[node.state] = node.isWord;
+            if (node.children.isEmpty()) {
+                continue;
+            }
+            int b = 1;
+            while (!fits(b, node)) {
+                b++;
+            }
+            base[node.state] = b;
+            for (int code : node.children.keySet()) {
+                Node child = node.children.get(code);
+                child.state = b + code;
+                ensureCapacity(child.state + 1);
+                check[child.state] = node.state;
+                used = Math.max(used, child.state + 1);
+                queue.add(child);
+            }
+        }
+        /* Room for a step on any code from any state, used or not. */
+        int maxBase = 0;
+        for (int t = 0; t < used; t++) {
+            maxBase = Math.max(maxBase, base[t]);
+        }
+        ensureCapacity(maxBase + alphabetSize + 1);
+        int length = maxBase + alphabetSize + 1;
+        base = Arrays.copyOf(base, length);
+        check = Arrays.copyOf(check, length);
+        isWord = Arrays.copyOf(isWord, length);
+    }
+
+    private boolean fits(int b, Node node) {
+        for (int code : node.children.keySet()) {
+            int t = b + code;
+            if (t < check.length && check[t] != FREE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > check.length) {
+            int newCapacity = Math.max(capacity, 2 * check.length);
+            int oldCapacity = check.length;
+            base = Arrays.copyOf(base, newCapacity);
+            check = Arrays.copyOf(check, newCapacity);
+            isWord = Arrays.copyOf(isWord, newCapacity);
+            Arrays.fill(check, oldCapacity, newCapacity, FREE);
+        }
+    }
+
+    /**
+     * @param s text holding a candidate word
+     * @param start position of the first char of the word
+     * @param end position just past the word
+     * @return whether the chars from start to end are a word of this set
+     */
+    public boolean contains(CharSequence s, int start, int end) {
+        int[] units = this.units;
+        int state = ROOT;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= codes.length) {
+                return false;
+            }
+            /* Chars in no word have code 0, which leads to no child. */
+            int next = units[2 * state] + codes[c];
+            if (units[2 * next + 1] != state) {
+                return false;
+            }
+            state = next;
+        }
+        return isWord[state];
+    }
+
+    public boolean contains(String word) {
+        return contains(word, 0, word.length());
+    }
+
+    /**
+     * @return number of slots in the double array, used or not
+     */
+    public int getSlotCount() {
+        return isWord.length;
+    }
+
+    /**
+     * @return bytes taken by the arrays of this trie, not counting object
+     *         headers
+     */
+    public int getFootprintBytes() {
+        return codes.length + 4 * units.length + isWord.length;
+    }
+
+    private static class Node {
+        private final TreeMap<Integer, Node> children =
+            new TreeMap<Integer, Node>();
+        private boolean isWord;
+        private int state;
+    }
+}
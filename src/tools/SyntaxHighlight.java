@@ -1,19 +1,15 @@
 package tools;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A syntax highlighter for Capacita that outputs HTML.
  * @author Jiangcheng Oliver Chu
  */
 public class SyntaxHighlight {
-    private static PrefixTrie masterTrie;
-    private static RegexTrie numericTrie;
-    private static RegexTrie stringTrie;
-    private static RegexTrie tagTrie;
-    private static RegexTrie commentTrie;
-    private static boolean initialized = false;
     public static final String[] CAPACITA_KEYWORDS = {
         "if", "else", "when", "case", "while", "switch", "default", "for",
         "each", "of", "continue", "break", "sub", "import", "and", "or", "xor",
@@ -21,235 +17,225 @@ public class SyntaxHighlight {
         "end", "print", "input", "show", "repeat", "return", "try", "catch",
         "into", "in", "this", "inherit", "andb", "orb", "xorb", "notb"
     };
+    /** Span class of each kind of token from HighlightLexer. */
+    private static final String[] CLASS_NAMES = {
+        null, "keyword", "number2", "string2", "tag", "comment2", null
+    };
     
-    public SyntaxHighlight() {
-        if (!initialized) {
-            masterTrie = new PrefixTrie();
-            masterTrie.addAll(CAPACITA_KEYWORDS);
-            /* numericTrie detects floating point and integer literals. */
-            numericTrie = new RegexTrie(
-                "[xob]?(\\d+)?\\.?\\d+([eE]-?\\d+)?(\\[\\d+\\])?");
-            /* stringTrie detects double or single quoted strings
-             * with or without escapes. */
-            stringTrie = new RegexTrie("(.*?[^\\\\])?['\"]");
-            /* tagTrie detects valid tag syntax. */
-            tagTrie = new RegexTrie(
-                "[_A-Za-z][_A-Za-z0-9\\(\\)\\.,]*[_A-Za-z0-9\\)]");
-            /* commentTrie detects single and multiline comments. */
-            commentTrie = new RegexTrie(
-                "(/.*\n)|(\\*(.|\n)*\\*/)");
-            masterTrie.setChild(tagTrie, '#');
-            masterTrie.setChild(stringTrie, '"');
-            masterTrie.setChild(stringTrie, '\'');
-            masterTrie.setChild(commentTrie, '/');
-            masterTrie.setChild(numericTrie, '-');
-            for (char c = '0'; c <= '9'; c++) {
-                masterTrie.setChild(numericTrie, c);
-            }
-            initialized = true;
-        }
-    }
+    public SyntaxHighlight() {}
 
+    /**
+     * Highlights code, escaping it as HTML.
+     * @param code Capacita source
+     * @return code as HTML
+     */
     public String highlight(String code) {
-        String result = "";
-        code += "\n";
-        for (int i = 0; i < code.length(); i++) {
-            String grabbed = masterTrie.grab(code, i);
-            if (grabbed != null && grabbed.length() > 0) {
-                result += wrapAny(grabbed);
-                i += grabbed.length() - 1;
-            } else {
-                result += code.charAt(i);
-            }
-        }
-        return result.substring(0, result.length() - 1);
-    }
-    
-    private String wrapAny(String innerHTML) {
-        if (!innerHTML.isEmpty()) {
-            switch (innerHTML.charAt(0)) {
-                case '#':
-                    return wrap(innerHTML, "tag");
-                case '"':
-                case '\'':
-                    return wrap(innerHTML, "string2");
-                case '/':
-                    return wrap(innerHTML, "comment2").replace(
-                        "\n</span>", "</span>\n"
-                    );
-                case '0': case '1': case '2': case '3':
-                case '4': case '5': case '6': case '7':
-                case '8': case '9': case '-':
-                    return wrap(innerHTML, "number2");
-                default:
-                    return wrap(innerHTML, "keyword");
-            }
-        } else {
-            return "";
-        }
-    }
-    
-    private String wrap(String innerHTML, String className) {
-        return "<span class=\"" + className + "\">" + innerHTML + "</span>";
-    }
-    
-    public boolean hasWord(String word) {
-        return masterTrie.contains(word);
-    }
-    
-    private interface Trie {
-        boolean contains(String s, int runningIndex);
-        boolean contains(String s);
-        void add(String s, int runningIndex);
-        String getMatch();
-        String grab(String s, int runningIndex);
+        StringBuilder result = new StringBuilder(code.length() +
+                                                 code.length() / 2);
+        try {
+            highlight(code, result);
+        } catch (IOException ex) {
+            /* StringBuilder never throws IOException. */
+            throw new IllegalStateException(ex);
+        }
+        return result.toString();
     }
-    
+
     /**
-     * A trie for string prefix matching, emphasizing speed over memory.
-     * @author Jiangcheng Oliver Chu
+     * Highlights code in a single pass, writing HTML to out as it goes.
+     * Plain text between tokens is appended in runs, and &amp;, &lt; and
+     * &gt; are escaped everywhere.
+     * @param in Capacita source
+     * @param out receives the highlighted HTML
+     * @throws IOException if out fails
      */
-    private class PrefixTrie implements Trie {
-        private static final int ASCII_RANGE = 94;
-        private final Trie[] children = new Trie[ASCII_RANGE];
-        private String lastMatch = null;
-        private boolean isLeaf = true;
-        
-        PrefixTrie() {}
+    public void highlight(CharSequence in, Appendable out)
+           throws IOException {
+        render(in, 0, in.length(), HighlightLexer.START, false, true, out);
+    }
 
-        @Override
-        public boolean contains(String s, int runningIndex) {
-            if (runningIndex >= s.length()) {
-                return isLeaf;
+    /**
+     * Highlights code on a pool of threads, giving exactly the same output
+     * as highlight. The code is split into chunks of whole lines, which are
+     * highlighted at once assuming the lexer state each one starts in; any
+     * chunk whose guess turns out wrong is highlighted again.
+     * @param in Capacita source, which must not change while highlighting
+     * @param out receives the highlighted HTML
+     * @param pool threads to highlight chunks on
+     * @param chunkSize least number of chars in each chunk but the last
+     * @return the number of chunks highlighted again
+     * @throws IOException if out fails
+     */
+    public int highlightParallel(final CharSequence in, Appendable out,
+                                 ForkJoinPool pool, int chunkSize)
+           throws IOException {
+        int length = in.length();
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        int chunkStart = 0;
+        while (chunkStart < length) {
+            int chunkEnd = Math.min(chunkStart + Math.max(chunkSize, 1),
+                                    length);
+            while (chunkEnd < length && in.charAt(chunkEnd - 1) != '\n') {
+                chunkEnd++;
             }
-            int first = s.charAt(runningIndex) - ' ';
-            Trie firstChild = children[first];
-            if (firstChild == null) {
-                return isLeaf;
-            } else {
-                if (firstChild.contains(s, runningIndex + 1)) {
-                    setMatch(s.substring(runningIndex));
-                    return true;
-                } else {
-                    return false;
-                }
+            chunks.add(new Chunk(in, chunkStart, chunkEnd,
+                                 chunkEnd == length));
+            chunkStart = chunkEnd;
+        }
+        for (Chunk chunk : chunks) {
+            pool.execute(chunk);
+        }
+        int state = HighlightLexer.START;
+        int misses = 0;
+        for (Chunk chunk : chunks) {
+            chunk.join();
+            if (chunk.startState != state) {
+                chunk.relex(state);
+                misses++;
             }
+            out.append(chunk.html);
+            chunk.html = null;
+            state = chunk.endState;
         }
+        return misses;
+    }
 
-        @Override
-        public String grab(String s, int runningIndex) {
-            if (runningIndex >= s.length()) {
-                if (isLeaf) {
-                    return "";
-                } else {
-                    return null;
-                }
-            }
-            int first = s.charAt(runningIndex) - ' ';
-            if (first < 0 || first > ASCII_RANGE - 1) {
-                return first == '\n' - ' ' ? "" : null;
-            }
-            Trie firstChild = children[first];
-            if (firstChild == null) {
-                if (isLeaf) {
-                    return "";
-                } else {
-                    return null;
-                }
-            } else {
-                String rest = firstChild.grab(s, runningIndex + 1);
-                if (rest == null) {
-                    return null;
-                } else {
-                    return s.charAt(runningIndex) + rest;
+    /**
+     * Highlights code on the common pool, in chunks of 256K chars.
+     * @param in Capacita source, which must not change while highlighting
+     * @param out receives the highlighted HTML
+     * @throws IOException if out fails
+     */
+    public void highlightParallel(CharSequence in, Appendable out)
+           throws IOException {
+        highlightParallel(in, out, ForkJoinPool.commonPool(), 1 << 18);
+    }
+
+    /**
+     * Highlights the chars of in from start to end, starting in state.
+     * @param isOpening whether a block comment continued from before start
+     *                  gets an opening tag
+     * @param isClosing whether a block comment still open at end gets a
+     *                  closing tag
+     * @return BLOCK_COMMENT if end is inside a block comment, else START
+     */
+    static int render(CharSequence in, int start, int end, int state,
+                      boolean isOpening, boolean isClosing, Appendable out)
+           throws IOException {
+        int plainStart = start;
+        int i = start;
+        while (i < end) {
+            long token = HighlightLexer.scan(in, i, end, state);
+            int tokenEnd = HighlightLexer.endOf(token);
+            String className = CLASS_NAMES[HighlightLexer.kindOf(token)];
+            if (className != null) {
+                appendEscaped(in, plainStart, i, out);
+                if (state == HighlightLexer.START || isOpening) {
+                    out.append("<span class=\"").append(className)
+                       .append("\">");
                 }
-            }
-        }
-        
-        @Override
-        public boolean contains(String s) {
-            return contains(s, 0);
-        }
-        
-        @Override
-        public void add(String s, int runningIndex) {
-            if (runningIndex < s.length()) {
-                int first = s.charAt(runningIndex) - ' ';
-                if (children[first] == null) {
-                    children[first] = new PrefixTrie();
+                appendEscaped(in, i, tokenEnd, out);
+                if (HighlightLexer.isOpenComment(token)) {
+                    if (isClosing) {
+                        out.append("</span>");
+                    }
+                    return HighlightLexer.BLOCK_COMMENT;
                 }
-                children[first].add(s, runningIndex + 1);
-                isLeaf = false;
-            }
-        }
-        
-        public void add(String s) {
-            add(s, 0);
-        }
-        
-        public void addAll(String[] strs) {
-            for (String s : strs) {
-                add(s);
+                out.append("</span>");
+                plainStart = tokenEnd;
             }
+            state = HighlightLexer.START;
+            i = tokenEnd;
         }
+        appendEscaped(in, plainStart, end, out);
+        return HighlightLexer.START;
+    }
 
-        public void setChild(Trie t, int childIndex) {
-            children[childIndex - ' '] = t;
-        }
-        
-        @Override
-        public String getMatch() {
-            return lastMatch;
+    private static void appendEscaped(CharSequence code, int start, int end,
+                                      Appendable out) throws IOException {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            String entity;
+            switch (code.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                default:
+                    continue;
+            }
+            out.append(code, runStart, i).append(entity);
+            runStart = i + 1;
         }
-        
-        public void setMatch(String matchedString) {
-            lastMatch = matchedString;
+        if (runStart < end) {
+            out.append(code, runStart, end);
         }
     }
-
+    
     /**
-     * A regex wrapper that acts like a Trie.
-     * @author Jiangcheng Oliver Chu
+     * A chunk of whole lines, highlighted on its own.
      */
-    private class RegexTrie extends PrefixTrie {
-        private final Pattern triePattern;
-        
-        RegexTrie(String regex) {
-            triePattern = Pattern.compile(regex);
+    private static class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence in;
+        private final int start;
+        private final int end;
+        private final boolean isLast;
+        private int startState;
+        private int endState;
+        private StringBuilder html;
+
+        Chunk(CharSequence code, int chunkStart, int chunkEnd,
+              boolean isLastChunk) {
+            in = code;
+            start = chunkStart;
+            end = chunkEnd;
+            isLast = isLastChunk;
         }
-        
+
         @Override
-        public boolean contains(String s, int runningIndex) {
-            Matcher trieMatcher = triePattern.matcher(s);
-            Matcher simpleMatcher = triePattern.matcher(s);
-            trieMatcher.region(runningIndex, s.length());
-            boolean isAhead = runningIndex > 0;
-            if (isAhead) {
-                simpleMatcher.region(runningIndex - 1, runningIndex);
-            }
-            if (trieMatcher.lookingAt()) {
-                setMatch(trieMatcher.group());
-                return true;
-            } else if (isAhead && simpleMatcher.lookingAt()) {
-                setMatch("");
-                return true;
-            } else {
-                return false;
-            }
+        protected void compute() {
+            relex(guessStartState());
         }
-        
-        @Override
-        public String grab(String s, int runningIndex) {
-            if (contains(s, runningIndex)) {
-                return getMatch();
-            } else {
-                return null;
+
+        /**
+         * Guesses that the chunk starts inside a block comment if a block
+         * comment is closed in it before any is opened.
+         */
+        private int guessStartState() {
+            for (int i = start + 1; i < end; i++) {
+                if (in.charAt(i) == '/' && in.charAt(i - 1) == '*') {
+                    return HighlightLexer.BLOCK_COMMENT;
+                } else if (in.charAt(i) == '*' && in.charAt(i - 1) == '/') {
+                    return HighlightLexer.START;
+                }
             }
+            return HighlightLexer.START;
         }
 
-        @Override
-        public boolean contains(String s) {
-            return contains(s, 0);
+        void relex(int state) {
+            startState = state;
+            html = new StringBuilder((end - start) + (end - start) / 2);
+            try {
+                endState = render(in, start, end, state, false, isLast,
+                                  html);
+            } catch (IOException ex) {
+                /* StringBuilder never throws IOException. */
+                throw new IllegalStateException(ex);
+            }
         }
     }
+    
+    public boolean hasWord(String word) {
+        long token = HighlightLexer.scan(word, 0, word.length(),
+                                         HighlightLexer.START);
+        return HighlightLexer.endOf(token) == word.length() &&
+               HighlightLexer.kindOf(token) == HighlightLexer.KEYWORD;
+    }
 }